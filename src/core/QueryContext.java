@@ -0,0 +1,120 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Deadline of the queries of a request, and what they're waiting on.
+ * <p>
+ * The thread running a query has the context of its request set, see
+ * {@link #current}.  Storage implementations register the work they wait
+ * on, such as the statements being executed, so that {@link #cancel}
+ * can interrupt it once the request gives up.
+ */
+public final class QueryContext {
+
+  /** Something a query waits on which can be interrupted. */
+  public interface Cancellable {
+    void cancel();
+  }
+
+  private static final ThreadLocal<QueryContext> current =
+    new ThreadLocal<QueryContext>();
+
+  /** Deadline in ms since the epoch, 0 for none. */
+  private final long deadline;
+
+  /** What the queries wait on, guarded by {@code this}. */
+  private final HashSet<Cancellable> pending = new HashSet<Cancellable>();
+
+  private boolean cancelled;
+
+  /**
+   * Constructor.
+   * @param deadline Time in ms since the epoch after which the queries are
+   * abandoned, 0 for none.
+   */
+  public QueryContext(final long deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * Returns the context of the query running on the current thread, or
+   * {@code null} if it has none.
+   */
+  public static QueryContext current() {
+    return current.get();
+  }
+
+  /** Sets the context of the current thread, {@code null} to clear it. */
+  public static void setCurrent(final QueryContext context) {
+    if (context == null) {
+      current.remove();
+    } else {
+      current.set(context);
+    }
+  }
+
+  /**
+   * Returns the time in ms left before the deadline, or
+   * {@code Long.MAX_VALUE} if there's none.
+   */
+  public long remainingMillis() {
+    if (deadline == 0) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, deadline - System.currentTimeMillis());
+  }
+
+  /** Returns whether the queries were cancelled, or their deadline passed. */
+  public synchronized boolean isCancelled() {
+    return cancelled || remainingMillis() == 0;
+  }
+
+  /**
+   * Registers something to interrupt if the queries are cancelled.
+   * @return {@code false} if they're already cancelled, in which case the
+   * caller should give up rather than start waiting.
+   */
+  public synchronized boolean register(final Cancellable cancellable) {
+    if (isCancelled()) {
+      return false;
+    }
+    pending.add(cancellable);
+    return true;
+  }
+
+  /** Unregisters something once no longer waited on. */
+  public synchronized void unregister(final Cancellable cancellable) {
+    pending.remove(cancellable);
+  }
+
+  /** Cancels the queries, interrupting what they wait on. */
+  public void cancel() {
+    final ArrayList<Cancellable> cancellables;
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      cancellables = new ArrayList<Cancellable>(pending);
+      pending.clear();
+    }
+    for (final Cancellable cancellable : cancellables) {
+      cancellable.cancel();
+    }
+  }
+
+}
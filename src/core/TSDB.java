@@ -55,6 +55,14 @@ public interface TSDB {
    */
   public Query newQuery();
 
+  /**
+   * Lets the storage read queries run together, such as the ones of a
+   * graph, with fewer round trips.  Called once their parameters are set,
+   * before running them; each query still returns its own results.
+   * @param queries The queries, some may be {@code null}.
+   */
+  public void batchQueries(final Query[] queries);
+
   /**
    * Returns a new {@link WritableDataPoints} instance suitable for this TSDB.
    * <p>
@@ -200,6 +200,10 @@ public final class TsdbHbase implements TSDB {
     return query;
   }
 
+  /** Queries are scanned on their own. */
+  public void batchQueries(final Query[] queries) {
+  }
+
   /**
    * Returns a new {@link WritableDataPoints} instance suitable for this TSDB.
    * <p>
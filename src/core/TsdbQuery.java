@@ -269,7 +269,11 @@ final public class TsdbQuery implements Query {
     }
   }
 
-  public DataPoints[] run() throws StorageException {
+  /**
+   * Returns the storage query, set up to run this query.  {@link #run}
+   * must still be called to get the results.
+   */
+  public StorageQuery getStorageQuery() {
     storage_query.setMetric(metric);
     storage_query.setMetricName(metricName);
     storage_query.setScanStartTime(getStartTime());
@@ -286,7 +290,11 @@ final public class TsdbQuery implements Query {
     storage_query.setExtraTags(extra_tags);
     storage_query.setIsAvail(isAvailability());
     storage_query.setAvailInterval(getAvailInterval());
-    return storage_query.runQuery();
+    return storage_query;
+  }
+
+  public DataPoints[] run() throws StorageException {
+    return getStorageQuery().runQuery();
   }
 
   private boolean isAvailability() {
@@ -32,7 +32,21 @@ public final class DataSourceUtil {
         
         cpds.setAutoCommitOnClose(true);
         
-        cpds.setJdbcUrl("jdbc:mysql://" + host + "/" + db);
+        // Let the driver send batches of inserts as multi-row statements.
+        // Statements are prepared on the client: most queries are built
+        // with literal ids, and caching them on the server would exhaust
+        // max_prepared_stmt_count.  See createInsertDataSource.
+        String url = "jdbc:mysql://" + host + "/" + db
+            + "?rewriteBatchedStatements=true";
+        if (InsertQueue.insertMode() == InsertQueue.MODE_BULK) {
+            // bulk inserts use LOAD DATA LOCAL INFILE
+            url += "&allowLoadLocalInfile=true";
+        }
+        if (StorageQuerySql.fetchSize() > 0) {
+            // queries fetch their rows by batches from a server side cursor
+            url += "&useCursorFetch=true";
+        }
+        cpds.setJdbcUrl(url);
         cpds.setUser(user);
         cpds.setPassword(pass);
         
@@ -48,6 +62,78 @@ public final class DataSourceUtil {
         return cpds;
     }
     
+    /**
+     * Creates a small pool to the same database as a pool created by
+     * {@link #createPooledDataSource}, for the prepared INSERT of the
+     * writer threads.  Its statements are prepared once per connection on
+     * the server and cached, which the shared pool doesn't do.
+     * @param ds The pool to copy the settings of.
+     * @param connections The maximum number of connections.
+     * @return The new pool, to be closed by the caller, or {@code null}
+     * if {@code ds} wasn't created by {@link #createPooledDataSource}.
+     */
+    static DataSource createInsertDataSource(DataSource ds, int connections) {
+        if (!(ds instanceof ComboPooledDataSource)) {
+            return null;
+        }
+        final ComboPooledDataSource shared = (ComboPooledDataSource) ds;
+        ComboPooledDataSource cpds = new ComboPooledDataSource();
+        try {
+            cpds.setDriverClass(shared.getDriverClass());
+        } catch (PropertyVetoException e) {
+            LOG.error("Unable to set dirver class: " + e.getMessage());
+            return null;
+        }
+        
+        cpds.setAutoCommitOnClose(true);
+        cpds.setJdbcUrl(shared.getJdbcUrl()
+                        + "&useServerPrepStmts=true&cachePrepStmts=true");
+        cpds.setUser(shared.getUser());
+        cpds.setPassword(shared.getPassword());
+        
+        cpds.setMinPoolSize(1);
+        cpds.setAcquireIncrement(1);
+        cpds.setMaxPoolSize(connections);
+        cpds.setIdleConnectionTestPeriod(120);
+        cpds.setTestConnectionOnCheckin(true);
+        // cache prepared statements of each pooled connection
+        cpds.setMaxStatementsPerConnection(
+            Integer.getInteger("tsd.sql.statements_per_connection", 32));
+        
+        return cpds;
+    }
+    
+    /**
+     * Closes a pool created by {@link #createPooledDataSource}, releasing
+     * all its connections.  Other data sources are left alone.
+     */
+    public static void close(DataSource ds) {
+        if (ds instanceof ComboPooledDataSource) {
+            ((ComboPooledDataSource) ds).close();
+        }
+    }
+    
+    /**
+     * Returns how many more connections a pool created by
+     * {@link #createPooledDataSource} can hand out right now, counting
+     * the ones it may still open.  Unknown for other data sources.
+     * @return The number of connections, {@code Integer.MAX_VALUE} if
+     * unknown.
+     */
+    static int availableConnections(DataSource ds) {
+        if (ds instanceof ComboPooledDataSource) {
+            final ComboPooledDataSource cpds = (ComboPooledDataSource) ds;
+            try {
+                return Math.max(0, cpds.getMaxPoolSize()
+                                - cpds.getNumBusyConnectionsDefaultUser());
+            } catch (SQLException e) {
+                LOG.warn("Unable to get the number of busy connections: " + e.getMessage());
+                return 0;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+    
     public static void close(ResultSet rs, PreparedStatement st, Connection conn) {
         if (rs != null) {
             try {
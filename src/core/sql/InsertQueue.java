@@ -0,0 +1,795 @@
+package net.opentsdb.core.sql;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.StorageException;
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Buffers data points in memory and writes them to the sql db in batches.
+ * <p>
+ * Points are appended by {@link TsdbSql#addPoint} and written by
+ * {@code tsd.sql.writer_threads} background threads (1 by default), one
+ * transaction per batch.  How batches are written depends on
+ * {@code tsd.sql.insert_mode}:
+ * <ul>
+ * <li>"prepared" (the default): points are bound to a single parameterized
+ * INSERT and sent as JDBC batches, which the driver rewrites to multi-row
+ * INSERTs.  The writer threads get a pool of their own, where the INSERT is
+ * prepared once per connection on the server.</li>
+ * <li>"literal": points are written as multi-row INSERTs of literal
+ * values.</li>
+ * <li>"bulk": each batch is written to a temporary TSV file in the layout
+ * of the data table and loaded with {@code LOAD DATA LOCAL INFILE}.  This
+ * is meant for imports and backfills, with large batches.</li>
+ * </ul>
+ * A batch is written as soon as {@code batch_size} points are
+ * pending or when {@code flush_interval} milliseconds have passed since the
+ * last write, whichever comes first.
+ * <p>
+ * The {@link Deferred} returned for each point is called back once the
+ * batch that contains it has been committed, or errbacked with the
+ * exception that made the batch fail.
+ */
+final class InsertQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InsertQueue.class);
+
+    /** Default number of points written in one batch. */
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** Default number of points loaded at once in bulk mode. */
+    private static final int DEFAULT_BULK_BATCH_SIZE = 50000;
+
+    /** Values of {@code tsd.sql.insert_mode}. */
+    static final int MODE_LITERAL = 0;
+    static final int MODE_PREPARED = 1;
+    static final int MODE_BULK = 2;
+
+    /** Default maximum number of points waiting to be written. */
+    private static final int DEFAULT_MAX_PENDING = 100000;
+
+    /** Makes a point replace the one it collides with, see {@link #on_duplicate}. */
+    private static final String ON_DUPLICATE =
+        " ON DUPLICATE KEY UPDATE val_int=VALUES(val_int),val_dbl=VALUES(val_dbl)";
+
+    /** Maximum number of rows in one INSERT statement (or JDBC batch). */
+    private static final int MAX_ROWS_PER_STATEMENT = 500;
+
+    private final DataSource ds;
+    private final String table;
+
+    /** Told about the points written, {@code null} without rollups. */
+    private final Rollups rollups;
+
+    /**
+     * Pool of the writer threads in prepared mode, whose connections cache
+     * the INSERT prepared on the server.  Created and closed by this queue,
+     * {@code null} to write through {@link #ds}.
+     */
+    private final DataSource insert_ds;
+
+    /** How batches are written, one of the {@code MODE_} constants. */
+    private final int mode;
+
+    /** Whether the data table has the narrow schema. */
+    private final boolean narrow;
+
+    /** Columns written for every point. */
+    private final String columns;
+
+    /**
+     * Appended to INSERTs with the narrow schema, where a point overwrites
+     * any other point of the same series at the same time, or empty.
+     */
+    private final String on_duplicate;
+
+    /** Parameterized INSERT of one row. */
+    private final String insert_query;
+
+    /** Directory of the temporary files of bulk mode. */
+    private final File bulk_dir;
+
+    /** Number of points which triggers a write. */
+    private final int batch_size;
+
+    /** Points are rejected once this many are waiting to be written. */
+    private final int max_pending;
+
+    /**
+     * Whether {@link #add} waits for room when the queue is full, rather
+     * than rejecting the point.  Set by {@code tsd.sql.block_when_full},
+     * only meant for tools, as it would stall the TSD's IO threads.
+     */
+    private final boolean block_when_full;
+
+    /** Maximum time in ms a point may wait before being written. */
+    private volatile long flush_interval;
+
+    /** Points waiting to be written.  Guarded by {@code this}. */
+    private ArrayList<Point> pending = new ArrayList<Point>();
+
+    /** Outstanding {@link #flush} requests.  Guarded by {@code this}. */
+    private final ArrayList<FlushRequest> flushes = new ArrayList<FlushRequest>();
+
+    /** Sequence number given to the last point queued.  Guarded by {@code this}. */
+    private long last_queued;
+
+    /**
+     * Timestamps of the first point of the batches being written, by
+     * sequence number of that point.  Guarded by {@code this}.
+     */
+    private final TreeMap<Long, Long> in_flight = new TreeMap<Long, Long>();
+
+    /** Number of points in the batches being written.  Guarded by {@code this}. */
+    private int in_flight_points;
+
+    /** Set once {@link #shutdown} has been called.  Guarded by {@code this}. */
+    private boolean shutdown;
+
+    private final Thrd[] threads;
+
+    /** Number of writer threads still running.  Guarded by {@code this}. */
+    private int running_threads;
+
+    /** Latency in ms between the time a point is queued and committed. */
+    private final Histogram latency = new Histogram(16000, (short) 2, 100);
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batch_errors = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param ds The data source to write to.
+     * @param table The name of the table holding data points.
+     * @param rollups The rollups of the table, which recompute the buckets
+     * points are written to late, {@code null} if none.
+     * @param flush_interval Maximum time in ms a point may be buffered.
+     */
+    public InsertQueue(final DataSource ds, final String table,
+                       final Rollups rollups, final long flush_interval) {
+        this.ds = ds;
+        this.table = table;
+        this.rollups = rollups;
+        this.flush_interval = flush_interval;
+        mode = insertMode();
+        narrow = SeriesTemplate.narrowSchema();
+        columns = SeriesTemplate.columns(narrow);
+        on_duplicate = narrow ? ON_DUPLICATE : "";
+        insert_query = "INSERT INTO " + table + " (" + columns + ") VALUES (?,?,?,?"
+            + (narrow ? "" : repeat(",?", SeriesTemplate.NUM_TAG_COLUMNS)) + ')'
+            + on_duplicate;
+        bulk_dir = new File(System.getProperty("tsd.sql.bulk_dir",
+                                               System.getProperty("java.io.tmpdir")));
+        batch_size = Math.max(1, Integer.getInteger("tsd.sql.batch_size",
+            mode == MODE_BULK ? DEFAULT_BULK_BATCH_SIZE : DEFAULT_BATCH_SIZE));
+        max_pending = Math.max(batch_size,
+            Integer.getInteger("tsd.sql.max_pending", DEFAULT_MAX_PENDING));
+        block_when_full = Boolean.getBoolean("tsd.sql.block_when_full");
+        threads = new Thrd[Math.max(1, Integer.getInteger("tsd.sql.writer_threads", 1))];
+        insert_ds = mode == MODE_PREPARED
+            ? DataSourceUtil.createInsertDataSource(ds, threads.length) : null;
+        running_threads = threads.length;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thrd(i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Returns the insert mode set by {@code tsd.sql.insert_mode}.
+     * @throws IllegalArgumentException if the mode is invalid.
+     */
+    static int insertMode() {
+        final String mode = System.getProperty("tsd.sql.insert_mode", "prepared");
+        if ("prepared".equals(mode)) {
+            return MODE_PREPARED;
+        } else if ("literal".equals(mode)) {
+            return MODE_LITERAL;
+        } else if ("bulk".equals(mode)) {
+            return MODE_BULK;
+        }
+        throw new IllegalArgumentException("Invalid tsd.sql.insert_mode: "
+            + mode + ", must be one of prepared, literal or bulk");
+    }
+
+    /**
+     * Changes the maximum time a point may stay in memory before being
+     * written.
+     * @param flush_interval Interval in ms, 0 means write points as soon
+     * as the writer thread can.
+     */
+    public void setFlushInterval(final long flush_interval) {
+        if (flush_interval < 0) {
+            throw new IllegalArgumentException("Negative flush interval: "
+                                               + flush_interval);
+        }
+        this.flush_interval = flush_interval;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Queues a data point.
+     * @param series The resolved series the point belongs to.
+     * @param timestamp Timestamp of the point.
+     * @param value The value, either a {@link Long} or a {@link Float}.
+     * @return A deferred called back once the point has been committed.
+     */
+    public Deferred<Object> add(final SeriesTemplate series,
+                                final long timestamp, final Number value) {
+        final Point point = new Point(series, timestamp, value);
+        synchronized (this) {
+            if (shutdown) {
+                rejected.incrementAndGet();
+                return Deferred.fromError(new StorageException(
+                    "Insert queue is shut down, dropping point"));
+            }
+            while (block_when_full && pending.size() >= max_pending && !shutdown) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (shutdown) {
+                rejected.incrementAndGet();
+                return Deferred.fromError(new StorageException(
+                    "Insert queue is shut down, dropping point"));
+            }
+            if (pending.size() >= max_pending) {
+                rejected.incrementAndGet();
+                return Deferred.fromError(new StorageException(
+                    "Insert queue is full (" + max_pending + " points pending)"));
+            }
+            point.seq = ++last_queued;
+            pending.add(point);
+            if (pending.size() >= batch_size) {
+                notifyAll();
+            }
+        }
+        queued.incrementAndGet();
+        return point.deferred;
+    }
+
+    /**
+     * Forces all the points queued so far to be written.
+     * @return A deferred called back once every point queued before this
+     * call has been written (or failed to be).
+     */
+    public Deferred<Object> flush() {
+        final FlushRequest req;
+        synchronized (this) {
+            if (pending.isEmpty() && in_flight.isEmpty()) {
+                return Deferred.fromResult(null);
+            }
+            req = new FlushRequest(last_queued);
+            flushes.add(req);
+            notifyAll();
+        }
+        return req.deferred;
+    }
+
+    /**
+     * Writes all pending points and stops the writer threads.
+     * Points added after this call are rejected.
+     * @return A deferred called back once the pending points are written.
+     */
+    public Deferred<Object> shutdown() {
+        final Deferred<Object> d = flush();
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        return d;
+    }
+
+    /**
+     * Gives up on the points which haven't been handed to a writer thread
+     * yet, for when {@link #shutdown} is taking too long.
+     * Their deferreds are errbacked with a {@link StorageException}, and
+     * points added after this call are rejected.  Batches already being
+     * written are left to complete.
+     * @return The number of points abandoned.
+     */
+    public int abandon() {
+        final ArrayList<Point> points;
+        ArrayList<FlushRequest> ready = null;
+        synchronized (this) {
+            shutdown = true;
+            points = pending;
+            pending = new ArrayList<Point>();
+            // Without a batch in flight, nothing would fire the flushes.
+            if (in_flight.isEmpty() && !flushes.isEmpty()) {
+                ready = new ArrayList<FlushRequest>(flushes);
+                flushes.clear();
+            }
+            notifyAll();
+        }
+        abandoned.addAndGet(points.size());
+        for (final Point point : points) {
+            point.deferred.callback(new StorageException(
+                "Insert queue shut down before the point could be written"));
+        }
+        if (ready != null) {
+            for (final FlushRequest req : ready) {
+                req.deferred.callback(null);
+            }
+        }
+        return points.size();
+    }
+
+    /** Returns the number of points written so far. */
+    long written() {
+        return written.get();
+    }
+
+    /** Returns the number of points in the batches being written. */
+    synchronized int inFlight() {
+        return in_flight_points;
+    }
+
+    /** Returns the number of points which triggers a write. */
+    int batchSize() {
+        return batch_size;
+    }
+
+    /**
+     * Returns the timestamp of the point queued first among those not
+     * written yet, {@code Long.MAX_VALUE} if there's none.
+     */
+    synchronized long oldestPending() {
+        if (!in_flight.isEmpty()) {
+            return in_flight.firstEntry().getValue();
+        } else if (!pending.isEmpty()) {
+            return pending.get(0).timestamp;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** Returns the number of points waiting to be written. */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /** Returns the latency histogram of writes. */
+    public Histogram getLatencyHistogram() {
+        return latency;
+    }
+
+    void collectStats(final StatsCollector collector) {
+        collector.record("sql.inserts", queued, "type=queued");
+        collector.record("sql.inserts", written, "type=written");
+        collector.record("sql.inserts", rejected, "type=rejected");
+        collector.record("sql.inserts", failed, "type=failed");
+        collector.record("sql.inserts", abandoned, "type=abandoned");
+        collector.record("sql.insert.batches", batches);
+        collector.record("sql.insert.batches", batch_errors, "type=errors");
+        collector.record("sql.insert.pending", size());
+        collector.record("sql.latency", latency, "type=insert");
+    }
+
+    /**
+     * Waits until there's something to write and takes it out of the queue.
+     * The batch is registered as in flight until {@link #done} is called.
+     * @return The points to write, empty if the thread should exit.
+     */
+    private synchronized ArrayList<Point> take() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + flush_interval;
+        while (true) {
+            final int size = pending.size();
+            if (size >= batch_size || (size > 0 && (shutdown || !flushes.isEmpty()))) {
+                break;
+            }
+            if (size == 0 && shutdown) {
+                return new ArrayList<Point>(0);
+            }
+            final long now = System.currentTimeMillis();
+            if (size > 0 && now >= deadline) {
+                break;
+            }
+            if (size == 0) {
+                deadline = now + flush_interval;
+            }
+            wait(Math.max(1, deadline - now));
+        }
+        final ArrayList<Point> points;
+        if (pending.size() <= batch_size) {
+            points = pending;
+            pending = new ArrayList<Point>();
+        } else {
+            final List<Point> head = pending.subList(0, batch_size);
+            points = new ArrayList<Point>(head);
+            head.clear();
+        }
+        in_flight.put(points.get(0).seq, points.get(0).timestamp);
+        in_flight_points += points.size();
+        if (block_when_full) {
+            notifyAll();
+        }
+        return points;
+    }
+
+    /**
+     * Records the completion of a batch and fires the {@link #flush}
+     * requests it satisfies.
+     */
+    private void done(final ArrayList<Point> points) {
+        ArrayList<FlushRequest> ready = null;
+        synchronized (this) {
+            in_flight.remove(points.get(0).seq);
+            in_flight_points -= points.size();
+            // Batches may complete out of order with several writer
+            // threads, so everything is done up to the oldest point still
+            // pending or in flight.
+            long seq = last_queued;
+            if (!pending.isEmpty()) {
+                seq = pending.get(0).seq - 1;
+            }
+            if (!in_flight.isEmpty()) {
+                seq = Math.min(seq, in_flight.firstKey() - 1);
+            }
+            final Iterator<FlushRequest> it = flushes.iterator();
+            while (it.hasNext()) {
+                final FlushRequest req = it.next();
+                if (req.seq <= seq) {
+                    if (ready == null) {
+                        ready = new ArrayList<FlushRequest>();
+                    }
+                    ready.add(req);
+                    it.remove();
+                }
+            }
+        }
+        if (ready != null) {
+            for (final FlushRequest req : ready) {
+                req.deferred.callback(null);
+            }
+        }
+    }
+
+    /** Closes the insert pool once the last writer thread is done. */
+    private void threadDone() {
+        synchronized (this) {
+            if (--running_threads > 0) {
+                return;
+            }
+        }
+        if (insert_ds != null) {
+            DataSourceUtil.close(insert_ds);
+        }
+    }
+
+    /**
+     * Writes a batch of points in a single transaction and completes their
+     * deferreds.
+     */
+    private void write(final ArrayList<Point> points) {
+        final long start = System.currentTimeMillis();
+        Connection conn = null;
+        Statement st = null;
+        Exception error = null;
+        try {
+            conn = (insert_ds != null ? insert_ds : ds).getConnection();
+            conn.setAutoCommit(false);
+            if (mode == MODE_PREPARED) {
+                // The insert pool caches prepared statements per
+                // connection, so this is only parsed once per connection.
+                final PreparedStatement ps = conn.prepareStatement(insert_query);
+                st = ps;
+                writePrepared(ps, points);
+            } else if (mode == MODE_BULK) {
+                st = conn.createStatement();
+                writeBulk(st, points);
+            } else {
+                st = conn.createStatement();
+                final int n = points.size();
+                for (int i = 0; i < n; i += MAX_ROWS_PER_STATEMENT) {
+                    st.executeUpdate(buildInsert(points, i,
+                        Math.min(n, i + MAX_ROWS_PER_STATEMENT)));
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            error = e;
+            if (conn != null) {
+                try {
+                    conn.rollback();
+                } catch (SQLException e2) {
+                    LOG.error("Unable to rollback batch insert: " + e2.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = e;
+        } finally {
+            if (st != null) {
+                try {
+                    st.close();
+                } catch (SQLException e) {
+                    LOG.error("Unable to close statement: " + e.getMessage());
+                }
+            }
+            if (conn != null) {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    LOG.error("Unable to restore auto commit: " + e.getMessage());
+                }
+            }
+            DataSourceUtil.close(null, null, conn);
+        }
+
+        batches.incrementAndGet();
+        if (error == null) {
+            written.addAndGet(points.size());
+            if (rollups != null) {
+                long oldest = Long.MAX_VALUE;
+                for (final Point point : points) {
+                    oldest = Math.min(oldest, point.timestamp);
+                }
+                rollups.pointsWritten(oldest);
+            }
+            final long now = System.currentTimeMillis();
+            for (final Point point : points) {
+                latency.add((int) Math.min(Integer.MAX_VALUE, now - point.queued_at));
+                point.complete(null);
+            }
+        } else {
+            batch_errors.incrementAndGet();
+            failed.addAndGet(points.size());
+            LOG.error("Unable to write batch of " + points.size() + " points: "
+                      + error.getMessage());
+            for (final Point point : points) {
+                point.complete(error);
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Wrote " + points.size() + " points in "
+                      + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Errbacks the points of a batch whose write died with an unexpected
+     * {@link Throwable} before their deferreds could be fired.
+     */
+    private void failUncompleted(final ArrayList<Point> points,
+                                 final Throwable cause) {
+        final StorageException error = new StorageException(
+            "Unable to write batch: " + cause);
+        error.initCause(cause);
+        for (final Point point : points) {
+            if (point.completed) {
+                continue;
+            }
+            failed.incrementAndGet();
+            try {
+                point.complete(error);
+            } catch (Throwable e) {
+                LOG.error("Unable to errback point", e);
+            }
+        }
+    }
+
+    /** Binds the points to the parameterized INSERT and runs it in batches. */
+    private static void writePrepared(final PreparedStatement ps,
+                                      final ArrayList<Point> points) throws SQLException {
+        final int n = points.size();
+        for (int i = 0; i < n; i++) {
+            final Point point = points.get(i);
+            if (point.value instanceof Float) {
+                ps.setNull(1, Types.BIGINT);
+                // the shortest decimal of the float, as the literal and
+                // bulk modes write: widening 0.1f gives 0.10000000149...
+                ps.setDouble(2, Double.parseDouble(point.value.toString()));
+            } else {
+                ps.setLong(1, point.value.longValue());
+                ps.setNull(2, Types.DOUBLE);
+            }
+            ps.setLong(3, point.timestamp);
+            if (point.series.series_id != 0) {
+                ps.setLong(4, point.series.series_id);
+            } else {
+                ps.setLong(4, point.series.metricid);
+                final long[] tagids = point.series.tagids;
+                for (int j = 0; j < SeriesTemplate.NUM_TAG_COLUMNS; j++) {
+                    if (tagids[j] == 0) {
+                        ps.setNull(5 + j, Types.BIGINT);
+                    } else {
+                        ps.setLong(5 + j, tagids[j]);
+                    }
+                }
+            }
+            ps.addBatch();
+            if ((i + 1) % MAX_ROWS_PER_STATEMENT == 0 || i == n - 1) {
+                ps.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Writes the points to a temporary file and loads it in the data table.
+     */
+    private void writeBulk(final Statement st,
+                           final ArrayList<Point> points) throws IOException, SQLException {
+        final File file = File.createTempFile("tsdb-bulk-", ".tsv", bulk_dir);
+        try {
+            final Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "US-ASCII"), 65536);
+            try {
+                final StringBuilder buf = new StringBuilder(128);
+                for (final Point point : points) {
+                    buf.setLength(0);
+                    point.appendTsv(buf);
+                    out.append(buf);
+                }
+            } finally {
+                out.close();
+            }
+            // Tabs, newlines and \N for NULL are the LOAD DATA defaults.
+            st.executeUpdate("LOAD DATA LOCAL INFILE '"
+                + file.getAbsolutePath().replace("\\", "\\\\").replace("'", "\\'")
+                + "' " + (narrow ? "REPLACE " : "") + "INTO TABLE " + table
+                + " (" + columns + ')');
+        } finally {
+            if (!file.delete()) {
+                LOG.warn("Unable to delete " + file);
+            }
+        }
+    }
+
+    /** Builds a multi-row INSERT for points {@code [from, to)}. */
+    private String buildInsert(final ArrayList<Point> points,
+                               final int from, final int to) {
+        final StringBuilder query = new StringBuilder(64 + (to - from) * 96);
+        query.append("INSERT INTO ").append(table)
+            .append(" (").append(columns).append(") VALUES ");
+        for (int i = from; i < to; i++) {
+            if (i != from) {
+                query.append(',');
+            }
+            points.get(i).appendValues(query);
+        }
+        return query.append(on_duplicate).toString();
+    }
+
+    private static String repeat(final String s, final int n) {
+        final StringBuilder buf = new StringBuilder(s.length() * n);
+        for (int i = 0; i < n; i++) {
+            buf.append(s);
+        }
+        return buf.toString();
+    }
+
+    /** A data point waiting to be written. */
+    private static final class Point {
+        final SeriesTemplate series;
+        final long timestamp;
+        final Number value;
+        final long queued_at = System.currentTimeMillis();
+        final Deferred<Object> deferred = new Deferred<Object>();
+        long seq;
+        /** Whether the deferred was fired, only used by the writer thread. */
+        boolean completed;
+
+        Point(final SeriesTemplate series, final long timestamp,
+              final Number value) {
+            this.series = series;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        void complete(final Object result) {
+            completed = true;
+            deferred.callback(result);
+        }
+
+        void appendValues(final StringBuilder buf) {
+            buf.append('(');
+            if (value instanceof Float) {
+                buf.append("NULL,").append(value.floatValue());
+            } else {
+                buf.append(value.longValue()).append(",NULL");
+            }
+            buf.append(',').append(timestamp)
+                .append(series.valuesSuffix());
+        }
+
+        void appendTsv(final StringBuilder buf) {
+            if (value instanceof Float) {
+                buf.append("\\N\t").append(value.floatValue());
+            } else {
+                buf.append(value.longValue()).append("\t\\N");
+            }
+            buf.append('\t').append(timestamp)
+                .append(series.tsvSuffix());
+        }
+    }
+
+    /** A pending call to {@link #flush}. */
+    private static final class FlushRequest {
+        /** Fires once the point with this sequence number is written. */
+        final long seq;
+        final Deferred<Object> deferred = new Deferred<Object>();
+
+        FlushRequest(final long seq) {
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Background thread writing batches of points.
+     */
+    final class Thrd extends Thread {
+        public Thrd(final int i) {
+            super("SqlInsertThread-" + i);
+        }
+
+        public void run() {
+            try {
+                loop();
+            } finally {
+                threadDone();
+            }
+        }
+
+        private void loop() {
+            while (true) {
+                final ArrayList<Point> points;
+                try {
+                    points = take();
+                } catch (InterruptedException e) {
+                    LOG.error("Insert thread interrupted", e);
+                    return;
+                }
+                if (points.isEmpty()) {
+                    LOG.info(getName() + " done, " + written + " points written");
+                    return;
+                }
+                try {
+                    write(points);
+                } catch (Throwable e) {
+                    LOG.error("Uncaught exception in insert thread", e);
+                    failUncompleted(points, e);
+                } finally {
+                    done(points);
+                }
+            }
+        }
+    }
+
+}
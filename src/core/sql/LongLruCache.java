@@ -0,0 +1,254 @@
+package net.opentsdb.core.sql;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * A bounded, thread-safe cache keyed by {@code long}s, evicting entries not
+ * used recently.
+ * <p>
+ * Like {@link LruCache} the cache is split in independently locked
+ * segments, but keys are stored unboxed: each segment is an open addressing
+ * hash table of parallel arrays, at most half full, so that a lookup
+ * allocates nothing.  Eviction uses the CLOCK approximation of LRU: a hand
+ * sweeps the table, sparing the entries used since its last pass and
+ * evicting the first one which wasn't.
+ * @param <V> The type of the values.
+ */
+public final class LongLruCache<V> {
+
+    /** Default number of segments. */
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private final Segment[] segments;
+
+    /** Maximum number of entries of the whole cache. */
+    private final int max_size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param max_size Maximum number of entries in the cache.
+     */
+    public LongLruCache(final int max_size) {
+        this(max_size, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Constructor.
+     * @param max_size Maximum number of entries in the cache.
+     * @param num_segments Number of independently locked segments.
+     * @throws IllegalArgumentException if either argument isn't positive.
+     */
+    public LongLruCache(final int max_size, final int num_segments) {
+        if (max_size <= 0) {
+            throw new IllegalArgumentException("Invalid max_size: " + max_size);
+        }
+        if (num_segments <= 0) {
+            throw new IllegalArgumentException("Invalid num_segments: " + num_segments);
+        }
+        this.max_size = max_size;
+        final int n = Math.min(num_segments, max_size);
+        segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            // Spread the remainder so the segments add up to max_size.
+            segments[i] = new Segment(max_size / n + (i < max_size % n ? 1 : 0),
+                                      evictions);
+        }
+    }
+
+    /**
+     * Returns the value mapped to a key, or {@code null}.
+     * Updates the hit / miss counters.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(final long key) {
+        final int hash = hash(key);
+        final Segment segment = segmentFor(hash);
+        final Object value;
+        synchronized (segment) {
+            value = segment.get(key, hash);
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return (V) value;
+    }
+
+    /**
+     * Maps a key to a value unless it's already mapped, evicting an entry
+     * of the segment if it's full.
+     * @return The value already mapped to this key, or {@code null} if the
+     * given value was added.
+     * @throws NullPointerException if the value is {@code null}.
+     */
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(final long key, final V value) {
+        if (value == null) {
+            throw new NullPointerException("null value for key " + key);
+        }
+        final int hash = hash(key);
+        final Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            final Object found = segment.get(key, hash);
+            if (found != null) {
+                return (V) found;
+            }
+            segment.add(key, hash, value);
+            return null;
+        }
+    }
+
+    /** Returns the number of entries in the cache. */
+    public int size() {
+        int size = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /** Returns the maximum number of entries of the cache. */
+    public int maxSize() {
+        return max_size;
+    }
+
+    /** Returns the number of lookups that found a value. */
+    public long hits() {
+        return hits.get();
+    }
+
+    /** Returns the number of lookups that didn't find a value. */
+    public long misses() {
+        return misses.get();
+    }
+
+    /** Returns the number of entries evicted to make room for new ones. */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Records the statistics of this cache.
+     * @param name The name of the metric, eg "uid.cache".
+     * @param collector The collector to use.
+     */
+    public void collectStats(final String name, final StatsCollector collector) {
+        collector.record(name, hits, "type=hits");
+        collector.record(name, misses, "type=misses");
+        collector.record(name, evictions, "type=evictions");
+        collector.record(name, size(), "type=size");
+    }
+
+    private static int hash(final long key) {
+        // Fibonacci hashing, ids are mostly sequential.
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Segment segmentFor(final int hash) {
+        return segments[(hash >>> 16) % segments.length];
+    }
+
+    /** One independently locked part of the cache. */
+    private static final class Segment {
+
+        private final int capacity;
+        private final AtomicLong evictions;
+        private final int mask;
+
+        private final long[] keys;
+        /** The values, {@code null} for free slots. */
+        private final Object[] values;
+        /** Whether each entry was used since the hand last passed it. */
+        private final boolean[] used;
+
+        int size;
+        private int hand;
+
+        Segment(final int capacity, final AtomicLong evictions) {
+            this.capacity = capacity;
+            this.evictions = evictions;
+            int length = 2;
+            while (length < capacity * 2) {
+                length <<= 1;
+            }
+            mask = length - 1;
+            keys = new long[length];
+            values = new Object[length];
+            used = new boolean[length];
+        }
+
+        Object get(final long key, final int hash) {
+            for (int i = hash & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    used[i] = true;
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        /** Adds a key known to be missing. */
+        void add(final long key, final int hash, final Object value) {
+            if (size == capacity) {
+                evict();
+            }
+            int i = hash & mask;
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            used[i] = false;
+            size++;
+        }
+
+        private void evict() {
+            while (true) {
+                final int i = hand;
+                hand = (hand + 1) & mask;
+                if (values[i] == null) {
+                    continue;
+                }
+                if (used[i]) {
+                    used[i] = false;
+                } else {
+                    remove(i);
+                    evictions.incrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Frees a slot, moving back the entries after it which would no
+         * longer be found otherwise.
+         */
+        private void remove(int free) {
+            values[free] = null;
+            size--;
+            for (int i = (free + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+                final int home = hash(keys[i]) & mask;
+                // the entry stays if its home is cyclically in (free, i]
+                if (free <= i ? (free < home && home <= i) : (free < home || home <= i)) {
+                    continue;
+                }
+                keys[free] = keys[i];
+                values[free] = values[i];
+                used[free] = used[i];
+                values[i] = null;
+                free = i;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+package net.opentsdb.core.sql;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * A bounded, thread-safe cache evicting the least recently used entries.
+ * <p>
+ * The cache is split in segments, each one being an access-ordered
+ * {@link LinkedHashMap} guarded by its own lock, so that concurrent
+ * lookups of different keys rarely contend.  Each segment holds at most
+ * {@code max_size / segments} entries, the eviction order is therefore
+ * only approximately LRU across the whole cache.
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+public final class LruCache<K, V> {
+
+    /** Default number of segments. */
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private final ArrayList<Segment> segments;
+
+    /** Maximum number of entries of the whole cache. */
+    private final int max_size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param max_size Maximum number of entries in the cache.
+     */
+    public LruCache(final int max_size) {
+        this(max_size, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Constructor.
+     * @param max_size Maximum number of entries in the cache.
+     * @param num_segments Number of independently locked segments.
+     * @throws IllegalArgumentException if either argument isn't positive.
+     */
+    public LruCache(final int max_size, final int num_segments) {
+        if (max_size <= 0) {
+            throw new IllegalArgumentException("Invalid max_size: " + max_size);
+        }
+        if (num_segments <= 0) {
+            throw new IllegalArgumentException("Invalid num_segments: " + num_segments);
+        }
+        this.max_size = max_size;
+        final int n = Math.min(num_segments, max_size);
+        segments = new ArrayList<Segment>(n);
+        for (int i = 0; i < n; i++) {
+            // Spread the remainder so the segments add up to max_size.
+            segments.add(new Segment(max_size / n + (i < max_size % n ? 1 : 0)));
+        }
+    }
+
+    /**
+     * Returns the value mapped to a key, or {@code null}.
+     * Updates the hit / miss counters.
+     */
+    public V get(final K key) {
+        final Segment segment = segmentFor(key);
+        final V value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Maps a key to a value, evicting the least recently used entry of the
+     * segment if it's full.
+     * @return The value previously mapped to this key, or {@code null}.
+     */
+    public V put(final K key, final V value) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.put(key, value);
+        }
+    }
+
+    /**
+     * Maps a key to a value unless it's already mapped.
+     * @return The value already mapped to this key, or {@code null} if the
+     * given value was added.
+     */
+    public V putIfAbsent(final K key, final V value) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            final V found = segment.get(key);
+            if (found != null) {
+                return found;
+            }
+            segment.put(key, value);
+            return null;
+        }
+    }
+
+    /**
+     * Removes the mapping of a key.
+     * @return The value that was mapped to this key, or {@code null}.
+     */
+    public V remove(final K key) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.remove(key);
+        }
+    }
+
+    /** Removes all the entries. */
+    public void clear() {
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /** Returns the number of entries in the cache. */
+    public int size() {
+        int size = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /** Returns the maximum number of entries of the cache. */
+    public int maxSize() {
+        return max_size;
+    }
+
+    /** Returns the number of lookups that found a value. */
+    public long hits() {
+        return hits.get();
+    }
+
+    /** Returns the number of lookups that didn't find a value. */
+    public long misses() {
+        return misses.get();
+    }
+
+    /** Returns the number of entries evicted to make room for new ones. */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Records the statistics of this cache.
+     * @param name The name of the metric, eg "sql.series.cache".
+     * @param collector The collector to use.
+     */
+    public void collectStats(final String name, final StatsCollector collector) {
+        collector.record(name, hits, "type=hits");
+        collector.record(name, misses, "type=misses");
+        collector.record(name, evictions, "type=evictions");
+        collector.record(name, size(), "type=size");
+    }
+
+    private Segment segmentFor(final Object key) {
+        int h = key.hashCode();
+        // Same bit spreading as java.util.HashMap, so that keys with weak
+        // low bits don't all land in the same segment.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments.get((h & 0x7FFFFFFF) % segments.size());
+    }
+
+    /** One independently locked part of the cache. */
+    private final class Segment extends LinkedHashMap<K, V> {
+
+        private final int capacity;
+
+        Segment(final int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+            if (size() > capacity) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        static final long serialVersionUID = 1418839117;
+    }
+
+}
@@ -0,0 +1,332 @@
+package net.opentsdb.core.sql;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Manages the RANGE partitions of the data table on {@code ts}.
+ * <p>
+ * The table is split in daily or weekly partitions, as set by
+ * {@code tsd.sql.partition}, each named after the first day it holds
+ * ({@code pYYYYMMDD}, UTC), followed by a {@code pmax} partition for points
+ * too far in the future.  A background thread makes sure
+ * {@code tsd.sql.partition_ahead} periods beyond the current one exist,
+ * and drops the partitions holding only points older than
+ * {@code tsd.sql.retention_days}, which is far cheaper than deleting rows.
+ * <p>
+ * A table which isn't partitioned yet is converted on the first check,
+ * with all the existing points in a {@code p0} partition.  This rebuilds
+ * the table once.
+ * <p>
+ * Queries name the partitions overlapping their time range explicitly,
+ * see {@link #select}.
+ */
+final class Partitions {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Partitions.class);
+
+    private static final long DAY = 86400;
+    private static final long WEEK = 7 * DAY;
+
+    /** Weeks start on Monday, 1970-01-05 was the first one. */
+    private static final long WEEK_OFFSET = 4 * DAY;
+
+    /** Default number of periods created ahead of the current one. */
+    private static final int DEFAULT_AHEAD = 3;
+
+    /** Default time in ms between two checks of the partitions. */
+    private static final long DEFAULT_CHECK_INTERVAL = 3600000;
+
+    private static final String MAX_PARTITION = "pmax";
+
+    private final DataSource ds;
+    private final String table;
+
+    /** Length of a partition in seconds. */
+    private final long period;
+
+    /** Number of periods created ahead of the current one. */
+    private final int ahead;
+
+    /** Points older than this many seconds are dropped, 0 to keep them all. */
+    private final long retention;
+
+    private final long check_interval;
+
+    /**
+     * Partitions of the table, by increasing upper bound, or {@code null}
+     * if unknown.  The last one is {@code pmax}.
+     */
+    private volatile Partition[] partitions;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thrd thread;
+
+    /**
+     * Constructor.
+     * @param ds The data source to use.
+     * @param table The name of the table holding data points.
+     * @param period Length of a partition in seconds, see {@link #period}.
+     */
+    Partitions(final DataSource ds, final String table, final long period) {
+        this.ds = ds;
+        this.table = table;
+        this.period = period;
+        ahead = Math.max(1, Integer.getInteger("tsd.sql.partition_ahead", DEFAULT_AHEAD));
+        retention = Math.max(0, Long.getLong("tsd.sql.retention_days", 0L)) * DAY;
+        check_interval = Math.max(1000, Long.getLong("tsd.sql.partition_check_interval",
+                                                     DEFAULT_CHECK_INTERVAL));
+        thread = new Thrd();
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the length of a partition as set by {@code tsd.sql.partition},
+     * in seconds.
+     * @return 0 if the data table isn't partitioned.
+     * @throws IllegalArgumentException if the setting is invalid.
+     */
+    static long period() {
+        final String period = System.getProperty("tsd.sql.partition", "none");
+        if ("none".equals(period)) {
+            return 0;
+        } else if ("day".equals(period)) {
+            return DAY;
+        } else if ("week".equals(period)) {
+            return WEEK;
+        }
+        throw new IllegalArgumentException("Invalid tsd.sql.partition: "
+            + period + ", must be one of none, day or week");
+    }
+
+    /**
+     * Returns the partition clause selecting the partitions which overlap
+     * {@code [start_time, end_time]}, to follow the table name in a query.
+     * @return The clause, or an empty string if it's safer to let the
+     * optimizer prune the partitions: they're not known yet, or the range
+     * reaches {@code pmax}, which other TSDs may have split since the last
+     * check.
+     */
+    String select(final long start_time, final long end_time) {
+        final Partition[] parts = partitions;
+        if (parts == null || parts.length < 2
+            || end_time >= parts[parts.length - 2].upper) {
+            return "";
+        }
+        final StringBuilder buf = new StringBuilder(" PARTITION (");
+        long lower = Long.MIN_VALUE;
+        boolean first = true;
+        for (final Partition part : parts) {
+            if (lower <= end_time && part.upper > start_time) {
+                if (!first) {
+                    buf.append(',');
+                }
+                buf.append(part.name);
+                first = false;
+            }
+            lower = part.upper;
+        }
+        return buf.append(')').toString();
+    }
+
+    /**
+     * Forgets the partitions and checks them again, for when a query
+     * naming them failed.
+     */
+    void invalidate() {
+        partitions = null;
+        synchronized (thread) {
+            thread.notify();
+        }
+    }
+
+    void collectStats(final StatsCollector collector) {
+        final Partition[] parts = partitions;
+        collector.record("sql.partitions", parts == null ? 0 : parts.length);
+        collector.record("sql.partitions.changes", created, "type=created");
+        collector.record("sql.partitions.changes", dropped, "type=dropped");
+    }
+
+    /** Returns the start of the period holding a timestamp. */
+    long periodStart(final long timestamp) {
+        final long offset = period == WEEK ? WEEK_OFFSET : 0;
+        return Math.max(0, (timestamp - offset) / period * period + offset);
+    }
+
+    /** Returns the name of the partition starting at a timestamp. */
+    static String name(final long start) {
+        final SimpleDateFormat format = new SimpleDateFormat("'p'yyyyMMdd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(start * 1000));
+    }
+
+    /**
+     * Creates the partitions ahead of time and drops the expired ones.
+     */
+    void check() throws SQLException {
+        final long now = System.currentTimeMillis() / 1000;
+        final long current = periodStart(now);
+        final long horizon = current + (ahead + 1) * period;
+        Partition[] parts = load();
+        if (parts.length == 0) {
+            LOG.warn("Partitioning " + table + ", this rebuilds the table once");
+            final StringBuilder buf = new StringBuilder("ALTER TABLE ")
+                .append(table).append(" PARTITION BY RANGE (ts) (")
+                .append("PARTITION p0 VALUES LESS THAN (").append(current).append("),");
+            appendPeriods(buf, current, horizon);
+            buf.append("PARTITION ").append(MAX_PARTITION)
+                .append(" VALUES LESS THAN MAXVALUE)");
+            execute(buf.toString());
+            parts = load();
+        } else {
+            final long last = parts.length < 2 ? current : parts[parts.length - 2].upper;
+            if (last < horizon) {
+                final StringBuilder buf = new StringBuilder("ALTER TABLE ")
+                    .append(table).append(" REORGANIZE PARTITION ")
+                    .append(MAX_PARTITION).append(" INTO (");
+                appendPeriods(buf, Math.max(last, current), horizon);
+                buf.append("PARTITION ").append(MAX_PARTITION)
+                    .append(" VALUES LESS THAN MAXVALUE)");
+                execute(buf.toString());
+                parts = load();
+            }
+        }
+        if (retention > 0) {
+            final ArrayList<String> expired = new ArrayList<String>();
+            // Always keep the last partition with a bound and pmax, so
+            // that the table keeps its layout.
+            for (int i = 0; i < parts.length - 2; i++) {
+                if (parts[i].upper <= now - retention) {
+                    expired.add(parts[i].name);
+                }
+            }
+            if (!expired.isEmpty()) {
+                final StringBuilder buf = new StringBuilder("ALTER TABLE ")
+                    .append(table).append(" DROP PARTITION ");
+                for (int i = 0; i < expired.size(); i++) {
+                    if (i > 0) {
+                        buf.append(',');
+                    }
+                    buf.append(expired.get(i));
+                }
+                execute(buf.toString());
+                dropped.addAndGet(expired.size());
+                LOG.info("Dropped expired partitions of " + table + ": " + expired);
+                parts = load();
+            }
+        }
+        partitions = parts;
+    }
+
+    /** Appends one partition per period of {@code [from, to)}. */
+    private void appendPeriods(final StringBuilder buf, final long from, final long to) {
+        for (long start = from; start < to; start += period) {
+            buf.append("PARTITION ").append(name(start))
+                .append(" VALUES LESS THAN (").append(start + period).append("),");
+            created.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reads the partitions of the table.
+     * @return The partitions, empty if the table isn't partitioned.
+     */
+    private Partition[] load() throws SQLException {
+        final ArrayList<Partition> parts = new ArrayList<Partition>();
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = ds.getConnection();
+            st = conn.prepareStatement("SELECT PARTITION_NAME,PARTITION_DESCRIPTION"
+                + " FROM information_schema.PARTITIONS"
+                + " WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME=?"
+                + " ORDER BY PARTITION_ORDINAL_POSITION");
+            st.setString(1, table);
+            rs = st.executeQuery();
+            while (rs.next()) {
+                final String name = rs.getString(1);
+                if (name == null) {
+                    break;  // not partitioned
+                }
+                final String bound = rs.getString(2);
+                parts.add(new Partition(name, "MAXVALUE".equals(bound)
+                                        ? Long.MAX_VALUE : Long.parseLong(bound)));
+            }
+        } finally {
+            DataSourceUtil.close(rs, st, conn);
+        }
+        return parts.toArray(new Partition[parts.size()]);
+    }
+
+    private void execute(final String query) throws SQLException {
+        LOG.info(query);
+        Connection conn = null;
+        Statement st = null;
+        try {
+            conn = ds.getConnection();
+            st = conn.createStatement();
+            st.executeUpdate(query);
+        } finally {
+            if (st != null) {
+                st.close();
+            }
+            DataSourceUtil.close(null, null, conn);
+        }
+    }
+
+    /** A partition and the bound below which its points are. */
+    private static final class Partition {
+        final String name;
+        final long upper;
+
+        Partition(final String name, final long upper) {
+            this.name = name;
+            this.upper = upper;
+        }
+    }
+
+    /** Checks the partitions periodically. */
+    private final class Thrd extends Thread {
+        Thrd() {
+            super("SqlPartitions");
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    check();
+                } catch (Exception e) {
+                    LOG.error("Unable to check the partitions of " + table, e);
+                }
+                try {
+                    synchronized (this) {
+                        wait(partitions == null ? Math.min(60000, check_interval)
+                             : check_interval);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package net.opentsdb.core.sql;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Points read by recent queries, so that refreshing a query only reads the
+ * points written since, see {@link StorageQuerySql}.
+ * <p>
+ * Entries are keyed by everything but the time range that makes a query
+ * read different rows, and hold the points of each series of
+ * {@code [start, sealed)}, sealed being aligned on the downsampling
+ * interval and at least {@code tsd.sql.query_cache_delay} seconds (default
+ * 120) in the past, so that late points are still seen.  Points this TSD
+ * hasn't written yet, queued or in its spool after a db stall, hold sealed
+ * back further: it stays {@code query_cache_delay} before the oldest of
+ * them.  The delay must however exceed the ingest lag of the other TSDs
+ * writing to the same db, which this one can't see.  A query starting
+ * within an entry reads the points from {@code sealed} on only, and
+ * replaces the entry with one going as far as its own range allows.
+ * <p>
+ * The cache holds at most {@code max_bytes} of points, counted 16 bytes
+ * each, the least recently used entries being evicted first.
+ */
+final class QueryCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryCache.class);
+
+    private static final long DEFAULT_DELAY = 120;
+
+    /** Rough size of an entry holding no points. */
+    private static final long ENTRY_OVERHEAD = 256;
+
+    /** Rough size of the fragments list of a series, without its points. */
+    private static final long SERIES_OVERHEAD = 128;
+
+    private final long max_bytes;
+
+    /** Seconds before points may be cached. */
+    private final long delay;
+
+    /** Entries by access order, guarded by {@code this}. */
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** Total size of the entries, guarded by {@code this}. */
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong partial_hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    QueryCache(final long max_bytes) {
+        this.max_bytes = max_bytes;
+        delay = Math.max(0, Long.getLong("tsd.sql.query_cache_delay", DEFAULT_DELAY));
+        LOG.info("Initialized query cache, size: " + (max_bytes >> 20) + "MB");
+    }
+
+    /**
+     * Looks up the points cached for a query.
+     * @param key The key of the query, see {@link StorageQuerySql}.
+     * @param start_time The start of the query.
+     * @param end_time The end (inclusive) of the query.
+     * @return The entry, or {@code null} if there's none holding the start
+     * of the query.
+     */
+    Entry get(final String key, final long start_time, final long end_time) {
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null || entry.start > start_time || entry.sealed <= start_time) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.sealed > end_time) {
+            hits.incrementAndGet();
+        } else {
+            partial_hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the end (exclusive) of the points of a query which may be
+     * cached, aligned on {@code interval}.
+     * @param oldest_pending The timestamp of the oldest point not written
+     * yet, {@code Long.MAX_VALUE} if none.
+     */
+    long sealedUntil(final long end_time, final int interval,
+                     final long oldest_pending) {
+        final long now = Math.min(System.currentTimeMillis() / 1000, oldest_pending);
+        final long sealed = Math.min(now - delay, end_time + 1);
+        return sealed - sealed % interval;
+    }
+
+    /** Replaces the entry of a query, evicting others if needed. */
+    synchronized void put(final String key, final Entry entry) {
+        if (entry.bytes > max_bytes) {
+            remove(key);
+            return;
+        }
+        final Entry old = entries.put(key, entry);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += entry.bytes;
+        final Iterator<Entry> it = entries.values().iterator();
+        while (bytes > max_bytes) {
+            bytes -= it.next().bytes;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(final String key) {
+        final Entry old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+    }
+
+    void collectStats(final StatsCollector collector) {
+        collector.record("sql.query.cache", hits, "type=hits");
+        collector.record("sql.query.cache", partial_hits, "type=partial_hits");
+        collector.record("sql.query.cache", misses, "type=misses");
+        collector.record("sql.query.cache", evictions, "type=evictions");
+        synchronized (this) {
+            collector.record("sql.query.cache.size", entries.size());
+            collector.record("sql.query.cache.bytes", bytes);
+        }
+    }
+
+    /**
+     * The points of a query.  Entries and their points are never modified
+     * once cached, queries take windows of the points.
+     */
+    static final class Entry {
+        /** Start of the points held. */
+        final long start;
+
+        /** End (exclusive) of the points held. */
+        final long sealed;
+
+        /** Fragments of the points of each series, by series key. */
+        final Map<byte[], List<SpanViewSql>> series;
+
+        final long bytes;
+
+        Entry(final long start, final long sealed,
+              final Map<byte[], List<SpanViewSql>> series) {
+            this.start = start;
+            this.sealed = sealed;
+            this.series = series;
+            long bytes = ENTRY_OVERHEAD;
+            for (final Map.Entry<byte[], List<SpanViewSql>> e : series.entrySet()) {
+                bytes += SERIES_OVERHEAD + e.getKey().length;
+                for (final SpanViewSql view : e.getValue()) {
+                    bytes += view.bytes();
+                }
+            }
+            this.bytes = bytes;
+        }
+    }
+
+}
@@ -0,0 +1,408 @@
+package net.opentsdb.core.sql;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.core.Aggregator;
+import net.opentsdb.core.Aggregators;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Maintains the 1 minute and 1 hour rollups of the data table.
+ * <p>
+ * Enabled by {@code tsd.sql.rollups}.  Each rollup table holds the min,
+ * max, sum and count of the points of every series per bucket, keyed like
+ * the data table: by metric and tag columns (with 0 for unset tags, so
+ * that they can be part of the primary key) with the wide schema, by
+ * series id with the narrow one.
+ * <p>
+ * A background thread computes the buckets once they're closed, that is
+ * {@code tsd.sql.rollup_delay} seconds (default 120) after their end: the
+ * minute buckets from the raw points, the hour buckets from the minute
+ * ones.  A bucket is always recomputed as a whole, so running the job
+ * again, or on several TSDs, is harmless.  Points written later than the
+ * delay, in buckets already computed, are reported by the
+ * {@link InsertQueue} through {@link #pointsWritten}: the job then goes
+ * back to the oldest of those buckets and recomputes everything since.
+ * Points written by another process, such as the import tool, are only
+ * seen by its own rollups, which is why the import tool rebuilds the range
+ * it loaded with {@link #rebuild}.  The buckets are read
+ * by time range, through the {@code ts} keys of the data table and of the
+ * minute rollup, see create_tables.sql: without them every update scans
+ * the whole table.
+ * <p>
+ * Queries use the coarsest rollup whose bucket divides their sample
+ * interval, see {@link #choose}, for the part of their range the rollups
+ * cover, and the raw points for the rest.
+ * <p>
+ * When the data table is partitioned, the rollup tables are partitioned
+ * the same way, so that {@code tsd.sql.retention_days} expires them along
+ * with the raw points, see {@link Partitions}.
+ */
+final class Rollups {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Rollups.class);
+
+    /** Length of the buckets of each rollup, in seconds, finest first. */
+    static final int[] INTERVALS = { 60, 3600 };
+
+    /** Suffixes appended to the data table to name the rollup tables. */
+    private static final String[] SUFFIXES = { "_1m", "_1h" };
+
+    /** Key columns of the data table, wide schema. */
+    private static final String WIDE_KEY = "metricid,hostid,t0_valueid,"
+        + "t1_valueid,t2_valueid,t3_valueid,t4_valueid,t5_valueid,t6_valueid";
+
+    /** Key of the raw points, wide schema: NULL tags become 0. */
+    private static final String WIDE_RAW_KEY = "metricid,IFNULL(hostid,0),"
+        + "IFNULL(t0_valueid,0),IFNULL(t1_valueid,0),IFNULL(t2_valueid,0),"
+        + "IFNULL(t3_valueid,0),IFNULL(t4_valueid,0),IFNULL(t5_valueid,0),"
+        + "IFNULL(t6_valueid,0)";
+
+    private static final String NARROW_KEY = "series_id";
+
+    /** Value of a raw point, whatever its type. */
+    private static final String RAW_VALUE = "IFNULL(val_dbl,val_int)";
+
+    /** Number of buckets computed per statement. */
+    private static final int BUCKETS_PER_STATEMENT = 60;
+
+    private static final long DEFAULT_DELAY = 120;
+    private static final long DEFAULT_CHECK_INTERVAL = 60000;
+
+    private final DataSource ds;
+    private final String table;
+    private final String[] tables = new String[INTERVALS.length];
+
+    /** Statements computing the buckets of each rollup in a time range. */
+    private final String[] update_queries = new String[INTERVALS.length];
+
+    /** Seconds after their end before buckets are computed. */
+    private final long delay;
+
+    private final long check_interval;
+
+    /**
+     * End (exclusive) of the range each rollup is computed for, 0 until
+     * known.
+     */
+    private final long[] watermarks = new long[INTERVALS.length];
+
+    /**
+     * End of the minute buckets being computed, past the watermark.
+     * Guarded by {@link #watermarks}.
+     */
+    private long computing;
+
+    /**
+     * Start of the oldest minute bucket written to after being computed,
+     * {@code Long.MAX_VALUE} if none.  Guarded by {@link #watermarks}.
+     */
+    private long stale = Long.MAX_VALUE;
+
+    private final AtomicLong buckets = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param ds The data source to use.
+     * @param table The name of the table holding data points.
+     * @param narrow Whether the data table has the narrow schema.
+     * @param period Length of the partitions of the data table in seconds,
+     * 0 if it isn't partitioned.
+     */
+    Rollups(final DataSource ds, final String table, final boolean narrow,
+            final long period) {
+        this.ds = ds;
+        this.table = table;
+        delay = Math.max(0, Long.getLong("tsd.sql.rollup_delay", DEFAULT_DELAY));
+        check_interval = Math.max(1000, Long.getLong("tsd.sql.rollup_check_interval",
+                                                     DEFAULT_CHECK_INTERVAL));
+        final String key = narrow ? NARROW_KEY : WIDE_KEY;
+        for (int i = 0; i < INTERVALS.length; i++) {
+            tables[i] = table + SUFFIXES[i];
+            final String source_key;
+            final String aggregates;
+            if (i == 0) {
+                source_key = narrow ? NARROW_KEY : WIDE_RAW_KEY;
+                aggregates = "MIN(" + RAW_VALUE + "),MAX(" + RAW_VALUE + "),SUM("
+                    + RAW_VALUE + "),COUNT(*)";
+            } else {
+                source_key = key;
+                aggregates = "MIN(val_min),MAX(val_max),SUM(val_sum),SUM(val_cnt)";
+            }
+            final int nkeys = key.split(",").length;
+            final StringBuilder group_by = new StringBuilder();
+            for (int j = 1; j <= nkeys + 1; j++) {
+                group_by.append(j == 1 ? "" : ",").append(j);
+            }
+            update_queries[i] = "INSERT INTO " + tables[i] + " (" + key
+                + ",ts,val_min,val_max,val_sum,val_cnt) SELECT " + source_key
+                + ",ts-ts%" + INTERVALS[i] + ',' + aggregates
+                + " FROM " + (i == 0 ? table : tables[i - 1])
+                + " WHERE ts>=? AND ts<? GROUP BY " + group_by
+                + " ON DUPLICATE KEY UPDATE val_min=VALUES(val_min),"
+                + "val_max=VALUES(val_max),val_sum=VALUES(val_sum),"
+                + "val_cnt=VALUES(val_cnt)";
+        }
+        if (period > 0) {
+            // their own threads maintain them
+            for (final String rollup_table : tables) {
+                new Partitions(ds, rollup_table, period);
+            }
+        }
+        final Thrd thread = new Thrd();
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Picks the rollup to read for a downsampled query.
+     * @param sample_interval The sample interval of the query, in seconds.
+     * @param downsampler The downsampling function of the query.
+     * @param pushdown Whether the sql db downsamples the query.  Averages
+     * are then computed from the sums and counts of the buckets of each
+     * interval, and can be read from the rollups.
+     * @return The index of the coarsest rollup whose buckets divide the
+     * sample interval and which can compute the downsampler, or -1 if the
+     * raw points must be read.
+     */
+    static int choose(final int sample_interval, final Aggregator downsampler,
+                      final boolean pushdown) {
+        if (sample_interval <= 0 || (valueColumn(downsampler) == null
+            && !(pushdown && downsampler == Aggregators.AVG))) {
+            return -1;
+        }
+        for (int i = INTERVALS.length - 1; i >= 0; i--) {
+            if (sample_interval % INTERVALS[i] == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the expression giving the value of a bucket for a
+     * downsampler, or {@code null} if the rollups can't compute it.
+     * That's the case of averages: the average of the bucket averages is
+     * off as soon as buckets don't all hold the same number of points.
+     */
+    static String valueColumn(final Aggregator downsampler) {
+        if (downsampler == Aggregators.MIN) {
+            return "val_min";
+        } else if (downsampler == Aggregators.MAX) {
+            return "val_max";
+        } else if (downsampler == Aggregators.SUM) {
+            return "val_sum";
+        }
+        return null;
+    }
+
+    /** Returns the name of a rollup table. */
+    String table(final int rollup) {
+        return tables[rollup];
+    }
+
+    /**
+     * Returns the end (exclusive) of the time range a rollup covers, 0 if
+     * it doesn't cover anything yet.
+     */
+    long coveredUntil(final int rollup) {
+        synchronized (watermarks) {
+            return watermarks[rollup];
+        }
+    }
+
+    /**
+     * Records that points were committed to the data table, so that the
+     * buckets they fall in get recomputed if they already were.
+     * @param oldest The timestamp of the oldest of the points.
+     */
+    void pointsWritten(final long oldest) {
+        synchronized (watermarks) {
+            if (oldest < Math.max(watermarks[0], computing)) {
+                stale = Math.min(stale, oldest - oldest % INTERVALS[0]);
+            }
+        }
+    }
+
+    /**
+     * Recomputes the buckets of a time range, now, whatever the watermarks.
+     * @param start The start of the range, in seconds.
+     * @param end The end (exclusive) of the range, in seconds.
+     */
+    void rebuild(final long start, final long end) throws SQLException {
+        for (int i = 0; i < INTERVALS.length; i++) {
+            final int interval = INTERVALS[i];
+            final long last = end + (interval - end % interval) % interval;
+            for (long from = start - start % interval; from < last;
+                 from += interval * BUCKETS_PER_STATEMENT) {
+                final long to = Math.min(last, from + interval * BUCKETS_PER_STATEMENT);
+                execute(update_queries[i], from, to);
+                buckets.addAndGet((to - from) / interval);
+            }
+        }
+    }
+
+    void collectStats(final StatsCollector collector) {
+        collector.record("sql.rollups.updates", buckets);
+        collector.record("sql.rollups.updates", errors, "type=errors");
+        final long now = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < INTERVALS.length; i++) {
+            final long watermark = coveredUntil(i);
+            collector.record("sql.rollups.lag", watermark == 0 ? 0 : now - watermark,
+                             "rollup=" + SUFFIXES[i].substring(1));
+        }
+    }
+
+    /** Computes the buckets closed or written to since the last call. */
+    void update() throws SQLException {
+        final long now = System.currentTimeMillis() / 1000;
+        rewind();
+        for (int i = 0; i < INTERVALS.length; i++) {
+            final int interval = INTERVALS[i];
+            // A bucket is closed once its source is complete.
+            final long source_end = i == 0 ? now - delay : coveredUntil(i - 1);
+            final long end = source_end - source_end % interval;
+            long start = coveredUntil(i);
+            if (start == 0) {
+                start = initialWatermark(i, end);
+            }
+            while (start < end) {
+                final long chunk_end = Math.min(end, start + interval * BUCKETS_PER_STATEMENT);
+                if (i == 0) {
+                    // points committed while we read are recomputed later
+                    synchronized (watermarks) {
+                        computing = chunk_end;
+                    }
+                }
+                execute(update_queries[i], start, chunk_end);
+                buckets.addAndGet((chunk_end - start) / interval);
+                start = chunk_end;
+                synchronized (watermarks) {
+                    watermarks[i] = start;
+                }
+            }
+            if (coveredUntil(i) == 0) {
+                synchronized (watermarks) {
+                    watermarks[i] = start;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the watermarks back to the oldest bucket written to since it
+     * was computed, so that {@link #update} recomputes it and the buckets
+     * following it.
+     */
+    private void rewind() {
+        final long from;
+        synchronized (watermarks) {
+            from = stale;
+            stale = Long.MAX_VALUE;
+            if (from == Long.MAX_VALUE) {
+                return;
+            }
+            for (int i = 0; i < INTERVALS.length; i++) {
+                watermarks[i] = Math.min(watermarks[i], from - from % INTERVALS[i]);
+            }
+        }
+        LOG.info("Points written to computed buckets of " + table
+                 + ", recomputing the rollups from " + from);
+    }
+
+    /**
+     * Finds where to resume computing a rollup: at its last bucket, which
+     * may not have been complete, or at the first point of its source.
+     */
+    private long initialWatermark(final int rollup, final long end) throws SQLException {
+        final int interval = INTERVALS[rollup];
+        long ts = maxTs(tables[rollup]);
+        if (ts < 0) {
+            ts = minTs(rollup == 0 ? table : tables[rollup - 1]);
+            if (ts < 0) {
+                return end;
+            }
+            LOG.info("Computing " + tables[rollup] + " from " + ts
+                     + ", this may take a while");
+        }
+        return ts - ts % interval;
+    }
+
+    private long maxTs(final String table) throws SQLException {
+        return selectTs("SELECT MAX(ts) FROM " + table);
+    }
+
+    private long minTs(final String table) throws SQLException {
+        return selectTs("SELECT MIN(ts) FROM " + table);
+    }
+
+    /** Runs a query returning a timestamp, -1 if NULL. */
+    private long selectTs(final String query) throws SQLException {
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = ds.getConnection();
+            st = conn.prepareStatement(query);
+            rs = st.executeQuery();
+            if (rs.next()) {
+                final long ts = rs.getLong(1);
+                if (!rs.wasNull()) {
+                    return ts;
+                }
+            }
+            return -1;
+        } finally {
+            DataSourceUtil.close(rs, st, conn);
+        }
+    }
+
+    private void execute(final String query, final long start,
+                         final long end) throws SQLException {
+        Connection conn = null;
+        PreparedStatement st = null;
+        try {
+            conn = ds.getConnection();
+            st = conn.prepareStatement(query);
+            st.setLong(1, start);
+            st.setLong(2, end);
+            st.executeUpdate();
+        } finally {
+            DataSourceUtil.close(null, st, conn);
+        }
+    }
+
+    /** Computes the rollups periodically. */
+    private final class Thrd extends Thread {
+        Thrd() {
+            super("SqlRollups");
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    update();
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    LOG.error("Unable to update the rollups of " + table, e);
+                }
+                try {
+                    Thread.sleep(check_interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+}
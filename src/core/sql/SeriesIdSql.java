@@ -0,0 +1,273 @@
+package net.opentsdb.core.sql;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.core.StorageException;
+
+/**
+ * Maps time series (a metric id and a set of tag ids) to series ids, for
+ * the narrow schema.
+ * <p>
+ * A series is stored once in the series table, its tags encoded as a
+ * string of {@code tagkid=tagvid} pairs separated by commas and sorted by
+ * tag name id (see {@link #encodeTags}), which is unique per metric.  Data
+ * points then only carry the series id.
+ * <p>
+ * The series of the metrics queried are cached, see {@link #getSeries}.
+ * Ids are assigned in increasing order, so a cached metric is brought up
+ * to date by reading the series with a greater id than the last one it
+ * holds.  It's still read again as a whole every
+ * {@code tsd.sql.series_reload_interval} ms, in case ids assigned by other
+ * TSDs committed out of order.
+ */
+public final class SeriesIdSql {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SeriesIdSql.class);
+
+    /** Maximum length of the encoded tags, the size of the tags column. */
+    static final int MAX_TAGS_LENGTH = 700;
+
+    private final DataSource ds;
+    private final String table;
+
+    private final String select_id_query;
+    private final String insert_id_query;
+    private final String select_metric_query;
+    private final String select_metric_after_query;
+
+    /** Default maximum number of metrics whose series are cached. */
+    private static final int DEFAULT_METRIC_CACHE_SIZE = 10000;
+
+    /** Default time in ms after which the series of a metric are read again. */
+    private static final long DEFAULT_RELOAD_INTERVAL = 600000;
+
+    private static final long RELOAD_INTERVAL =
+        Long.getLong("tsd.sql.series_reload_interval", DEFAULT_RELOAD_INTERVAL);
+
+    /** Series of the metrics queried, keyed by metric id. */
+    private final LruCache<Long, MetricSeries> metric_series =
+        new LruCache<Long, MetricSeries>(Integer.getInteger(
+            "tsd.sql.series_metric_cache_size", DEFAULT_METRIC_CACHE_SIZE));
+
+    public SeriesIdSql(final DataSource ds, final String table) {
+        this.ds = ds;
+        this.table = table;
+        select_id_query = "SELECT id FROM " + table + " WHERE metricid=? AND tags=?";
+        insert_id_query = "INSERT IGNORE INTO " + table + " (metricid,tags) VALUES(?,?)";
+        select_metric_query = "SELECT id,tags FROM " + table + " WHERE metricid=?";
+        select_metric_after_query = select_metric_query + " AND id>?";
+    }
+
+    /**
+     * Encodes a set of tags.
+     * @param tagks Ids of the tag names.
+     * @param tagvs Ids of the tag values, in the same order.
+     * @return The tags as {@code tagkid=tagvid} pairs sorted by tag name id.
+     * @throws IllegalArgumentException if the encoded tags are too long.
+     */
+    public static String encodeTags(final long[] tagks, final long[] tagvs) {
+        final long[] pairs = new long[tagks.length];
+        for (int i = 0; i < tagks.length; i++) {
+            pairs[i] = tagks[i];
+        }
+        Arrays.sort(pairs);
+        final StringBuilder buf = new StringBuilder(tagks.length * 16);
+        for (int i = 0; i < pairs.length; i++) {
+            // Tags sets are small, a linear search beats building a map.
+            int j = 0;
+            while (tagks[j] != pairs[i]) {
+                j++;
+            }
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append(tagks[j]).append('=').append(tagvs[j]);
+        }
+        if (buf.length() > MAX_TAGS_LENGTH) {
+            throw new IllegalArgumentException("Too many tags: " + buf);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Decodes tags encoded by {@link #encodeTags}.
+     * @return The tag name and value ids, interleaved.
+     */
+    public static long[] decodeTags(final String tags) {
+        if (tags.length() == 0) {
+            return new long[0];
+        }
+        int n = 1;
+        for (int i = 0; i < tags.length(); i++) {
+            if (tags.charAt(i) == ',') {
+                n++;
+            }
+        }
+        final long[] kvs = new long[n * 2];
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            int comma = tags.indexOf(',', start);
+            if (comma < 0) {
+                comma = tags.length();
+            }
+            final int eq = tags.indexOf('=', start);
+            if (eq < 0 || eq > comma) {
+                throw new IllegalArgumentException("Invalid tags: " + tags);
+            }
+            kvs[i * 2] = Long.parseLong(tags.substring(start, eq));
+            kvs[i * 2 + 1] = Long.parseLong(tags.substring(eq + 1, comma));
+            start = comma + 1;
+        }
+        return kvs;
+    }
+
+    /**
+     * Returns the id of a series, creating it if needed.
+     * @param metricid Id of the metric.
+     * @param tags Tags encoded by {@link #encodeTags}.
+     * @throws StorageException if the series couldn't be looked up or
+     * created.
+     */
+    public long getOrCreateId(final long metricid, final String tags) {
+        long id = getId(metricid, tags);
+        if (id != 0) {
+            return id;
+        }
+        Connection conn = null;
+        PreparedStatement st = null;
+        try {
+            conn = ds.getConnection();
+            st = conn.prepareStatement(insert_id_query);
+            st.setLong(1, metricid);
+            st.setString(2, tags);
+            st.executeUpdate();
+        } catch (SQLException e) {
+            throw new StorageException("Unable to insert series: " + e.getMessage());
+        } finally {
+            DataSourceUtil.close(null, st, conn);
+        }
+        // Another TSD may have created it first, the unique key on
+        // (metricid, tags) makes sure there's only one id either way.
+        id = getId(metricid, tags);
+        if (id == 0) {
+            throw new StorageException("Unable to assign series id for metricid="
+                                       + metricid + " tags=" + tags);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of a series, or 0 if it doesn't exist.
+     * @throws StorageException if the series couldn't be looked up.
+     */
+    public long getId(final long metricid, final String tags) {
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = ds.getConnection();
+            st = conn.prepareStatement(select_id_query);
+            st.setLong(1, metricid);
+            st.setString(2, tags);
+            rs = st.executeQuery();
+            if (rs.next()) {
+                return rs.getLong(1);
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Unable to get series id: " + e.getMessage());
+        } finally {
+            DataSourceUtil.close(rs, st, conn);
+        }
+        return 0;
+    }
+
+    /**
+     * Returns all the series of a metric, from the cache brought up to
+     * date.
+     * @return A read-only map from series id to encoded tags.
+     * @throws StorageException if the series couldn't be read.
+     */
+    public Map<Long, String> getSeries(final long metricid) {
+        final long now = System.currentTimeMillis();
+        final MetricSeries cached = metric_series.get(metricid);
+        if (cached == null || now - cached.loaded > RELOAD_INTERVAL) {
+            final LinkedHashMap<Long, String> series = new LinkedHashMap<Long, String>();
+            readSeries(metricid, 0, series);
+            metric_series.put(metricid, new MetricSeries(series, now));
+            return Collections.unmodifiableMap(series);
+        }
+        final LinkedHashMap<Long, String> added = new LinkedHashMap<Long, String>();
+        readSeries(metricid, cached.max_id, added);
+        if (added.isEmpty()) {
+            return Collections.unmodifiableMap(cached.series);
+        }
+        final LinkedHashMap<Long, String> series =
+            new LinkedHashMap<Long, String>(cached.series);
+        series.putAll(added);
+        metric_series.put(metricid, new MetricSeries(series, cached.loaded));
+        return Collections.unmodifiableMap(series);
+    }
+
+    /**
+     * Reads the series of a metric whose id is greater than a given one,
+     * all of them if 0.
+     */
+    private void readSeries(final long metricid, final long after_id,
+                            final Map<Long, String> series) {
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = ds.getConnection();
+            if (after_id > 0) {
+                st = conn.prepareStatement(select_metric_after_query);
+                st.setLong(2, after_id);
+            } else {
+                st = conn.prepareStatement(select_metric_query);
+            }
+            st.setLong(1, metricid);
+            rs = st.executeQuery();
+            while (rs.next()) {
+                series.put(rs.getLong(1), rs.getString(2));
+            }
+        } catch (SQLException e) {
+            LOG.error("Unable to get series of metricid=" + metricid
+                      + " from " + table + ": " + e.getMessage());
+            throw new StorageException("Unable to get series: " + e.getMessage());
+        } finally {
+            DataSourceUtil.close(rs, st, conn);
+        }
+    }
+
+    /** The series of a metric, never modified once cached. */
+    private static final class MetricSeries {
+        final Map<Long, String> series;
+        /** Greatest series id of the metric. */
+        final long max_id;
+        /** When the series were last read as a whole. */
+        final long loaded;
+
+        MetricSeries(final Map<Long, String> series, final long loaded) {
+            this.series = series;
+            this.loaded = loaded;
+            long max = 0;
+            for (final Long id : series.keySet()) {
+                max = Math.max(max, id);
+            }
+            max_id = max;
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package net.opentsdb.core.sql;
+
+/**
+ * Hash map keyed by a fixed number of longs, the ids identifying a series
+ * in a row of a query (tag value ids, or a series id).
+ * <p>
+ * Keys are stored inline in a single array with open addressing, so that
+ * looking a row up allocates nothing: only adding a series copies its key.
+ * Not thread safe.
+ */
+final class SeriesMap<V> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Number of longs in a key. */
+    private final int width;
+
+    /** Keys, {@code width} longs per slot. */
+    private long[] keys;
+
+    /** Values, {@code null} for free slots. */
+    private Object[] values;
+
+    private int size;
+
+    SeriesMap(final int width) {
+        this.width = width;
+        keys = new long[INITIAL_CAPACITY * width];
+        values = new Object[INITIAL_CAPACITY];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the value of a key, or {@code null}.
+     * @param key The key, only its first {@code width} longs are used.
+     */
+    @SuppressWarnings("unchecked")
+    V get(final long[] key) {
+        final int mask = values.length - 1;
+        for (int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+            if (matches(slot, key)) {
+                return (V) values[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Maps a key to a value, replacing the previous value if any.
+     * @param key The key, which is copied.
+     * @param value The value, not {@code null}.
+     */
+    void put(final long[] key, final V value) {
+        if ((size + 1) * 2 > values.length) {
+            resize();
+        }
+        final int mask = values.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (matches(slot, key)) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        System.arraycopy(key, 0, keys, slot * width, width);
+        values[slot] = value;
+        size++;
+    }
+
+    private boolean matches(final int slot, final long[] key) {
+        final int offset = slot * width;
+        for (int i = 0; i < width; i++) {
+            if (keys[offset + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(final long[] key) {
+        long h = 0;
+        for (int i = 0; i < width; i++) {
+            h = h * 31 + key[i];
+        }
+        // spread the bits, ids are small and often consecutive
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void resize() {
+        final long[] old_keys = keys;
+        final Object[] old_values = values;
+        keys = new long[old_keys.length * 2];
+        values = new Object[old_values.length * 2];
+        final int mask = values.length - 1;
+        final long[] key = new long[width];
+        for (int i = 0; i < old_values.length; i++) {
+            if (old_values[i] == null) {
+                continue;
+            }
+            System.arraycopy(old_keys, i * width, key, 0, width);
+            int slot = hash(key) & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            System.arraycopy(key, 0, keys, slot * width, width);
+            values[slot] = old_values[i];
+        }
+    }
+
+    public String toString() {
+        return "SeriesMap(width=" + width + ", size=" + size
+            + ", capacity=" + values.length + ")";
+    }
+
+}
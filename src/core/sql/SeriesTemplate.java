@@ -0,0 +1,219 @@
+package net.opentsdb.core.sql;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The resolved, pre-encoded form of a time series (a metric and its tags)
+ * as written in the data table.
+ * <p>
+ * Once a series has been resolved, writing one of its points only requires
+ * appending the value and the timestamp to {@link #valuesSuffix}, or to
+ * {@link #tsvSuffix} in bulk mode.
+ * <p>
+ * With the narrow schema ({@code tsd.sql.schema=narrow}) a series is only
+ * identified by its {@link #series_id}.
+ */
+final class SeriesTemplate {
+
+    /** Number of tag columns: hostid followed by t0 ... t6. */
+    static final int NUM_TAG_COLUMNS = 8;
+
+    /**
+     * Columns written for every point, in order.  The value and timestamp
+     * come first so that the rest of the row is the same for all the points
+     * of a series.  Tags that aren't set are NULL.
+     */
+    static final String COLUMNS = "val_int,val_dbl,ts,metricid,hostid,"
+        + "t0_valueid,t1_valueid,t2_valueid,t3_valueid,"
+        + "t4_valueid,t5_valueid,t6_valueid";
+
+    /** Columns written for every point with the narrow schema, in order. */
+    static final String NARROW_COLUMNS = "val_int,val_dbl,ts,series_id";
+
+    /** Tag ids of narrow series, which have none. */
+    private static final long[] NO_TAGIDS = new long[NUM_TAG_COLUMNS];
+
+    /** Id of the metric. */
+    final long metricid;
+
+    /**
+     * Ids of the tag values, indexed like the tag columns (host first, then
+     * t0 ... t6), 0 for a tag that isn't set.
+     */
+    final long[] tagids;
+
+    /** Id of the series with the narrow schema, 0 with the wide one. */
+    final long series_id;
+
+    /**
+     * The end of a row of VALUES, following the timestamp:
+     * {@code ",metricid,hostid,t0_valueid,...)"}.  Built lazily, see
+     * {@link #valuesSuffix()}.
+     */
+    private String values_suffix;
+
+    /**
+     * The end of a line of a bulk load file, following the timestamp:
+     * {@code "\tmetricid\thostid\tt0_valueid...\n"}, with {@code \N} for
+     * NULL.  Built lazily, see {@link #tsvSuffix()}.
+     */
+    private String tsv_suffix;
+
+    SeriesTemplate(final long metricid, final long[] tagids) {
+        if (tagids.length != NUM_TAG_COLUMNS) {
+            throw new IllegalArgumentException("Wrong number of tag ids: "
+                                               + tagids.length);
+        }
+        this.metricid = metricid;
+        this.tagids = tagids;
+        this.series_id = 0;
+    }
+
+    /** Constructor for a series of the narrow schema. */
+    SeriesTemplate(final long series_id) {
+        if (series_id <= 0) {
+            throw new IllegalArgumentException("Invalid series id: " + series_id);
+        }
+        this.metricid = 0;
+        this.tagids = NO_TAGIDS;
+        this.series_id = series_id;
+    }
+
+    /**
+     * Returns whether the narrow schema is used, as set by
+     * {@code tsd.sql.schema}.
+     * @throws IllegalArgumentException if the schema is invalid.
+     */
+    static boolean narrowSchema() {
+        final String schema = System.getProperty("tsd.sql.schema", "wide");
+        if ("wide".equals(schema)) {
+            return false;
+        } else if ("narrow".equals(schema)) {
+            return true;
+        }
+        throw new IllegalArgumentException("Invalid tsd.sql.schema: "
+            + schema + ", must be one of wide or narrow");
+    }
+
+    /** Returns the columns written for every point with a schema. */
+    static String columns(final boolean narrow) {
+        return narrow ? NARROW_COLUMNS : COLUMNS;
+    }
+
+    /** Returns the end of a row of VALUES, following the timestamp. */
+    String valuesSuffix() {
+        // Racy but harmless: concurrent callers build equal strings.
+        String suffix = values_suffix;
+        if (suffix == null) {
+            values_suffix = suffix = encode(',', "NULL", ')');
+        }
+        return suffix;
+    }
+
+    /** Returns the end of a line of a bulk load file, following the timestamp. */
+    String tsvSuffix() {
+        String suffix = tsv_suffix;
+        if (suffix == null) {
+            tsv_suffix = suffix = encode('\t', "\\N", '\n');
+        }
+        return suffix;
+    }
+
+    private String encode(final char separator, final String nul, final char end) {
+        if (series_id != 0) {
+            return new StringBuilder(24).append(separator).append(series_id)
+                .append(end).toString();
+        }
+        final StringBuilder buf = new StringBuilder(12 * (NUM_TAG_COLUMNS + 1));
+        buf.append(separator).append(metricid);
+        for (int i = 0; i < NUM_TAG_COLUMNS; i++) {
+            buf.append(separator);
+            if (tagids[i] == 0) {
+                buf.append(nul);
+            } else {
+                buf.append(tagids[i]);
+            }
+        }
+        buf.append(end);
+        return buf.toString();
+    }
+
+    /**
+     * Returns the index of the column holding the value of a tag: 0 for
+     * "host", 1 to 7 for "t0" to "t6", -1 if the tag has no column.
+     */
+    static int tagColumn(final String tagk) {
+        if ("host".equals(tagk)) {
+            return 0;
+        }
+        if (tagk.length() == 2 && tagk.charAt(0) == 't') {
+            final int n = tagk.charAt(1) - '0';
+            if (n >= 0 && n < NUM_TAG_COLUMNS - 1) {
+                return n + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Makes sure all the tags of a series have a column.
+     * @throws IllegalArgumentException if a tag isn't host or t0 ... t6.
+     */
+    static void checkTagColumns(final Map<String, String> tags) {
+        for (final String tagk : tags.keySet()) {
+            if (tagColumn(tagk) < 0) {
+                throw new IllegalArgumentException("Invalid tag name: "
+                    + tagk + ", only host and t0 ... t6 are supported");
+            }
+        }
+    }
+
+    /**
+     * Key of the series template cache: a metric name and its tags.
+     */
+    static final class Key {
+        private final String metric;
+        private final Map<String, String> tags;
+        private final int hash;
+
+        /**
+         * Constructor.
+         * The tags aren't copied, see {@link #copy}.
+         */
+        Key(final String metric, final Map<String, String> tags) {
+            this.metric = metric;
+            this.tags = tags;
+            this.hash = metric.hashCode() * 31 + tags.hashCode();
+        }
+
+        /**
+         * Returns a copy of this key which doesn't share the tags of the
+         * caller, for storing in the cache.
+         */
+        Key copy() {
+            return new Key(metric, new HashMap<String, String>(tags));
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return hash == key.hash && metric.equals(key.metric)
+                && tags.equals(key.tags);
+        }
+
+        public String toString() {
+            return metric + tags;
+        }
+    }
+
+}
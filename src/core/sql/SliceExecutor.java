@@ -0,0 +1,91 @@
+package net.opentsdb.core.sql;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Pool of threads reading the time slices of sql queries in parallel, see
+ * {@link StorageQuerySql}.
+ * <p>
+ * The number of threads is set by {@code tsd.sql.query_threads}.  Slices
+ * never wait for a thread: when they're all busy, the thread running the
+ * query reads the slice itself, so that a busy TSD degrades to reading
+ * slices one after the other rather than queueing them.
+ */
+final class SliceExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SliceExecutor.class);
+
+    /** Default number of threads. */
+    private static final int DEFAULT_THREADS = 32;
+
+    /** Time in ms after which idle threads exit. */
+    private static final long KEEP_ALIVE = 60000;
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong caller_runs = new AtomicLong();
+
+    SliceExecutor() {
+        final int threads = Math.max(1, Integer.getInteger("tsd.sql.query_threads",
+                                                           DEFAULT_THREADS));
+        executor = new ThreadPoolExecutor(0, threads, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+            new SynchronousQueue<Runnable>(), new Factory(), new CallerRuns());
+        LOG.info("Initialized query slice executor, threads: " + threads);
+    }
+
+    /**
+     * Reads a slice on a pool thread, or on the caller's thread if none is
+     * free.
+     */
+    <T> Future<T> submit(final Callable<T> slice) {
+        final FutureTask<T> task = new FutureTask<T>(slice);
+        submitted.incrementAndGet();
+        executor.execute(task);
+        return task;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    void collectStats(final StatsCollector collector) {
+        collector.record("sql.query.slices", submitted);
+        collector.record("sql.query.slices", caller_runs, "type=caller_runs");
+    }
+
+    /** Runs the slices the pool has no thread for. */
+    private final class CallerRuns implements RejectedExecutionHandler {
+        public void rejectedExecution(final Runnable r, final ThreadPoolExecutor e) {
+            caller_runs.incrementAndGet();
+            // also runs them once the pool is shut down, queries still
+            // running then need their slices
+            r.run();
+        }
+    }
+
+    private static final class Factory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "SqlQuery-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -2,37 +2,137 @@ package net.opentsdb.core.sql;
 
 import java.util.Map;
 import java.util.List;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Collections;
+import java.util.NoSuchElementException;
 
 import net.opentsdb.core.SpanView;
 import net.opentsdb.core.SpanViewIterator;
 import net.opentsdb.core.SeekableView;
 import net.opentsdb.core.DataPoint;
 
+/**
+ * The points of a series read from the sql db.
+ * <p>
+ * Points are stored in two parallel arrays rather than as objects, 16 bytes
+ * each: the timestamps, with {@code FLAG_FLOAT} set for floating point
+ * values, and the values, doubles being stored as their raw bits.  Points
+ * must be added by increasing timestamp.
+ * <p>
+ * A {@link #window} shares the arrays of the view it's taken from, it's
+ * read-only and has its own tags.
+ */
 public class SpanViewSql implements SpanView {
-    
-    private ArrayList<DataPoint> points = new ArrayList<DataPoint>();
+
+    /** Set on the timestamp of floating point values. */
+    private static final long FLAG_FLOAT = 0x8000000000000000L;
+
+    /** Mask to get the timestamp without {@code FLAG_FLOAT}. */
+    private static final long TIME_MASK  = 0x7FFFFFFFFFFFFFFFL;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] timestamps;
+    private long[] values;
+
+    /** Index of the first point in the arrays, 0 unless a window. */
+    private final int offset;
+    private int size;
+
+    /** Whether the arrays belong to another view. */
+    private final boolean shared;
+
     private String metricName;
     private Map<String, String> tags = new HashMap<String, String>();
-    
+
     public SpanViewSql(String metricName) {
+        this(metricName, new long[INITIAL_CAPACITY], new long[INITIAL_CAPACITY], 0, 0, false);
+    }
+
+    private SpanViewSql(String metricName, long[] timestamps, long[] values,
+                        int offset, int size, boolean shared) {
         this.metricName = metricName;
+        this.timestamps = timestamps;
+        this.values = values;
+        this.offset = offset;
+        this.size = size;
+        this.shared = shared;
     }
-    
+
+    /**
+     * Returns a read-only view of the points of {@code [from, to)}, which
+     * shares the arrays of this one, without tags.
+     */
+    public SpanViewSql window(long from, long to) {
+        int start = search(0, from);
+        int end = Math.max(start, search(start, to));
+        return new SpanViewSql(metricName, timestamps, values, offset + start,
+                               end - start, true);
+    }
+
+    /** Copies the points of several views into a new one, without tags. */
+    public static SpanViewSql concat(String metricName, List<SpanViewSql> views) {
+        int size = 0;
+        for (SpanViewSql view : views) {
+            size += view.size;
+        }
+        long[] timestamps = new long[size];
+        long[] values = new long[size];
+        int n = 0;
+        for (SpanViewSql view : views) {
+            System.arraycopy(view.timestamps, view.offset, timestamps, n, view.size);
+            System.arraycopy(view.values, view.offset, values, n, view.size);
+            n += view.size;
+        }
+        return new SpanViewSql(metricName, timestamps, values, 0, size, false);
+    }
+
     public void addPoint(DataPoint point) {
-        points.add(point);
+        if (point.isInteger()) {
+            addPoint(point.timestamp(), point.longValue());
+        } else {
+            addPoint(point.timestamp(), point.doubleValue());
+        }
+    }
+
+    public void addPoint(long timestamp, long value) {
+        grow();
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+    }
+
+    public void addPoint(long timestamp, double value) {
+        grow();
+        timestamps[size] = timestamp | FLAG_FLOAT;
+        values[size] = Double.doubleToRawLongBits(value);
+        size++;
+    }
+
+    /** Makes room for one more point. */
+    private void grow() {
+        if (shared)
+            throw new UnsupportedOperationException("read-only window of points");
+        if (size == timestamps.length) {
+            // capacity 0 when copied by concat
+            final int capacity = Math.max(INITIAL_CAPACITY, size + (size >> 1));
+            final long[] new_timestamps = new long[capacity];
+            final long[] new_values = new long[capacity];
+            System.arraycopy(timestamps, 0, new_timestamps, 0, size);
+            System.arraycopy(values, 0, new_values, 0, size);
+            timestamps = new_timestamps;
+            values = new_values;
+        }
     }
-    
+
     public void putTag(String name, String value) {
         tags.put(name, value);
     }
-    
+
     public boolean hasTags() {
         return !tags.isEmpty();
     }
-    
+
     public String metricName() {
         return metricName;
     }
@@ -46,7 +146,7 @@ public class SpanViewSql implements SpanView {
     }
 
     public int size() {
-        return points.size();
+        return size;
     }
 
     public int aggregatedSize() {
@@ -54,36 +154,70 @@ public class SpanViewSql implements SpanView {
     }
 
     public long timestamp(int i) {
-        return points.get(i).timestamp();
+        checkIndex(i);
+        return timestamps[offset + i] & TIME_MASK;
     }
 
     public boolean isInteger(int i) {
-        return points.get(i).isInteger();
+        checkIndex(i);
+        return (timestamps[offset + i] & FLAG_FLOAT) == 0;
     }
 
     public long longValue(int i) {
-        return points.get(i).longValue();
+        if (!isInteger(i))
+            throw new ClassCastException("DataPoint contains double value");
+        return values[offset + i];
     }
 
     public double doubleValue(int i) {
-        return points.get(i).doubleValue();
+        if (isInteger(i))
+            throw new ClassCastException("DataPoint contains integer value");
+        return Double.longBitsToDouble(values[offset + i]);
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("index " + i + " not in [0, " + size + ")");
+    }
+
+    /** Returns the number of bytes used by the points. */
+    long bytes() {
+        return 16L * size;
     }
-    
+
+    /**
+     * Returns the index of the first point at or after a timestamp, looking
+     * from {@code from} on, or {@code size} if there's none.
+     */
+    int search(int from, long timestamp) {
+        int low = from;
+        int high = size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if ((timestamps[offset + mid] & TIME_MASK) < timestamp)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
     public SpanViewIterator internalIterator() {
         return new Iterator();
     }
-    
+
     public SeekableView iterator() {
         return internalIterator();
     }
-    
+
+    /** Iterator returning itself as a view on the current point. */
     final class Iterator implements SpanViewIterator {
-        
+
         // initially iterators position is before first item
         private int index = -1;
-        
+
         /* SpanViewIterator */
-        
+
         public int saveState() {
             return index;
         }
@@ -93,22 +227,25 @@ public class SpanViewSql implements SpanView {
         }
 
         public long peekNextTimestamp() {
-            return points.get(index + 1).timestamp();
+            return SpanViewSql.this.timestamp(index + 1);
         }
-        
+
 
         public String toStringSummary() {
             return "SpanViewSql.Iterator(index=" + index + ")";
         }
-        
+
         /* SeekableView */
-        
+
         public boolean hasNext() {
-            return index < (points.size() - 1);
+            return index < (size - 1);
         }
 
         public DataPoint next() {
-            return points.get(++index);
+            if (!hasNext())
+                throw new NoSuchElementException("no more elements in " + this);
+            index++;
+            return this;
         }
 
         public void remove() {
@@ -116,33 +253,35 @@ public class SpanViewSql implements SpanView {
         }
 
         public void seek(long timestamp) {
-            while (index < (points.size() - 1) && peekNextTimestamp() < timestamp) {
-                index++;
-            }
+            index = search(index + 1, timestamp) - 1;
         }
-        
+
         /* DataPoint */
-        
+
         public long timestamp() {
-            return points.get(index).timestamp();
+            return SpanViewSql.this.timestamp(index);
         }
 
         public boolean isInteger() {
-            return points.get(index).isInteger();
+            return SpanViewSql.this.isInteger(index);
         }
 
         public long longValue() {
-            return points.get(index).longValue();
+            return SpanViewSql.this.longValue(index);
         }
 
         public double doubleValue() {
-            return points.get(index).doubleValue();
+            return SpanViewSql.this.doubleValue(index);
         }
 
         public double toDouble() {
-            return points.get(index).toDouble();
+            return isInteger() ? longValue() : doubleValue();
+        }
+
+        public String toString() {
+            return toStringSummary();
         }
-        
+
     }
-  
+
 }
@@ -0,0 +1,815 @@
+package net.opentsdb.core.sql;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.StorageException;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Append-only, memory-mapped write-ahead spool of data points on local disk.
+ * <p>
+ * When a spool directory is configured ({@code tsd.sql.spool_dir}), points
+ * are first appended to the spool and then replayed, in order, to the
+ * {@link InsertQueue} by a background thread.  The {@link Deferred} of a
+ * point is called back once the point is in the spool, so ingest doesn't
+ * wait for the db, and points written while the db is slow or down are
+ * replayed once it's back, including after a restart.
+ * <p>
+ * The spool is made of fixed size segment files named
+ * {@code spool-<id>.seg}.  Each record is laid out as follows:
+ * <pre>
+ *   int   length of the payload
+ *   int   CRC32 of the payload
+ *   byte  flags (FLAG_FLOAT if the value is a float, FLAG_SERIES for
+ *         the narrow schema)
+ *   long  timestamp
+ *   long  value (raw bits of the float for floats)
+ *   long  metric id, or series id with FLAG_SERIES
+ *   long  tag value ids (host, t0 ... t6), 0 for unset tags
+ * </pre>
+ * A length of 0 marks the end of the data, -1 the end of a segment.
+ * The position up to which points have been committed to the db is kept in
+ * a {@code checkpoint} file, and fully replayed segments are deleted.
+ * Replay is at-least-once: a batch which failed after being partially
+ * committed is written again.
+ * <p>
+ * Settings:
+ * <ul>
+ * <li>{@code tsd.sql.spool_segment_size}: size of a segment in bytes
+ * (default 64MB).</li>
+ * <li>{@code tsd.sql.spool_max_size}: maximum size of all the segments in
+ * bytes (default 1GB).  Points are rejected once the spool is full.</li>
+ * <li>{@code tsd.sql.spool_fsync}: "always" to force each point to disk
+ * before calling back its deferred, "interval" (the default) to force the
+ * spool every {@code tsd.sql.spool_fsync_interval} ms (default 1000) or
+ * "never" to leave it to the OS.  With "always", a background thread
+ * forces the spool and calls back the points appended meanwhile, all at
+ * once, so appends never wait for the disk.</li>
+ * </ul>
+ */
+final class Spool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Spool.class);
+
+    /** Flag set on records holding a float value. */
+    private static final byte FLAG_FLOAT = 0x1;
+
+    /** Flag set on records of the narrow schema, holding a series id. */
+    private static final byte FLAG_SERIES = 0x2;
+
+    /** Size of the header of a record: length and CRC. */
+    private static final int HEADER_SIZE = 8;
+
+    /** Size of the payload of a record. */
+    private static final int PAYLOAD_SIZE =
+        1 + 8 + 8 + 8 + 8 * SeriesTemplate.NUM_TAG_COLUMNS;
+
+    /** Length written in place of a record at the end of a segment. */
+    private static final int END_OF_SEGMENT = -1;
+
+    /** Values of {@code tsd.sql.spool_fsync}. */
+    private static final int FSYNC_NEVER = 0;
+    private static final int FSYNC_INTERVAL = 1;
+    private static final int FSYNC_ALWAYS = 2;
+
+    /** How long to wait before retrying a batch the db rejected. */
+    private static final long MIN_RETRY_DELAY = 1000;  // ms
+    private static final long MAX_RETRY_DELAY = 30000;  // ms
+
+    private final File dir;
+    private final int segment_size;
+    private final long max_size;
+    private final int fsync;
+    private final long fsync_interval;
+
+    /** Where replayed points are written. */
+    private final InsertQueue insert_queue;
+
+    /** Maximum number of points replayed at once. */
+    private final int replay_batch;
+
+    /** Open segments, by id.  Guarded by {@code this}. */
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    /** Segment being appended to.  Guarded by {@code this}. */
+    private Segment current;
+
+    /**
+     * Position right after the last record appended, see {@link #position}.
+     * Only written with the lock held, but read without it by the replay
+     * thread.
+     */
+    private volatile long write_pos;
+
+    /** Position up to which the points have been committed to the db. */
+    private volatile long checkpoint_pos;
+
+    /**
+     * Timestamp of the first point of the last batch replayed, 0 while
+     * a backlog recovered at startup isn't being replayed yet.
+     */
+    private volatile long replay_head = Long.MAX_VALUE;
+
+    /** Outstanding {@link #flush} requests.  Guarded by {@code this}. */
+    private final ArrayList<FlushRequest> flushes = new ArrayList<FlushRequest>();
+
+    /**
+     * Deferreds of the points appended and not yet forced to disk, with the
+     * "always" fsync policy.  Guarded by {@code this}.
+     */
+    private ArrayList<Deferred<Object>> unsynced = new ArrayList<Deferred<Object>>();
+
+    /** Set once {@link #shutdown} has been called.  Guarded by {@code this}. */
+    private boolean shutdown;
+
+    /** Scratch space to encode a record.  Guarded by {@code this}. */
+    private final ByteBuffer record = ByteBuffer.allocate(PAYLOAD_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private final ReplayThread replay_thread;
+    private final Deferred<Object> replay_done = new Deferred<Object>();
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong replay_errors = new AtomicLong();
+    private final AtomicLong corrupted = new AtomicLong();
+
+    /**
+     * Opens the spool, recovering the points left by a previous run, and
+     * starts replaying them.
+     * @param dir The directory holding the segments.
+     * @param insert_queue Where to replay points.
+     * @param replay_batch Maximum number of points replayed at once.
+     * @throws StorageException if the spool can't be opened.
+     */
+    Spool(final File dir, final InsertQueue insert_queue, final int replay_batch) {
+        this.dir = dir;
+        this.insert_queue = insert_queue;
+        this.replay_batch = replay_batch;
+        segment_size = Integer.getInteger("tsd.sql.spool_segment_size", 64 << 20);
+        max_size = Long.getLong("tsd.sql.spool_max_size", 1L << 30);
+        fsync_interval = Long.getLong("tsd.sql.spool_fsync_interval", 1000);
+        final String fsync = System.getProperty("tsd.sql.spool_fsync", "interval");
+        if ("never".equals(fsync)) {
+            this.fsync = FSYNC_NEVER;
+        } else if ("interval".equals(fsync)) {
+            this.fsync = FSYNC_INTERVAL;
+        } else if ("always".equals(fsync)) {
+            this.fsync = FSYNC_ALWAYS;
+        } else {
+            throw new IllegalArgumentException("Invalid tsd.sql.spool_fsync: "
+                + fsync + ", must be one of always, interval or never");
+        }
+        if (segment_size < HEADER_SIZE + PAYLOAD_SIZE + 4 || max_size < segment_size) {
+            throw new IllegalArgumentException("Invalid spool sizes: segment="
+                + segment_size + ", max=" + max_size);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new StorageException("Unable to create spool directory " + dir);
+        }
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new StorageException("Unable to open spool in " + dir
+                                       + ": " + e.getMessage());
+        }
+        replay_thread = new ReplayThread();
+        replay_thread.setDaemon(true);
+        replay_thread.start();
+        if (this.fsync != FSYNC_NEVER) {
+            final SyncThread sync = new SyncThread();
+            sync.setDaemon(true);
+            sync.start();
+        }
+    }
+
+    /** Encodes a segment id and an offset in that segment as one position. */
+    private static long position(final long segment, final int offset) {
+        return (segment << 32) | offset;
+    }
+
+    private static long segmentOf(final long pos) {
+        return pos >>> 32;
+    }
+
+    private static int offsetOf(final long pos) {
+        return (int) pos;
+    }
+
+    /**
+     * Appends a point to the spool.
+     * @return A deferred called back once the point is in the spool (and
+     * on disk, with the "always" fsync policy), or errbacked with a
+     * {@link StorageException} if the spool is full.
+     */
+    Deferred<Object> append(final SeriesTemplate series, final long timestamp,
+                            final Number value) {
+        final Deferred<Object> synced;
+        try {
+            synchronized (this) {
+                if (shutdown) {
+                    rejected.incrementAndGet();
+                    return Deferred.fromError(new StorageException(
+                        "Spool is shut down, dropping point"));
+                }
+                int offset = offsetOf(write_pos);
+                if (offset + HEADER_SIZE + PAYLOAD_SIZE > current.buf.capacity()) {
+                    if ((segments.size() + 1L) * segment_size > max_size) {
+                        rejected.incrementAndGet();
+                        return Deferred.fromError(new StorageException(
+                            "Spool is full (" + max_size + " bytes)"));
+                    }
+                    rotate(offset);
+                    offset = 0;
+                }
+                encode(series, timestamp, value);
+                final MappedByteBuffer buf = current.buf;
+                buf.position(offset + HEADER_SIZE);
+                buf.put(record.array(), 0, PAYLOAD_SIZE);
+                buf.putInt(offset + 4, (int) crc.getValue());
+                // Write the length last, a record is only valid once it's set.
+                buf.putInt(offset, PAYLOAD_SIZE);
+                write_pos = position(current.id, offset + HEADER_SIZE + PAYLOAD_SIZE);
+                if (fsync == FSYNC_ALWAYS) {
+                    // called back by the sync thread
+                    synced = new Deferred<Object>();
+                    unsynced.add(synced);
+                } else {
+                    synced = null;
+                }
+                notifyAll();
+            }
+        } catch (IOException e) {
+            rejected.incrementAndGet();
+            return Deferred.fromError(new StorageException(
+                "Unable to write to the spool: " + e.getMessage()));
+        }
+        appended.incrementAndGet();
+        return synced != null ? synced : Deferred.fromResult(null);
+    }
+
+    /**
+     * Returns a deferred called back once all the points appended so far
+     * have been replayed to the db.
+     */
+    Deferred<Object> flush() {
+        final FlushRequest req;
+        synchronized (this) {
+            if (checkpoint_pos >= write_pos) {
+                return Deferred.fromResult(null);
+            }
+            req = new FlushRequest(write_pos);
+            flushes.add(req);
+        }
+        return req.deferred;
+    }
+
+    /**
+     * Stops accepting points, forces the spool to disk and stops the replay
+     * thread once it's done with the points it's writing.  Points not
+     * replayed yet stay in the spool and are replayed on the next start.
+     * @return A deferred called back once the replay thread is done.
+     */
+    Deferred<Object> shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            if (fsync != FSYNC_NEVER) {
+                current.buf.force();
+            }
+            notifyAll();
+        }
+        return replay_done;
+    }
+
+    /**
+     * Returns the timestamp of the first point of the batch being replayed,
+     * the oldest one not committed yet as points are mostly appended in
+     * time order: 0 if not known yet, {@code Long.MAX_VALUE} if the whole
+     * spool is committed.
+     */
+    long oldestPending() {
+        return checkpoint_pos < write_pos ? replay_head : Long.MAX_VALUE;
+    }
+
+    /** Returns the number of bytes between the checkpoint and the end of the spool. */
+    long backlog() {
+        final long from = checkpoint_pos;
+        final long to = write_pos;
+        if (segmentOf(from) == segmentOf(to)) {
+            return offsetOf(to) - offsetOf(from);
+        }
+        return (segmentOf(to) - segmentOf(from)) * segment_size
+            - offsetOf(from) + offsetOf(to);
+    }
+
+    void collectStats(final StatsCollector collector) {
+        collector.record("sql.spool.points", appended, "type=appended");
+        collector.record("sql.spool.points", replayed, "type=replayed");
+        collector.record("sql.spool.points", rejected, "type=rejected");
+        collector.record("sql.spool.points", corrupted, "type=corrupted");
+        collector.record("sql.spool.replay_errors", replay_errors);
+        collector.record("sql.spool.backlog", backlog());
+        synchronized (this) {
+            collector.record("sql.spool.segments", segments.size());
+        }
+    }
+
+    /** Encodes a point in {@link #record} and computes its CRC. */
+    private void encode(final SeriesTemplate series, final long timestamp,
+                        final Number value) {
+        record.clear();
+        final byte flags = series.series_id != 0 ? FLAG_SERIES : 0;
+        if (value instanceof Float) {
+            record.put((byte) (flags | FLAG_FLOAT));
+            record.putLong(timestamp);
+            record.putLong(Float.floatToRawIntBits(value.floatValue()));
+        } else {
+            record.put(flags);
+            record.putLong(timestamp);
+            record.putLong(value.longValue());
+        }
+        record.putLong(series.series_id != 0 ? series.series_id : series.metricid);
+        for (int i = 0; i < SeriesTemplate.NUM_TAG_COLUMNS; i++) {
+            record.putLong(series.tagids[i]);
+        }
+        crc.reset();
+        crc.update(record.array(), 0, PAYLOAD_SIZE);
+    }
+
+    /**
+     * Closes the current segment and starts a new one.
+     * Must be called with the lock held.
+     */
+    private void rotate(final int offset) throws IOException {
+        if (offset + 4 <= current.buf.capacity()) {
+            current.buf.putInt(offset, END_OF_SEGMENT);
+        }
+        if (fsync != FSYNC_NEVER) {
+            current.buf.force();
+        }
+        current = openSegment(current.id + 1);
+        write_pos = position(current.id, 0);
+    }
+
+    /** Maps a segment file, creating it if needed.  Must be called with the lock held. */
+    private Segment openSegment(final long id) throws IOException {
+        final File file = new File(dir, "spool-" + id + ".seg");
+        final boolean exists = file.exists();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (!exists) {
+                raf.setLength(segment_size);
+            }
+            final FileChannel channel = raf.getChannel();
+            final Segment segment = new Segment(id, file,
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+            segments.put(id, segment);
+            return segment;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Opens the existing segments, reads the checkpoint and finds the end
+     * of the data.
+     */
+    private synchronized void recover() throws IOException {
+        final File[] files = dir.listFiles();
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                if (name.startsWith("spool-") && name.endsWith(".seg")) {
+                    try {
+                        ids.add(Long.parseLong(name.substring(6, name.length() - 4)));
+                    } catch (NumberFormatException e) {
+                        LOG.warn("Ignoring unexpected file in spool: " + file);
+                    }
+                }
+            }
+        }
+        final Long[] sorted = ids.toArray(new Long[ids.size()]);
+        Arrays.sort(sorted);
+
+        long checkpoint = readCheckpoint();
+        for (final long id : sorted) {
+            if (id < segmentOf(checkpoint)) {
+                // Fully replayed but not deleted before we stopped.
+                deleteSegmentFile(new File(dir, "spool-" + id + ".seg"));
+            } else {
+                openSegment(id);
+            }
+        }
+        if (segments.isEmpty()) {
+            final long id = sorted.length == 0 ? segmentOf(checkpoint) : sorted[sorted.length - 1] + 1;
+            current = openSegment(Math.max(id, 1));
+            checkpoint = position(current.id, 0);
+            write_pos = checkpoint;
+        } else {
+            if (segments.firstKey() > segmentOf(checkpoint)) {
+                checkpoint = position(segments.firstKey(), 0);
+            }
+            current = segments.lastEntry().getValue();
+            final int end = endOfData(current);
+            if (end + 4 <= current.buf.capacity() && current.buf.getInt(end) != 0) {
+                // A torn or corrupted record: clear the rest of the segment,
+                // or the records following it would come back on the next
+                // recovery once appends have overwritten it.
+                final byte[] zeros = new byte[current.buf.capacity() - end];
+                current.buf.position(end);
+                current.buf.put(zeros);
+            }
+            write_pos = position(current.id, end);
+            // Don't skip points appended over a corrupted tail.
+            checkpoint = Math.min(checkpoint, write_pos);
+        }
+        checkpoint_pos = checkpoint;
+        if (checkpoint_pos < write_pos) {
+            replay_head = 0;
+            LOG.info("Recovered spool in " + dir + ", " + backlog()
+                     + " bytes to replay");
+        }
+    }
+
+    /** Returns the offset right after the last valid record of a segment. */
+    private int endOfData(final Segment segment) {
+        int offset = 0;
+        final byte[] payload = new byte[PAYLOAD_SIZE];
+        final CRC32 crc = new CRC32();
+        while (true) {
+            final int next = readRecord(segment.buf, offset, payload, crc);
+            if (next <= 0) {
+                return offset;
+            }
+            offset = next;
+        }
+    }
+
+    /**
+     * Reads the record at an offset.
+     * @return The offset of the next record, 0 at the end of the data or
+     * of the segment, or -1 if the record is corrupted.
+     */
+    private static int readRecord(final ByteBuffer buf, final int offset,
+                                  final byte[] payload, final CRC32 crc) {
+        if (offset + HEADER_SIZE > buf.capacity()) {
+            return 0;
+        }
+        final int length = buf.getInt(offset);
+        if (length == 0 || length == END_OF_SEGMENT) {
+            return 0;
+        }
+        if (length != PAYLOAD_SIZE || offset + HEADER_SIZE + length > buf.capacity()) {
+            return -1;
+        }
+        for (int i = 0; i < PAYLOAD_SIZE; i++) {
+            payload[i] = buf.get(offset + HEADER_SIZE + i);
+        }
+        crc.reset();
+        crc.update(payload, 0, PAYLOAD_SIZE);
+        if ((int) crc.getValue() != buf.getInt(offset + 4)) {
+            return -1;
+        }
+        return offset + HEADER_SIZE + PAYLOAD_SIZE;
+    }
+
+    private long readCheckpoint() throws IOException {
+        final File file = new File(dir, "checkpoint");
+        if (!file.exists()) {
+            return 0;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long pos = raf.readLong();
+            if (raf.readLong() != ~pos) {
+                LOG.error("Corrupted spool checkpoint in " + file
+                          + ", replaying the whole spool");
+                return 0;
+            }
+            return pos;
+        } catch (IOException e) {
+            LOG.error("Unable to read spool checkpoint " + file
+                      + ", replaying the whole spool", e);
+            return 0;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Records that the points up to a position have been committed, deletes
+     * the segments replayed and fires the flush requests satisfied.
+     */
+    private void checkpoint(final long pos) {
+        final File file = new File(dir, "checkpoint");
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(0);
+                raf.writeLong(pos);
+                raf.writeLong(~pos);
+                if (fsync != FSYNC_NEVER) {
+                    raf.getFD().sync();
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to write spool checkpoint " + file, e);
+        }
+        checkpoint_pos = pos;
+        ArrayList<FlushRequest> ready = null;
+        synchronized (this) {
+            final Iterator<Map.Entry<Long, Segment>> it = segments.entrySet().iterator();
+            while (it.hasNext()) {
+                final Segment segment = it.next().getValue();
+                if (segment.id >= segmentOf(pos) || segment == current) {
+                    break;
+                }
+                it.remove();
+                deleteSegmentFile(segment.file);
+            }
+            final Iterator<FlushRequest> flush = flushes.iterator();
+            while (flush.hasNext()) {
+                final FlushRequest req = flush.next();
+                if (req.pos <= pos) {
+                    if (ready == null) {
+                        ready = new ArrayList<FlushRequest>();
+                    }
+                    ready.add(req);
+                    flush.remove();
+                }
+            }
+        }
+        if (ready != null) {
+            for (final FlushRequest req : ready) {
+                req.deferred.callback(null);
+            }
+        }
+    }
+
+    private static void deleteSegmentFile(final File file) {
+        if (!file.delete()) {
+            LOG.warn("Unable to delete spool segment " + file);
+        }
+    }
+
+    private synchronized Segment getSegment(final long id) {
+        return segments.get(id);
+    }
+
+    /** A memory-mapped segment file. */
+    private static final class Segment {
+        final long id;
+        final File file;
+        final MappedByteBuffer buf;
+
+        Segment(final long id, final File file, final MappedByteBuffer buf) {
+            this.id = id;
+            this.file = file;
+            this.buf = buf;
+        }
+    }
+
+    /** A pending call to {@link #flush}. */
+    private static final class FlushRequest {
+        /** Fires once the checkpoint reaches this position. */
+        final long pos;
+        final Deferred<Object> deferred = new Deferred<Object>();
+
+        FlushRequest(final long pos) {
+            this.pos = pos;
+        }
+    }
+
+    /**
+     * Background thread reading the spool from the checkpoint and writing
+     * the points to the db.
+     */
+    final class ReplayThread extends Thread {
+        private final byte[] payload = new byte[PAYLOAD_SIZE];
+        private final ByteBuffer decoder = ByteBuffer.wrap(payload);
+        private final CRC32 crc = new CRC32();
+
+        public ReplayThread() {
+            super("SqlSpoolReplay");
+        }
+
+        public void run() {
+            long delay = MIN_RETRY_DELAY;
+            try {
+                while (waitForData()) {
+                    final ArrayList<Deferred<Object>> batch =
+                        new ArrayList<Deferred<Object>>();
+                    final long end = replayBatch(checkpoint_pos, batch);
+                    try {
+                        if (!batch.isEmpty()) {
+                            Deferred.group(batch).joinUninterruptibly();
+                            replayed.addAndGet(batch.size());
+                        }
+                        checkpoint(end);
+                        delay = MIN_RETRY_DELAY;
+                    } catch (Exception e) {
+                        replay_errors.incrementAndGet();
+                        LOG.error("Unable to replay " + batch.size()
+                                  + " points from the spool, retrying in "
+                                  + delay + "ms: " + e.getMessage());
+                        Thread.sleep(delay);
+                        delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOG.error("Spool replay thread interrupted", e);
+            } catch (Throwable e) {
+                LOG.error("Uncaught exception in spool replay thread", e);
+            }
+            LOG.info("Spool replay done, " + backlog() + " bytes left to replay");
+            replay_done.callback(null);
+        }
+
+        /**
+         * Waits until there's something to replay.
+         * @return false if the thread should exit.
+         */
+        private boolean waitForData() throws InterruptedException {
+            synchronized (Spool.this) {
+                while (checkpoint_pos >= write_pos) {
+                    if (shutdown) {
+                        return false;
+                    }
+                    Spool.this.wait();
+                }
+                return !shutdown;
+            }
+        }
+
+        /**
+         * Queues the points following a position, up to the replay batch size.
+         * @return The position following the last point queued.
+         */
+        private long replayBatch(long pos, final ArrayList<Deferred<Object>> batch) {
+            final long end = write_pos;
+            Segment segment = getSegment(segmentOf(pos));
+            while (pos < end && batch.size() < replay_batch) {
+                if (segment == null) {
+                    // The segment is gone, move on to the next one.
+                    pos = position(segmentOf(pos) + 1, 0);
+                    segment = getSegment(segmentOf(pos));
+                    continue;
+                }
+                final int offset = offsetOf(pos);
+                final int next = readRecord(segment.buf, offset, payload, crc);
+                if (next == 0 || next < 0) {
+                    if (next < 0) {
+                        corrupted.incrementAndGet();
+                        LOG.error("Corrupted record in " + segment.file + " at offset "
+                                  + offset + ", skipping the rest of the segment");
+                    }
+                    if (segment.id == segmentOf(end)) {
+                        // Shouldn't happen: we only read what was appended.
+                        return end;
+                    }
+                    pos = position(segment.id + 1, 0);
+                    segment = getSegment(segment.id + 1);
+                    continue;
+                }
+                batch.add(replay(batch.isEmpty()));
+                pos = position(segment.id, next);
+            }
+            return pos;
+        }
+
+        /**
+         * Decodes the record in {@link #payload} and queues it for writing.
+         * @param first Whether it's the first point of its batch.
+         */
+        private Deferred<Object> replay(final boolean first) {
+            decoder.clear();
+            final byte flags = decoder.get();
+            final long timestamp = decoder.getLong();
+            if (first) {
+                replay_head = timestamp;
+            }
+            final long bits = decoder.getLong();
+            final long metricid = decoder.getLong();
+            final long[] tagids = new long[SeriesTemplate.NUM_TAG_COLUMNS];
+            for (int i = 0; i < tagids.length; i++) {
+                tagids[i] = decoder.getLong();
+            }
+            final Number value;
+            if ((flags & FLAG_FLOAT) != 0) {
+                value = Float.intBitsToFloat((int) bits);
+            } else {
+                value = bits;
+            }
+            final SeriesTemplate series;
+            if ((flags & FLAG_SERIES) != 0) {
+                series = new SeriesTemplate(metricid);
+            } else {
+                series = new SeriesTemplate(metricid, tagids);
+            }
+            return insert_queue.add(series, timestamp, value);
+        }
+    }
+
+    /**
+     * Background thread forcing the current segment to disk: periodically
+     * for the "interval" fsync policy, and as soon as points are appended
+     * for the "always" policy.
+     */
+    final class SyncThread extends Thread {
+        public SyncThread() {
+            super("SqlSpoolSync");
+        }
+
+        public void run() {
+            if (fsync == FSYNC_ALWAYS) {
+                groupCommit();
+            } else {
+                periodic();
+            }
+        }
+
+        /**
+         * Forces the points appended while the previous force was running,
+         * and calls back their deferreds.  Segments are forced when they
+         * are rotated, so only the current one needs it.
+         */
+        private void groupCommit() {
+            while (true) {
+                final ArrayList<Deferred<Object>> batch;
+                final MappedByteBuffer buf;
+                synchronized (Spool.this) {
+                    while (unsynced.isEmpty()) {
+                        if (shutdown) {
+                            return;
+                        }
+                        try {
+                            Spool.this.wait();
+                        } catch (InterruptedException e) {
+                            LOG.error("Spool sync thread interrupted", e);
+                            return;
+                        }
+                    }
+                    batch = unsynced;
+                    unsynced = new ArrayList<Deferred<Object>>();
+                    buf = current.buf;
+                }
+                Object result = null;
+                try {
+                    buf.force();
+                } catch (Exception e) {
+                    LOG.error("Unable to sync the spool", e);
+                    result = new StorageException("Unable to sync the spool: "
+                                                  + e.getMessage());
+                }
+                for (final Deferred<Object> d : batch) {
+                    d.callback(result);
+                }
+            }
+        }
+
+        private void periodic() {
+            while (true) {
+                try {
+                    Thread.sleep(fsync_interval);
+                } catch (InterruptedException e) {
+                    LOG.error("Spool sync thread interrupted", e);
+                    return;
+                }
+                final MappedByteBuffer buf;
+                synchronized (Spool.this) {
+                    if (shutdown) {
+                        return;
+                    }
+                    buf = current.buf;
+                }
+                try {
+                    buf.force();
+                } catch (Exception e) {
+                    LOG.error("Unable to sync the spool", e);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,335 @@
+package net.opentsdb.core.sql;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.StorageException;
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Bounded pool of threads running the blocking part of the sql write path
+ * (uid lookups and assignments), so that it never runs on the Netty IO
+ * threads.
+ * <p>
+ * The number of threads is set by {@code tsd.sql.storage_threads} and the
+ * number of jobs allowed to wait for a thread by
+ * {@code tsd.sql.storage_queue}.  Jobs submitted while the queue is full
+ * are rejected: their {@link Deferred} is errbacked with a
+ * {@link StorageException}.  Tools which would rather slow down than lose
+ * data set {@code tsd.sql.block_when_full}, in which case the caller runs
+ * the job itself when the queue is full.
+ */
+final class StorageExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StorageExecutor.class);
+
+    /** Default number of storage threads. */
+    private static final int DEFAULT_THREADS = 8;
+
+    /** Default number of jobs which can wait for a thread. */
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    /** A blocking job run by a storage thread. */
+    interface Job {
+        /**
+         * Runs the job.
+         * @return A deferred whose result is handed to the caller.
+         */
+        Deferred<Object> run() throws Exception;
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    /** Whether the caller runs the jobs that don't fit in the queue. */
+    private final boolean block_when_full;
+
+    /** Sequence numbers of the jobs submitted and not yet completed. */
+    private final ConcurrentSkipListSet<Long> in_flight =
+        new ConcurrentSkipListSet<Long>();
+
+    /**
+     * Jobs submitted with the timestamp of the point they write, and not
+     * yet completed, oldest point first.
+     */
+    private final ConcurrentSkipListSet<Task> pending_points =
+        new ConcurrentSkipListSet<Task>(new Comparator<Task>() {
+            public int compare(final Task a, final Task b) {
+                if (a.timestamp != b.timestamp) {
+                    return a.timestamp < b.timestamp ? -1 : 1;
+                }
+                return a.seq < b.seq ? -1 : a.seq == b.seq ? 0 : 1;
+            }
+        });
+
+    /**
+     * Sequence number given to the last job submitted.  Guarded by
+     * {@code this}, so that a job is always in flight by the time a
+     * {@link #flush} sees its number.
+     */
+    private long last_submitted;
+
+    /** Outstanding {@link #flush} requests.  Guarded by {@code this}. */
+    private final ArrayList<Barrier> barriers = new ArrayList<Barrier>();
+
+    /** Whether or not there are outstanding {@link #flush} requests. */
+    private volatile boolean has_barriers;
+
+    /** Time in ms jobs spent waiting for a thread. */
+    private final Histogram queue_wait = new Histogram(16000, (short) 2, 100);
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+
+    public StorageExecutor() {
+        final int threads = Math.max(1, Integer.getInteger("tsd.sql.storage_threads",
+                                                           DEFAULT_THREADS));
+        final int queue_size = Math.max(1, Integer.getInteger("tsd.sql.storage_queue",
+                                                              DEFAULT_QUEUE_SIZE));
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queue_size), new Factory());
+        block_when_full = Boolean.getBoolean("tsd.sql.block_when_full");
+        LOG.info("Initialized storage executor, threads: " + threads
+                 + ", queue size: " + queue_size);
+    }
+
+    /**
+     * Schedules a job on a storage thread.
+     * @return A deferred called back with the result of the deferred
+     * returned by the job, or errbacked if the job failed or couldn't be
+     * scheduled.
+     */
+    public Deferred<Object> submit(final Job job) {
+        return submit(job, Long.MAX_VALUE);
+    }
+
+    /**
+     * Schedules a job writing a point on a storage thread.
+     * @param timestamp The timestamp of the point, reported by
+     * {@link #oldestPending} until the job has run.
+     * @see #submit(Job)
+     */
+    public Deferred<Object> submit(final Job job, final long timestamp) {
+        final Task task;
+        synchronized (this) {
+            task = new Task(job, ++last_submitted, timestamp);
+            in_flight.add(task.seq);
+        }
+        if (timestamp != Long.MAX_VALUE) {
+            pending_points.add(task);
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (block_when_full && !executor.isShutdown()) {
+                submitted.incrementAndGet();
+                task.run();
+                return task.deferred;
+            }
+            rejected.incrementAndGet();
+            completed(task);
+            return Deferred.fromError(new StorageException(
+                "Storage queue is full or shut down, dropping request"));
+        }
+        submitted.incrementAndGet();
+        return task.deferred;
+    }
+
+    /**
+     * Waits for the jobs submitted so far.
+     * @return A deferred called back once all the jobs submitted before
+     * this call have run.
+     */
+    public Deferred<Object> flush() {
+        final Barrier barrier;
+        synchronized (this) {
+            barrier = new Barrier(last_submitted);
+            barriers.add(barrier);
+            has_barriers = true;
+        }
+        fireBarriers();
+        return barrier.deferred;
+    }
+
+    /**
+     * Returns the timestamp of the oldest point whose job hasn't run yet,
+     * {@code Long.MAX_VALUE} if there's none.
+     */
+    public long oldestPending() {
+        try {
+            return pending_points.first().timestamp;
+        } catch (NoSuchElementException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Stops accepting new jobs and waits for the submitted ones to run.
+     * @param timeout Maximum time in ms to wait for the jobs.
+     * @return A deferred called back once all the jobs have run, or once
+     * the timeout has expired.
+     */
+    public Deferred<Object> shutdown(final long timeout) {
+        final Deferred<Object> d = new Deferred<Object>();
+        executor.shutdown();
+        final Thread waiter = new Thread("SqlStorageShutdown") {
+            public void run() {
+                try {
+                    if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                        LOG.warn("Storage threads still running after "
+                                 + timeout + "ms, giving up");
+                    }
+                } catch (InterruptedException e) {
+                    LOG.error("Interrupted while waiting for storage threads", e);
+                }
+                d.callback(null);
+            }
+        };
+        waiter.setDaemon(true);
+        waiter.start();
+        return d;
+    }
+
+    /**
+     * Drops the jobs still waiting for a thread and interrupts the running
+     * ones, for when {@link #shutdown} is taking too long.
+     * The deferreds of the dropped jobs are errbacked with a
+     * {@link StorageException}.
+     * @return The number of jobs dropped.
+     */
+    public int abandon() {
+        final List<Runnable> dropped = executor.shutdownNow();
+        for (final Runnable r : dropped) {
+            final Task task = (Task) r;
+            completed(task);
+            task.deferred.callback(new StorageException(
+                "Storage executor shut down before the request could run"));
+        }
+        abandoned.addAndGet(dropped.size());
+        return dropped.size();
+    }
+
+    void collectStats(final StatsCollector collector) {
+        collector.record("sql.storage.jobs", submitted, "type=submitted");
+        collector.record("sql.storage.jobs", rejected, "type=rejected");
+        collector.record("sql.storage.jobs", failed, "type=failed");
+        collector.record("sql.storage.jobs", abandoned, "type=abandoned");
+        collector.record("sql.storage.queue", executor.getQueue().size());
+        collector.record("sql.storage.active", executor.getActiveCount());
+        collector.record("sql.latency", queue_wait, "type=storage_queue_wait");
+    }
+
+    /** Marks a job as completed and fires the barriers it unblocks. */
+    private void completed(final Task task) {
+        if (task.timestamp != Long.MAX_VALUE) {
+            pending_points.remove(task);
+        }
+        in_flight.remove(task.seq);
+        if (has_barriers) {
+            fireBarriers();
+        }
+    }
+
+    private void fireBarriers() {
+        ArrayList<Barrier> ready = null;
+        synchronized (this) {
+            // Every job with a sequence number lower than the oldest job
+            // still in flight is done.
+            final long done;
+            if (in_flight.isEmpty()) {
+                done = Long.MAX_VALUE;
+            } else {
+                done = in_flight.first() - 1;
+            }
+            final Iterator<Barrier> it = barriers.iterator();
+            while (it.hasNext()) {
+                final Barrier barrier = it.next();
+                if (barrier.seq <= done) {
+                    if (ready == null) {
+                        ready = new ArrayList<Barrier>();
+                    }
+                    ready.add(barrier);
+                    it.remove();
+                }
+            }
+            has_barriers = !barriers.isEmpty();
+        }
+        if (ready != null) {
+            for (final Barrier barrier : ready) {
+                barrier.deferred.callback(null);
+            }
+        }
+    }
+
+    /** A job along with its bookkeeping. */
+    private final class Task implements Runnable {
+        final Job job;
+        final long seq;
+        /** Timestamp of the point written, {@code Long.MAX_VALUE} if none. */
+        final long timestamp;
+        final long submitted_at = System.nanoTime();
+        final Deferred<Object> deferred = new Deferred<Object>();
+
+        Task(final Job job, final long seq, final long timestamp) {
+            this.job = job;
+            this.seq = seq;
+            this.timestamp = timestamp;
+        }
+
+        public void run() {
+            queue_wait.add((int) Math.min(Integer.MAX_VALUE,
+                (System.nanoTime() - submitted_at) / 1000000));
+            Deferred<Object> result;
+            try {
+                result = job.run();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                result = Deferred.fromError(e);
+            } finally {
+                completed(this);
+            }
+            result.chain(deferred);
+        }
+    }
+
+    /** A pending call to {@link #flush}. */
+    private static final class Barrier {
+        /** Fires once the job with this sequence number has run. */
+        final long seq;
+        final Deferred<Object> deferred = new Deferred<Object>();
+
+        Barrier(final long seq) {
+            this.seq = seq;
+        }
+    }
+
+    /** Creates named daemon storage threads. */
+    private static final class Factory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "SqlStorage-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
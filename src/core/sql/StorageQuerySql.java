@@ -4,10 +4,18 @@ import java.util.List;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
@@ -20,19 +28,20 @@ import java.nio.ByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.hbase.async.Bytes;
 import static org.hbase.async.Bytes.ByteMap;
 import net.opentsdb.core.StorageQuery;
 import net.opentsdb.core.StorageException;
 import net.opentsdb.core.Span;
 import net.opentsdb.core.SpanGroup;
-import net.opentsdb.core.DataPoint;
-import net.opentsdb.core.DataPointImpl;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.Aggregator;
+import net.opentsdb.core.Aggregators;
 import net.opentsdb.core.RowKey;
 import net.opentsdb.core.GapFixSpan;
 import net.opentsdb.core.SpanCmp;
 import net.opentsdb.core.EmptySpanUtil;
+import net.opentsdb.core.QueryContext;
 
 public class StorageQuerySql implements StorageQuery {
     
@@ -41,6 +50,53 @@ public class StorageQuerySql implements StorageQuery {
     
     private static final Logger LOG = LoggerFactory.getLogger(StorageQuerySql.class);
     
+    /**
+     * How rows are fetched, set by {@code tsd.sql.query_fetch_size}: -1
+     * (default) streams them one by one, a positive value fetches them by
+     * that many with a server side cursor, 0 lets the driver buffer the
+     * whole result set.
+     */
+    private static final int FETCH_SIZE = Integer.getInteger("tsd.sql.query_fetch_size", -1);
+    
+    /**
+     * Maximum number of rows a query may read, set by
+     * {@code tsd.sql.query_max_rows}, 0 for no limit.
+     */
+    private static final int MAX_ROWS = Integer.getInteger("tsd.sql.query_max_rows", 10000000);
+    
+    /**
+     * Whether downsampling is done by the sql db, set by
+     * {@code tsd.sql.pushdown}, see {@link #pushDown}.
+     */
+    private static final boolean PUSHDOWN = Boolean.getBoolean("tsd.sql.pushdown");
+    
+    /**
+     * Maximum number of time slices a query is read in parallel, set by
+     * {@code tsd.sql.query_slices}.
+     */
+    private static final int MAX_SLICES = Math.max(1, Integer.getInteger("tsd.sql.query_slices", 4));
+    
+    /**
+     * Minimum length in seconds of a time slice, set by
+     * {@code tsd.sql.query_slice_seconds}.
+     */
+    private static final long MIN_SLICE = Math.max(1, Long.getLong("tsd.sql.query_slice_seconds", 86400L));
+    
+    /**
+     * Number of fragments the cached points of a series may be in before
+     * they're copied into one.
+     */
+    private static final int MAX_CACHED_FRAGMENTS = 8;
+    
+    /** Number of rows read by all the queries. */
+    static final AtomicLong rows_read = new AtomicLong();
+    
+    /** Number of queries read together with others, see {@link Batch}. */
+    static final AtomicLong batched = new AtomicLong();
+    
+    /** Number of queries aborted for reading too many rows. */
+    static final AtomicLong too_many_rows = new AtomicLong();
+    
     private final TsdbSql tsdb;
     private DataSource ds;
     private final String table_tsdb;
@@ -49,6 +105,14 @@ public class StorageQuerySql implements StorageQuery {
     private Long host_name_idl;
     private String[] tags_columns = {"hostid", "t0_valueid", "t1_valueid",
         "t2_valueid", "t3_valueid", "t4_valueid", "t5_valueid", "t6_valueid"};
+    /** Ids of the tag names of the tag columns, looked up when first needed. */
+    private byte[][] tags_column_ids = new byte[tags_columns.length][];
+    
+    /**
+     * Values of the tag columns fixed by the conditions of the query, 0 for
+     * NULL, or -1 for the columns selected, see {@link #fixColumns}.
+     */
+    private long[] fixed_columns;
     
     private byte[] metric;
     private String metricName;
@@ -65,12 +129,23 @@ public class StorageQuerySql implements StorageQuery {
     private Map<byte[], Boolean> plus_aggregate = new HashMap<byte[], Boolean>();
     private Map<String, String> extra_tags;
 
+    /**
+     * Start of the first interval of a downsampling pushed down to the sql
+     * db: the start of the query, or of the time slice being read, or of
+     * the first bucket of the rollup read.  No interval may start before the
+     * query, or {@link SpanGroup} would skip it.
+     */
+    private long bucket_origin;
+
     private Boolean isAvail;
     private Long availInterval;
 
     private short metric_width;
     private short name_width;
     private short value_width;
+    
+    /** Queries read together with this one, or {@code null}. */
+    private Batch batch;
   
     public StorageQuerySql(TsdbSql tsdb, DataSource ds, String table_tsdb, String table_tsdbtag) {
         this.tsdb = tsdb;
@@ -82,6 +157,14 @@ public class StorageQuerySql implements StorageQuery {
         this.value_width = tsdb.getTagValues().width();
     }
     
+    /**
+     * Returns the fetch size set by {@code tsd.sql.query_fetch_size}, a
+     * positive value requires server side cursors.
+     */
+    static int fetchSize() {
+        return FETCH_SIZE;
+    }
+    
     public DataPoints[] runQuery() throws StorageException {
         Map<byte[], Span> spans = queryDb();
         
@@ -145,28 +228,87 @@ public class StorageQuerySql implements StorageQuery {
         return null;
     }
     
-    private String buildQuery() {
+    /**
+     * Builds the query reading the points of the wide schema between two
+     * timestamps, inclusive.
+     * @param queries The queries read, this one and the others of its batch.
+     */
+    private String buildQuery(List<StorageQuerySql> queries, long start, long end) {
         StringBuilder host_condition = new StringBuilder();
-        StringBuilder tags_condition = new StringBuilder();
         StringBuilder group_condition = new StringBuilder();
         
         buildHostCondition(host_condition);
-        buildTagsCondition(tags_condition);
         buildGroupingCondition(group_condition);
-
-        StringBuilder query = new StringBuilder("SELECT val_int,val_dbl,ts");
-        for (String col : tags_columns) {
+        
+        int rollup = chooseRollup();
+        long covered = rollupCoveredUntil(rollup, start, end);
+        if (covered <= start) {
+            StringBuilder tags_condition = new StringBuilder();
+            buildTagsCondition(tags_condition, " is NULL");
+            return buildSelect(queries, table_tsdb + partitionClause(start, end),
+                false, start, end, host_condition,
+                tags_condition, group_condition) + " ORDER BY ts";
+        }
+        
+        StringBuilder tags_condition = new StringBuilder();
+        buildTagsCondition(tags_condition, "=0");
+        StringBuilder query = new StringBuilder("(");
+        query.append(buildSelect(queries, tsdb.getRollups().table(rollup), true, start,
+            covered - 1, host_condition, tags_condition, group_condition));
+        query.append(')');
+        if (covered <= end) {
+            tags_condition.setLength(0);
+            buildTagsCondition(tags_condition, " is NULL");
+            query.append(" UNION ALL (");
+            query.append(buildSelect(queries, table_tsdb + partitionClause(covered, end),
+                false, covered, end, host_condition,
+                tags_condition, group_condition));
+            query.append(')');
+        }
+        query.append(" ORDER BY ts");
+        return query.toString();
+    }
+    
+    private String buildSelect(List<StorageQuerySql> queries, String from,
+            boolean rollup, long start, long end,
+            StringBuilder host_condition, StringBuilder tags_condition,
+            StringBuilder group_condition) {
+        StringBuilder query = new StringBuilder("SELECT ");
+        appendValueColumns(query, rollup);
+        for (int i = 0; i < tags_columns.length; i++) {
+            if (fixed_columns[i] >= 0)
+                continue;
+            String col = tags_columns[i];
             query.append(',');
+            if (rollup) {
+                // Rollup tables store unset tags as 0, make them look
+                // like the NULLs of the data table.
+                query.append("NULLIF(").append(col).append(",0) AS ");
+            }
             query.append(col);
         }
+        if (queries.size() > 1) {
+            // tells the series of the queries apart
+            query.append(",metricid");
+        }
         query.append(" FROM ");
-        query.append(table_tsdb);
-        query.append(" WHERE metricid=");
-        query.append(DataSourceUtil.toLong(metric));
+        query.append(from);
+        if (queries.size() > 1) {
+            query.append(" WHERE metricid IN (");
+            for (int i = 0; i < queries.size(); i++) {
+                if (i > 0)
+                    query.append(',');
+                query.append(DataSourceUtil.toLong(queries.get(i).metric));
+            }
+            query.append(")");
+        } else {
+            query.append(" WHERE metricid=");
+            query.append(DataSourceUtil.toLong(metric));
+        }
         query.append(" AND ts >= ");
-        query.append(start_time);
+        query.append(start);
         query.append(" AND ts <= ");
-        query.append(end_time);
+        query.append(end);
         query.append(host_condition);
         
         if (tags_condition.length() > 0 || group_condition.length() > 0) {
@@ -183,11 +325,135 @@ public class StorageQuerySql implements StorageQuery {
         if (tags_condition.length() > 0 || group_condition.length() > 0)
            query.append(")");
         
-        query.append(" ORDER BY ts");
+        if (pushDown())
+            appendGroupBy(query, selectedColumns().length + (queries.size() > 1 ? 1 : 0));
         
         return query.toString();
     }
     
+    /**
+     * Returns the rollup to read, or -1 to read raw points only: gap
+     * filling of availability queries needs the raw points.
+     */
+    private int chooseRollup() {
+        if (tsdb.getRollups() == null || (isAvail != null && isAvail))
+            return -1;
+        return Rollups.choose(sample_interval, downsampler, pushDown());
+    }
+    
+    /**
+     * Returns where a rollup stops covering the time range of a query, 0
+     * if not used.  Also sets {@link #bucket_origin}.
+     */
+    private long rollupCoveredUntil(int rollup, long start, long end) {
+        bucket_origin = start;
+        if (rollup < 0)
+            return 0;
+        // align on the sample interval, so that no interval mixes the
+        // rollup and raw points
+        long covered = tsdb.getRollups().coveredUntil(rollup);
+        if (pushDown()) {
+            long origin = rollupOrigin(rollup, start);
+            if (covered <= origin)
+                return 0;
+            covered -= (covered - origin) % sample_interval;
+            bucket_origin = origin;
+        } else {
+            covered -= covered % sample_interval;
+        }
+        return Math.min(covered, end + 1);
+    }
+    
+    /**
+     * Returns the first bucket of a rollup at or after a timestamp: rollup
+     * rows start on their bucket, so that's where the rows read start.
+     */
+    private static long rollupOrigin(int rollup, long start) {
+        int bucket = Rollups.INTERVALS[rollup];
+        return start + (bucket - start % bucket) % bucket;
+    }
+    
+    /**
+     * Returns whether the sql db downsamples the points, which is enabled
+     * by {@code tsd.sql.pushdown}.  The query then reads one row per
+     * series and interval, computed by GROUP BY, instead of every point.
+     * Intervals start every sample interval from {@link #bucket_origin},
+     * and are stamped with their start, so that {@link Span} finds one
+     * point per interval and downsampling it again is a no-op.  Only the
+     * downsamplers sql computes are pushed down, and never for gap filling
+     * availability queries, which need the raw points.
+     */
+    private boolean pushDown() {
+        return PUSHDOWN && sample_interval > 0 && (isAvail == null || !isAvail)
+            && aggregate(downsampler) != null;
+    }
+    
+    /** Returns the sql function computing a downsampler, or {@code null}. */
+    private static String aggregate(Aggregator downsampler) {
+        if (downsampler == Aggregators.MIN)
+            return "MIN";
+        else if (downsampler == Aggregators.MAX)
+            return "MAX";
+        else if (downsampler == Aggregators.SUM)
+            return "SUM";
+        else if (downsampler == Aggregators.AVG)
+            return "AVG";
+        return null;
+    }
+    
+    /**
+     * Appends the val_int, val_dbl and ts columns of a select, of the
+     * data table or of a rollup.
+     */
+    private void appendValueColumns(StringBuilder query, boolean rollup) {
+        if (!pushDown()) {
+            if (rollup) {
+                query.append("NULL AS val_int,");
+                query.append(Rollups.valueColumn(downsampler));
+                query.append(" AS val_dbl,ts");
+            } else {
+                query.append("val_int,val_dbl,ts");
+            }
+            return;
+        }
+        String function = aggregate(downsampler);
+        if (rollup) {
+            query.append("NULL AS val_int,");
+            if (downsampler == Aggregators.AVG) {
+                query.append("SUM(val_sum)/SUM(val_cnt)");
+            } else {
+                query.append(function).append("(val_")
+                    .append(function.toLowerCase()).append(')');
+            }
+            query.append(" AS val_dbl");
+        } else {
+            // An interval is an integer if all its points are, like with
+            // the downsampling done by Span.
+            query.append("IF(COUNT(val_dbl)=0,");
+            if (downsampler == Aggregators.AVG) {
+                // integer division, as Aggregators.AVG does
+                query.append("SUM(val_int) DIV COUNT(*)");
+            } else {
+                query.append(function).append("(val_int)");
+            }
+            query.append(",NULL) AS val_int,IF(COUNT(val_dbl)=0,NULL,");
+            query.append(function).append("(IFNULL(val_dbl,val_int))) AS val_dbl");
+        }
+        query.append(",ts-(ts-").append(bucket_origin).append(")%")
+            .append(sample_interval).append(" AS ts");
+    }
+    
+    /**
+     * Appends the GROUP BY of a pushed down select, on the interval and
+     * the series columns following it.
+     */
+    private static void appendGroupBy(StringBuilder query, int series_columns) {
+        query.append(" GROUP BY 3");
+        for (int i = 0; i < series_columns; i++) {
+            query.append(',').append(4 + i);
+        }
+    }
+    
     private void buildHostCondition(StringBuilder host_condition) {
         byte[] host_id = getHostId();
 
@@ -229,7 +495,7 @@ public class StorageQuerySql implements StorageQuery {
         }
     }
     
-    private void buildTagsCondition(StringBuilder tags_condition) {
+    private void buildTagsCondition(StringBuilder tags_condition, String is_null) {
         byte[] host_id = getHostId();
 
         int name_width = tsdb.getTagNames().width();
@@ -269,7 +535,8 @@ public class StorageQuerySql implements StorageQuery {
                 tags_condition.append(" AND (");
             }
             tags_condition.append(column_name);
-            tags_condition.append(" is NULL)");
+            tags_condition.append(is_null);
+            tags_condition.append(")");
         }
     }
     
@@ -307,6 +574,57 @@ public class StorageQuerySql implements StorageQuery {
         }
     }
     
+    /**
+     * Sets {@link #fixed_columns}: tag columns with an exact value or empty
+     * in the query aren't selected, all the rows have the same value, so
+     * only the columns the series may differ by are sent.  The series still
+     * differ by all their tags, they're aggregated by {@link SpanGroup}.
+     */
+    private void fixColumns() {
+        long[] fixed = new long[tags_columns.length];
+        Arrays.fill(fixed, -1);
+        byte[] name_id = new byte[name_width];
+        byte[] value_id = new byte[value_width];
+        for (byte[] tag : tags) {
+            System.arraycopy(tag, 0, name_id, 0, name_width);
+            System.arraycopy(tag, name_width, value_id, 0, value_width);
+            int i = tagColumn(name_id);
+            if (i >= 0)
+                fixed[i] = DataSourceUtil.toLong(value_id);
+        }
+        for (byte[] empty_tag : empty_tags) {
+            int i = tagColumn(empty_tag);
+            if (i >= 0)
+                fixed[i] = 0;
+        }
+        fixed_columns = fixed;
+    }
+    
+    /** Returns the index of the tag column of a tag name, -1 if none. */
+    private int tagColumn(byte[] name_id) {
+        for (int i = 0; i < tags_columns.length; i++) {
+            if (Arrays.equals(getTagColumnId(i), name_id))
+                return i;
+        }
+        return -1;
+    }
+    
+    /** Returns the indexes of the tag columns selected. */
+    private int[] selectedColumns() {
+        int n = 0;
+        for (long value : fixed_columns) {
+            if (value < 0)
+                n++;
+        }
+        int[] selected = new int[n];
+        n = 0;
+        for (int i = 0; i < fixed_columns.length; i++) {
+            if (fixed_columns[i] < 0)
+                selected[n++] = i;
+        }
+        return selected;
+    }
+    
     private byte[] getHostId() {
         if (host_name_id == null) {
             host_name_id = tsdb.getTagNames().getId("host");
@@ -321,28 +639,184 @@ public class StorageQuerySql implements StorageQuery {
         return host_name_idl;
     }
     
+    /**
+     * Resolves the tag filters of the query to the ids of the matching
+     * series of the narrow schema.
+     * @return A map from series id to row key, sorted by series id.
+     */
+    private TreeMap<Long, byte[]> resolveSeries(SeriesIdSql series_ids) {
+        final HashMap<Long, Long> wanted = new HashMap<Long, Long>();
+        for (byte[] tag : tags) {
+            wanted.put(DataSourceUtil.toLong(Arrays.copyOfRange(tag, 0, name_width)),
+                DataSourceUtil.toLong(Arrays.copyOfRange(tag, name_width, name_width + value_width)));
+        }
+        final HashSet<Long> missing = new HashSet<Long>();
+        for (byte[] empty_tag : empty_tags) {
+            missing.add(DataSourceUtil.toLong(empty_tag));
+        }
+        final HashMap<Long, HashSet<Long>> groups = new HashMap<Long, HashSet<Long>>();
+        if (group_bys != null) {
+            for (byte[] group_by : group_bys) {
+                byte[][] value_ids = (group_by_values == null ? null : group_by_values.get(group_by));
+                if (value_ids != null && value_ids.length > 0) {
+                    HashSet<Long> values = new HashSet<Long>();
+                    for (byte[] value_id : value_ids) {
+                        values.add(DataSourceUtil.toLong(value_id));
+                    }
+                    groups.put(DataSourceUtil.toLong(group_by), values);
+                }
+            }
+        }
+        
+        TreeMap<Long, byte[]> series = new TreeMap<Long, byte[]>();
+        for (Map.Entry<Long, String> entry
+                 : series_ids.getSeries(DataSourceUtil.toLong(metric)).entrySet()) {
+            long[] kvs = SeriesIdSql.decodeTags(entry.getValue());
+            int matched_tags = 0;
+            int matched_groups = 0;
+            boolean match = true;
+            for (int i = 0; i < kvs.length && match; i += 2) {
+                Long value = wanted.get(kvs[i]);
+                if (value != null) {
+                    match = value == kvs[i + 1];
+                    matched_tags++;
+                }
+                HashSet<Long> values = groups.get(kvs[i]);
+                if (values != null) {
+                    match &= values.contains(kvs[i + 1]);
+                    matched_groups++;
+                }
+                match &= !missing.contains(kvs[i]);
+            }
+            if (match && matched_tags == wanted.size() && matched_groups == groups.size()) {
+                ArrayList<byte[]> tag_kvs = new ArrayList<byte[]>(kvs.length / 2);
+                for (int i = 0; i < kvs.length; i += 2) {
+                    byte[] tag_kv = new byte[name_width + value_width];
+                    System.arraycopy(DataSourceUtil.toBytes(kvs[i]), 0, tag_kv, 0, name_width);
+                    System.arraycopy(DataSourceUtil.toBytes(kvs[i + 1]), 0, tag_kv, name_width, value_width);
+                    tag_kvs.add(tag_kv);
+                }
+                series.put(entry.getKey(), RowKey.createRowKey(tsdb, metric, tag_kvs));
+            }
+        }
+        return series;
+    }
+    
+    /**
+     * Builds the query reading the points of series of the narrow schema
+     * between two timestamps, inclusive.
+     */
+    private String buildSeriesQuery(Set<Long> series, long start, long end) {
+        StringBuilder series_condition = new StringBuilder(" WHERE series_id IN (");
+        boolean first = true;
+        for (Long id : series) {
+            if (!first)
+                series_condition.append(',');
+            series_condition.append(id);
+            first = false;
+        }
+        series_condition.append(")");
+        
+        int rollup = chooseRollup();
+        long covered = rollupCoveredUntil(rollup, start, end);
+        StringBuilder query = new StringBuilder();
+        if (covered > start) {
+            query.append("(SELECT ");
+            appendValueColumns(query, true);
+            query.append(",series_id FROM ");
+            query.append(tsdb.getRollups().table(rollup));
+            query.append(series_condition);
+            query.append(" AND ts >= ");
+            query.append(start);
+            query.append(" AND ts < ");
+            query.append(covered);
+            if (pushDown())
+                appendGroupBy(query, 1);
+            query.append(")");
+            if (covered > end) {
+                // the order of the primary key, points of each series come sorted
+                return query.append(" ORDER BY series_id,ts").toString();
+            }
+            query.append(" UNION ALL (");
+        }
+        long from = Math.max(start, covered);
+        query.append("SELECT ");
+        appendValueColumns(query, false);
+        query.append(",series_id FROM ");
+        query.append(table_tsdb);
+        query.append(partitionClause(from, end));
+        query.append(series_condition);
+        query.append(" AND ts >= ");
+        query.append(from);
+        query.append(" AND ts <= ");
+        query.append(end);
+        if (pushDown())
+            appendGroupBy(query, 1);
+        if (covered > start)
+            query.append(")");
+        // the order of the primary key, points of each series come sorted
+        query.append(" ORDER BY series_id,ts");
+        return query.toString();
+    }
+    
+    /** Names the partitions holding the points of the query, if any. */
+    private String partitionClause(long start, long end) {
+        Partitions partitions = tsdb.getPartitions();
+        if (partitions == null)
+            return "";
+        return partitions.select(start, end);
+    }
+    
     private Map<byte[], Span> queryDb() {
-        String query = buildQuery();
-        LOG.info(query);
+        final QueryCache cache = cacheable() ? tsdb.getQueryCache() : null;
+        final String cache_key = cache != null ? cacheKey() : null;
+        final QueryCache.Entry cached = cache != null
+            ? cache.get(cache_key, start_time, end_time) : null;
+        // the points before are cached
+        final long from = cached != null ? cached.sealed : start_time;
         
+        final List<Slice> slices;
+        if (from > end_time) {
+            slices = Collections.emptyList();
+        } else if (batch != null && cached == null) {
+            // shared with the other queries of the batch, which read the
+            // same range
+            slices = checkBatchRows(batch.read(this));
+        } else {
+            slices = readSlices(Collections.singletonList(this), from);
+        }
+        final QueryContext context = QueryContext.current();
+        if (context != null && context.isCancelled()) {
+            throw new StorageException("Query of metric " + metricName
+                + " cancelled, it didn't complete before its deadline");
+        }
+        
+        // The points of each series, the cached ones then one SpanViewSql
+        // per slice it has points in, in time order.
+        TreeMap<byte[], List<SpanViewSql>> fragments =
+            new TreeMap<byte[], List<SpanViewSql>>(new SpanCmp(metric_width));
+        if (cached != null) {
+            addWindows(fragments, cached.series, start_time, end_time + 1);
+        }
+        for (Slice slice : slices) {
+            for (int i = 0; i < slice.keys.size(); i++) {
+                if (!ofMetric(slice.keys.get(i)))
+                    continue;  // of another query of the batch
+                List<SpanViewSql> rows_of_key = fragments.get(slice.keys.get(i));
+                if (rows_of_key == null) {
+                    rows_of_key = new ArrayList<SpanViewSql>(slices.size());
+                    fragments.put(slice.keys.get(i), rows_of_key);
+                }
+                rows_of_key.add(slice.span_views.get(i));
+            }
+        }
         TreeMap<byte[], Span> spans = new TreeMap<byte[], Span>(new SpanCmp(metric_width));
-        TreeMap<byte[], SpanViewSql> span_views = new TreeMap<byte[], SpanViewSql>(new SpanCmp(metric_width));
-        
-        Connection conn = null;
-        PreparedStatement st = null;
-        ResultSet rs = null;
-        try {
-            conn = ds.getConnection();
-            st = conn.prepareStatement(query);
-            rs = st.executeQuery();
-            while (rs.next()) {
-                updateSpan(spans, span_views, rs);
-            }
-        } catch (SQLException e) {
-            LOG.error("Unable to get results: " + e.getMessage());
-        } finally {
-            DataSourceUtil.close(rs, st, conn);
-        }  
+        for (Map.Entry<byte[], List<SpanViewSql>> entry : fragments.entrySet()) {
+            newSpan(spans, entry.getKey(), entry.getValue());
+        }
+        if (cache != null) {
+            updateCache(cache, cache_key, cached, from, slices);
+        }
 
         if (isAvail) {
             EmptySpanUtil.insertEmptySpans(spans, tsdb, availInterval, start_time, end_time,
@@ -352,91 +826,666 @@ public class StorageQuerySql implements StorageQuery {
         return spans;
     }
     
-    private void updateSpan(Map<byte[], Span> spans, Map<byte[], SpanViewSql> span_views, ResultSet rs)
-            throws SQLException {
+    /**
+     * Reads the points of queries from {@code from} on, in time slices.
+     * @param queries The queries read, this one and the others of its batch,
+     * which only differ by their metric.
+     * @return The slices read, holding the series of all the queries.
+     */
+    private ArrayList<Slice> readSlices(List<StorageQuerySql> queries, long from) {
+        final ArrayList<Slice> slices = new ArrayList<Slice>();
+        final SeriesIdSql series_ids = tsdb.getSeriesIds();
+        TreeMap<Long, byte[]> series = null;
+        if (series_ids != null) {
+            series = new TreeMap<Long, byte[]>();
+            for (StorageQuerySql query : queries) {
+                series.putAll(query.resolveSeries(series_ids));
+            }
+        }
+        if (series == null || !series.isEmpty()) {
+            final ByteMap<String> names = new ByteMap<String>();
+            for (StorageQuerySql query : queries) {
+                names.put(query.metric, tsdb.getMetrics().getName(query.metric));
+            }
+            if (series == null)
+                fixColumns();
+            final AtomicInteger rows = new AtomicInteger();
+            // Each query of a batch may read MAX_ROWS rows, checked once
+            // the batch is read, see checkBatchRows.
+            final int budget = (int) Math.min(Integer.MAX_VALUE - 1,
+                                              (long) MAX_ROWS * queries.size());
+            final QueryContext context = QueryContext.current();
+            final long[] bounds = slice(from, end_time);
+            for (int i = 0; i < bounds.length - 1; i++) {
+                final String query = series != null
+                    ? buildSeriesQuery(series.keySet(), bounds[i], bounds[i + 1] - 1)
+                    : buildQuery(queries, bounds[i], bounds[i + 1] - 1);
+                LOG.info(query);
+                slices.add(new Slice(query, series, names, queries.size() > 1,
+                                     rows, budget, context));
+            }
+        }
+        runSlices(slices);
         
-        List<byte[]> tag_kvs = createTagKVs(rs);
-        byte[] key = RowKey.createRowKey(tsdb, metric, tag_kvs);
-
-        DataPoint point = createPoint(rs);
-
-        SpanViewSql span_view = span_views.get(key);
-        if (span_view == null) {
-            span_view = new SpanViewSql(tsdb.getMetrics().getName(metric));
-            // set tags
-            Iterator<byte[]> i = new RowKey.TagIterator(tsdb, key);
-            while (i.hasNext()) {
-                byte[] name_id = i.next();
-                byte[] value_id = i.next();;
-                // add tag to span view only if it appears in tags or groupbys
-                boolean add = false;
-                if (group_bys != null)
-                    for (final byte[] tag_id : group_bys)
-                        if (Arrays.equals(tag_id, name_id))
-                            add = true;
-                if (!add) {
-                    int name_width = tsdb.getTagNames().width();
-                    byte[] tag_id = new byte[name_width];
-                    for (byte[] tag : tags) {
-                        System.arraycopy(tag, 0, tag_id, 0, name_width);
-                        if (Arrays.equals(tag_id, name_id))
-                            add = true;
+        int rows = 0;
+        for (Slice slice : slices) {
+            rows += slice.rows;
+        }
+        rows_read.addAndGet(rows);
+        if (queries.size() == 1 && rows > MAX_ROWS && MAX_ROWS > 0) {
+            throw tooManyRows(queries);
+        }
+        return slices;
+    }
+    
+    /**
+     * Applies the row budget of this query to the slices read by its
+     * batch: this query only fails if it reads more than its own budget,
+     * and is read again on its own if the batch as a whole was cut short.
+     * That way batching never changes which queries succeed.
+     */
+    private List<Slice> checkBatchRows(List<Slice> slices) {
+        if (MAX_ROWS <= 0)
+            return slices;
+        int rows = 0;
+        boolean truncated = false;
+        for (Slice slice : slices) {
+            truncated |= slice.truncated;
+            for (int i = 0; i < slice.keys.size(); i++) {
+                if (ofMetric(slice.keys.get(i)))
+                    rows += slice.span_views.get(i).size();
+            }
+        }
+        if (rows > MAX_ROWS)
+            throw tooManyRows(Collections.singletonList(this));
+        if (truncated) {
+            // other queries of the batch used up its budget
+            return readSlices(Collections.singletonList(this), start_time);
+        }
+        return slices;
+    }
+    
+    private static StorageException tooManyRows(List<StorageQuerySql> queries) {
+        too_many_rows.incrementAndGet();
+        return new StorageException("Query of " + describe(queries)
+            + " reads more than " + MAX_ROWS + " rows, use a shorter time"
+            + " range, more specific tags or a larger downsampling interval");
+    }
+    
+    /** Names the metrics of queries read together, for error messages. */
+    private static String describe(List<StorageQuerySql> queries) {
+        if (queries.size() == 1)
+            return "metric " + queries.get(0).metricName;
+        StringBuilder names = new StringBuilder("metrics ");
+        for (int i = 0; i < queries.size(); i++) {
+            if (i > 0)
+                names.append(", ");
+            names.append(queries.get(i).metricName);
+        }
+        return names.toString();
+    }
+    
+    /** Returns whether a row key is of the metric of this query. */
+    private boolean ofMetric(byte[] key) {
+        for (int i = 0; i < metric_width; i++) {
+            if (key[i] != metric[i])
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Returns what queries must have in common to be read by the same sql
+     * query, see {@link Batch}: their time range and downsampling, and with
+     * the wide schema their tag filters, which are part of the statement.
+     * With the narrow schema, the series of all the queries are read.
+     */
+    String batchKey() {
+        StringBuilder key = new StringBuilder(128);
+        key.append(start_time).append('-').append(end_time);
+        if (sample_interval > 0)
+            key.append('|').append(downsampler).append('-').append(sample_interval);
+        if (isAvail != null && isAvail)
+            key.append("|avail");
+        if (tsdb.getSeriesIds() == null) {
+            StringBuilder host_condition = new StringBuilder();
+            StringBuilder tags_condition = new StringBuilder();
+            StringBuilder group_condition = new StringBuilder();
+            buildHostCondition(host_condition);
+            buildTagsCondition(tags_condition, " is NULL");
+            buildGroupingCondition(group_condition);
+            key.append('|').append(host_condition).append('|').append(tags_condition)
+                .append('|').append(group_condition);
+        }
+        return key.toString();
+    }
+    
+    /** Makes this query read its points together with the others of a batch. */
+    void setBatch(Batch batch) {
+        this.batch = batch;
+    }
+    
+    byte[] getMetric() {
+        return metric;
+    }
+    
+    /**
+     * Returns whether the points read by the query may be cached: intervals
+     * pushed down to the sql db start with the query, which must then start
+     * on an interval for the cached ones to be the same as the ones read.
+     */
+    private boolean cacheable() {
+        return !pushDown() || start_time % sample_interval == 0;
+    }
+    
+    /**
+     * Returns the key of the points of the query in the {@link QueryCache}:
+     * everything but the time range that changes the rows read.  The rate
+     * and aggregator only apply once the points are read.
+     */
+    private String cacheKey() {
+        StringBuilder key = new StringBuilder(128);
+        appendHex(key, metric);
+        appendIds(key.append("|tags="), tags);
+        appendIds(key.append("|empty="), empty_tags);
+        if (group_bys != null)
+            appendIds(key.append("|group_bys="), group_bys);
+        if (group_by_values != null) {
+            for (Map.Entry<byte[], byte[][]> entry : group_by_values.entrySet()) {
+                appendHex(key.append('|'), entry.getKey());
+                appendIds(key.append('='), Arrays.asList(entry.getValue()));
+            }
+        }
+        if (sample_interval > 0)
+            key.append('|').append(downsampler).append('-').append(sample_interval);
+        if (isAvail != null && isAvail)
+            key.append("|avail=").append(availInterval);
+        return key.toString();
+    }
+    
+    /** Appends ids sorted, so that their order doesn't matter. */
+    private static void appendIds(StringBuilder key, List<byte[]> ids) {
+        ArrayList<byte[]> sorted = new ArrayList<byte[]>(ids);
+        Collections.sort(sorted, Bytes.MEMCMP);
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i > 0)
+                key.append(',');
+            appendHex(key, sorted.get(i));
+        }
+    }
+    
+    private static void appendHex(StringBuilder key, byte[] bytes) {
+        for (byte b : bytes) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16))
+                .append(Character.forDigit(b & 0xF, 16));
+        }
+    }
+    
+    /**
+     * Adds the points of {@code [from, to)} of cached series to the
+     * fragments of a query, as windows sharing the cached points.
+     */
+    private static void addWindows(Map<byte[], List<SpanViewSql>> fragments,
+                                   Map<byte[], List<SpanViewSql>> series,
+                                   long from, long to) {
+        for (Map.Entry<byte[], List<SpanViewSql>> entry : series.entrySet()) {
+            List<SpanViewSql> rows = null;
+            for (SpanViewSql fragment : entry.getValue()) {
+                SpanViewSql window = fragment.window(from, to);
+                if (window.size() == 0)
+                    continue;
+                if (rows == null) {
+                    rows = new ArrayList<SpanViewSql>(entry.getValue().size() + 1);
+                    fragments.put(entry.getKey(), rows);
+                }
+                rows.add(window);
+            }
+        }
+    }
+    
+    /**
+     * Caches the points of the query which are sealed, if that's more than
+     * were cached: the ones cached before, then the ones read since.
+     * @param cached The points cached before the query, or {@code null}.
+     * @param from The start of the points read.
+     */
+    private void updateCache(QueryCache cache, String key, QueryCache.Entry cached,
+                             long from, List<Slice> slices) {
+        long sealed = cache.sealedUntil(end_time, sample_interval > 0 ? sample_interval : 60,
+                                        tsdb.oldestPending());
+        if (sealed <= start_time || (cached != null && sealed <= cached.sealed))
+            return;
+        TreeMap<byte[], List<SpanViewSql>> series =
+            new TreeMap<byte[], List<SpanViewSql>>(new SpanCmp(metric_width));
+        if (cached != null) {
+            addWindows(series, cached.series, start_time, sealed);
+        }
+        for (Slice slice : slices) {
+            if (slice.failed)
+                return;  // don't cache partial results
+            for (int i = 0; i < slice.keys.size(); i++) {
+                if (!ofMetric(slice.keys.get(i)))
+                    continue;
+                SpanViewSql window = slice.span_views.get(i).window(from, sealed);
+                if (window.size() == 0)
+                    continue;
+                List<SpanViewSql> rows = series.get(slice.keys.get(i));
+                if (rows == null) {
+                    rows = new ArrayList<SpanViewSql>();
+                    series.put(slice.keys.get(i), rows);
+                }
+                // copied, the spans of the query keep the arrays read
+                rows.add(SpanViewSql.concat(window.metricName(),
+                                            Collections.singletonList(window)));
+            }
+        }
+        for (Map.Entry<byte[], List<SpanViewSql>> entry : series.entrySet()) {
+            List<SpanViewSql> rows = entry.getValue();
+            if (rows.size() > MAX_CACHED_FRAGMENTS) {
+                entry.setValue(Collections.singletonList(
+                    SpanViewSql.concat(rows.get(0).metricName(), rows)));
+            }
+        }
+        cache.put(key, new QueryCache.Entry(start_time, sealed, series));
+    }
+    
+    /**
+     * Splits the time range of the query in slices read in parallel, on
+     * separate connections.  There are at most {@code tsd.sql.query_slices}
+     * slices (default 4, 1 to disable), each at least
+     * {@code tsd.sql.query_slice_seconds} long (default a day), and no more
+     * than the pool has connections left.  With a sample interval, slices
+     * start on an interval, so that none is split.
+     * @param start The start of the points to read, the start of the query
+     * or the end of the points cached.
+     * @param end The end (inclusive) of the points to read.
+     * @return The start of each slice, followed by {@code end + 1}.
+     */
+    private long[] slice(long start, long end) {
+        long range = end - start + 1;
+        int n = (int) Math.min(MAX_SLICES, (range + MIN_SLICE - 1) / MIN_SLICE);
+        if (n > 1) {
+            n = Math.min(n, DataSourceUtil.availableConnections(ds));
+        }
+        if (n <= 1) {
+            return new long[] { start, end + 1 };
+        }
+        long origin = start;
+        long unit = 1;
+        if (sample_interval > 0) {
+            unit = sample_interval;
+            int rollup = chooseRollup();
+            if (rollup >= 0 && pushDown()) {
+                // intervals start on the buckets of the rollup
+                origin = rollupOrigin(rollup, start);
+            }
+        }
+        long length = (end + 1 - origin + n - 1) / n;
+        length = (length + unit - 1) / unit * unit;
+        ArrayList<Long> bounds = new ArrayList<Long>(n + 1);
+        bounds.add(start);
+        for (long bound = origin + length; bound <= end; bound += length) {
+            bounds.add(bound);
+        }
+        bounds.add(end + 1);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+    
+    /**
+     * Reads the slices of the query, the first one on the current thread
+     * and the others on the threads of the {@link SliceExecutor}.
+     */
+    private void runSlices(List<Slice> slices) {
+        if (slices.isEmpty()) {
+            return;
+        }
+        ArrayList<Future<Slice>> futures = new ArrayList<Future<Slice>>(slices.size());
+        for (int i = 1; i < slices.size(); i++) {
+            futures.add(tsdb.getSliceExecutor().submit(slices.get(i)));
+        }
+        slices.get(0).call();
+        for (Future<Slice> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Interrupted while reading " + metricName);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new StorageException("Unable to read " + metricName + ": "
+                    + e.getCause());
+            }
+        }
+    }
+    
+    /** The series and points read by the query of one slice. */
+    private final class Slice implements Callable<Slice> {
+        
+        private final String query;
+        
+        /** Row keys of the series of the narrow schema, or {@code null}. */
+        private final TreeMap<Long, byte[]> series;
+        
+        /** Names of the metrics read, by id. */
+        private final ByteMap<String> names;
+        
+        /** Whether rows of the wide schema end with their metric id. */
+        private final boolean metric_column;
+        
+        /** Rows read by all the slices of the query, for the budget. */
+        private final AtomicInteger query_rows;
+        
+        /** Maximum number of rows of all the slices of the query. */
+        private final int budget;
+        
+        /** Series read, in the order they first appeared. */
+        final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        
+        /** Points of each series, in the same order as {@link #keys}. */
+        final ArrayList<SpanViewSql> span_views = new ArrayList<SpanViewSql>();
+        
+        /** Rows read by this slice. */
+        int rows;
+        
+        /** Whether reading the slice failed, its points are then partial. */
+        boolean failed;
+        
+        /** Whether the slice stopped reading at the row budget. */
+        boolean truncated;
+        
+        /** Deadline of the request, or {@code null}. */
+        private final QueryContext context;
+        
+        Slice(String query, TreeMap<Long, byte[]> series, ByteMap<String> names,
+              boolean metric_column, AtomicInteger query_rows, int budget,
+              QueryContext context) {
+            this.query = query;
+            this.series = series;
+            this.names = names;
+            this.metric_column = metric_column;
+            this.query_rows = query_rows;
+            this.budget = budget;
+            this.context = context;
+        }
+        
+        public Slice call() {
+            Connection conn = null;
+            PreparedStatement st = null;
+            ResultSet rs = null;
+            QueryContext.Cancellable cancel = null;
+            try {
+                if (context != null && context.isCancelled()) {
+                    failed = true;
+                    return this;
+                }
+                conn = ds.getConnection();
+                st = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
+                                           ResultSet.CONCUR_READ_ONLY);
+                if (context != null) {
+                    final long remaining = context.remainingMillis();
+                    if (remaining != Long.MAX_VALUE) {
+                        // the server stops on its own too
+                        st.setQueryTimeout((int) Math.max(1, (remaining + 999) / 1000));
+                    }
+                    cancel = new Cancel(st);
+                    if (!context.register(cancel)) {
+                        failed = true;
+                        return this;
                     }
                 }
-                if (add)
-                    span_view.putTag(tsdb.getTagNames().getName(name_id), tsdb.getTagValues().getName(value_id));
+                if (FETCH_SIZE != 0) {
+                    // rows are decoded into the spans as they arrive rather
+                    // than buffered by the driver first
+                    st.setFetchSize(FETCH_SIZE < 0 ? Integer.MIN_VALUE : FETCH_SIZE);
+                }
+                if (MAX_ROWS > 0) {
+                    // one more row tells us the budget is exceeded, and the
+                    // server stops there so there's nothing left to drain
+                    st.setMaxRows(budget + 1);
+                }
+                rs = st.executeQuery();
+                // The ids identifying the series of the current row: the
+                // series id, or the values of the tag columns with 0 for
+                // NULL and the metric id of a batch.  Rows are decoded into
+                // it and looked up without allocating anything until a new
+                // series shows up.
+                final long[] ids;
+                // the id each column from the 4th on is decoded into
+                final int[] columns;
+                if (series != null) {
+                    ids = new long[1];
+                    columns = new int[] { 0 };
+                } else {
+                    ids = new long[tags_columns.length + (metric_column ? 1 : 0)];
+                    for (int i = 0; i < tags_columns.length; i++) {
+                        ids[i] = Math.max(0, fixed_columns[i]);
+                    }
+                    int[] selected = selectedColumns();
+                    columns = Arrays.copyOf(selected, selected.length + (metric_column ? 1 : 0));
+                    if (metric_column)
+                        columns[selected.length] = tags_columns.length;
+                }
+                final SeriesMap<SpanViewSql> seen = new SeriesMap<SpanViewSql>(ids.length);
+                SpanViewSql span_view = null;
+                while (rs.next()) {
+                    rows++;
+                    if (MAX_ROWS > 0 && query_rows.incrementAndGet() > budget) {
+                        truncated = true;
+                        break;
+                    }
+                    boolean same_series = span_view != null;
+                    for (int i = 0; i < columns.length; i++) {
+                        long id = rs.getLong(4 + i);
+                        if (rs.wasNull())
+                            id = 0;
+                        if (id != ids[columns[i]]) {
+                            ids[columns[i]] = id;
+                            same_series = false;
+                        }
+                    }
+                    if (!same_series) {
+                        span_view = seen.get(ids);
+                        if (span_view == null) {
+                            byte[] key = series != null ? series.get(ids[0])
+                                : RowKey.createRowKey(tsdb, metric_column
+                                    ? Arrays.copyOf(DataSourceUtil.toBytes(ids[ids.length - 1]), metric_width)
+                                    : metric, createTagKVs(ids));
+                            keys.add(key);
+                            span_view = new SpanViewSql(names.get(Arrays.copyOf(key, metric_width)));
+                            span_views.add(span_view);
+                            seen.put(ids, span_view);
+                        }
+                    }
+                    addPoint(span_view, rs);
+                }
+            } catch (SQLException e) {
+                failed = true;
+                LOG.error("Unable to get results: " + e.getMessage());
+                if (tsdb.getPartitions() != null && query.contains(" PARTITION (")) {
+                    // a partition may have been dropped by another TSD
+                    tsdb.getPartitions().invalidate();
+                }
+            } finally {
+                if (cancel != null)
+                    context.unregister(cancel);
+                DataSourceUtil.close(rs, st, conn);
             }
-            
-            span_views.put(key, span_view);
-            List<SpanViewSql> rows = new ArrayList<SpanViewSql>();
-            rows.add(span_view);
-            Span s = null;
-            if (isAvail) {
-              LOG.info("AVAILABILITY: initializing span gap fixer, interval: " + availInterval);
-              s = new GapFixSpan(availInterval, 0.0, false, start_time, end_time); 
-            } else {
-              s = new Span();
+            return this;
+        }
+        
+        public String toString() {
+            return "Slice(" + query + ")";
+        }
+    }
+    
+    /** Cancels a statement being executed, when its request gives up. */
+    private static final class Cancel implements QueryContext.Cancellable {
+        
+        private final PreparedStatement st;
+        
+        Cancel(PreparedStatement st) {
+            this.st = st;
+        }
+        
+        public void cancel() {
+            try {
+                st.cancel();
+            } catch (SQLException e) {
+                LOG.warn("Unable to cancel query: " + e.getMessage());
             }
-            s.setSpanViews(rows);
-            spans.put(key, s);
         }
-            
-        span_view.addPoint(point);
     }
     
-    private DataPointImpl createPoint(ResultSet rs) throws SQLException {
+    /**
+     * Queries of a request which are read by the same sql query, on one
+     * connection per time slice rather than one per query, see
+     * {@link TsdbSql#batchQueries}.  The first of them to run reads the
+     * points of all, the others wait for it and keep the series of their
+     * metric.  Queries whose points are cached read them on their own.
+     */
+    static final class Batch {
+        
+        private final List<StorageQuerySql> queries;
+        
+        /** Guarded by {@code this}. */
+        private boolean started;
+        private boolean done;
+        private List<Slice> slices;
+        private RuntimeException error;
+        
+        Batch(List<StorageQuerySql> queries) {
+            this.queries = queries;
+        }
+        
+        /** Returns the slices read for a query of the batch, reading them if first. */
+        List<Slice> read(StorageQuerySql query) {
+            synchronized (this) {
+                if (started) {
+                    return await(query);
+                }
+                started = true;
+            }
+            List<Slice> result = null;
+            RuntimeException failure = null;
+            try {
+                result = query.readSlices(queries, query.start_time);
+                return result;
+            } catch (RuntimeException e) {
+                failure = e;
+                throw e;
+            } finally {
+                synchronized (this) {
+                    slices = result;
+                    error = failure;
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+        
+        /** Waits for the query reading the batch.  Must hold the lock. */
+        private List<Slice> await(StorageQuerySql query) {
+            boolean interrupted = false;
+            try {
+                while (!done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw new StorageException("Unable to read " + query.metricName
+                    + ": " + error.getMessage());
+            }
+            return slices;
+        }
+    }
+    
+    /**
+     * Creates the span of a new series.
+     * @param rows The points of the series, by time slice.
+     */
+    private void newSpan(Map<byte[], Span> spans, byte[] key, List<SpanViewSql> rows) {
+        SpanViewSql span_view = rows.get(0);
+        // set tags
+        Iterator<byte[]> i = new RowKey.TagIterator(tsdb, key);
+        while (i.hasNext()) {
+            byte[] name_id = i.next();
+            byte[] value_id = i.next();;
+            // add tag to span view only if it appears in tags or groupbys
+            boolean add = false;
+            if (group_bys != null)
+                for (final byte[] tag_id : group_bys)
+                    if (Arrays.equals(tag_id, name_id))
+                        add = true;
+            if (!add) {
+                int name_width = tsdb.getTagNames().width();
+                byte[] tag_id = new byte[name_width];
+                for (byte[] tag : tags) {
+                    System.arraycopy(tag, 0, tag_id, 0, name_width);
+                    if (Arrays.equals(tag_id, name_id))
+                        add = true;
+                }
+            }
+            if (add)
+                span_view.putTag(tsdb.getTagNames().getName(name_id), tsdb.getTagValues().getName(value_id));
+        }
+        
+        Span s = null;
+        if (isAvail) {
+          LOG.info("AVAILABILITY: initializing span gap fixer, interval: " + availInterval);
+          s = new GapFixSpan(availInterval, 0.0, false, start_time, end_time); 
+        } else {
+          s = new Span();
+        }
+        s.setSpanViews(rows);
+        spans.put(key, s);
+    }
+    
+    private static void addPoint(SpanViewSql span_view, ResultSet rs) throws SQLException {
         double val_dbl = rs.getDouble(2);
         if (!rs.wasNull())
-            return new DataPointImpl(rs.getLong(3), val_dbl);
+            span_view.addPoint(rs.getLong(3), val_dbl);
         else
-            return new DataPointImpl(rs.getLong(3), rs.getLong(1));
+            span_view.addPoint(rs.getLong(3), rs.getLong(1));
     }
 
-    private List<byte[]> createTagKVs(ResultSet rs) throws SQLException {
-        ArrayList<byte[]> tag_kvs = new ArrayList<byte[]>();
-        for (String tagcol : tags_columns) {
-            if ("hostid".equals(tagcol)) {
-                long host_value_id = rs.getLong(4);
-                if (!rs.wasNull()) {
-                    byte[] tag_kv = new byte[name_width + value_width];
-                    System.arraycopy(getHostId(), 0, tag_kv, 0, name_width);
-                    System.arraycopy(DataSourceUtil.toBytes(host_value_id), 0, tag_kv, name_width, value_width);
-                    tag_kvs.add(tag_kv);
-                }
-            } else {
-                long value_id = rs.getLong(tagcol);
-                if (!rs.wasNull()) {
-                    String tag = tagcol.substring(0, 2);
-                    byte[] tag_kv = new byte[name_width + value_width];
-                    System.arraycopy(tsdb.getTagNames().getId(tag), 0, tag_kv, 0, name_width);
-                    System.arraycopy(DataSourceUtil.toBytes(value_id), 0, tag_kv, name_width, value_width);
-                    tag_kvs.add(tag_kv);
-                }
-            }
+    /**
+     * Creates the tags of a row of the wide schema.
+     * @param ids The values of the tag columns, 0 for NULL, possibly
+     * followed by the metric id.
+     */
+    private List<byte[]> createTagKVs(long[] ids) {
+        ArrayList<byte[]> tag_kvs = new ArrayList<byte[]>(tags_columns.length);
+        for (int i = 0; i < tags_columns.length; i++) {
+            if (ids[i] == 0)
+                continue;
+            byte[] tag_kv = new byte[name_width + value_width];
+            System.arraycopy(getTagColumnId(i), 0, tag_kv, 0, name_width);
+            System.arraycopy(DataSourceUtil.toBytes(ids[i]), 0, tag_kv, name_width, value_width);
+            tag_kvs.add(tag_kv);
         }
-
         return tag_kvs;
     }
+    
+    /** Returns the id of the tag name stored in a tag column. */
+    private byte[] getTagColumnId(int i) {
+        if (tags_column_ids[i] == null) {
+            tags_column_ids[i] = i == 0 ? getHostId()
+                : tsdb.getTagNames().getId(tags_columns[i].substring(0, 2));
+        }
+        return tags_column_ids[i];
+    }
 
     
     public void setMetric(byte[] metric) {
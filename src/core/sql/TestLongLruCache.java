@@ -0,0 +1,70 @@
+package net.opentsdb.core.sql;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public final class TestLongLruCache {
+
+    @Test
+    public void getAndCount() {
+        final LongLruCache<String> cache = new LongLruCache<String>(10);
+        assertNull(cache.get(42));
+        assertNull(cache.putIfAbsent(42, "foo"));
+        assertEquals("foo", cache.get(42));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void putIfAbsent() {
+        final LongLruCache<String> cache = new LongLruCache<String>(10);
+        assertNull(cache.putIfAbsent(1, "foo"));
+        assertEquals("foo", cache.putIfAbsent(1, "bar"));
+        assertEquals("foo", cache.get(1));
+    }
+
+    @Test
+    public void evictsEntriesNotUsed() {
+        final LongLruCache<String> cache = new LongLruCache<String>(3, 1);
+        cache.putIfAbsent(1, "a");
+        cache.putIfAbsent(2, "b");
+        cache.putIfAbsent(3, "c");
+        cache.get(1);
+        cache.get(3);
+        cache.putIfAbsent(4, "d");
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.evictions());
+        assertNull(cache.get(2));
+        assertEquals("a", cache.get(1));
+        assertEquals("c", cache.get(3));
+        assertEquals("d", cache.get(4));
+    }
+
+    @Test
+    public void neverExceedsMaxSize() {
+        final LongLruCache<Long> cache = new LongLruCache<Long>(100);
+        for (long i = 0; i < 10000; i++) {
+            cache.putIfAbsent(i, i);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(9900, cache.evictions());
+        // the entries left are still found after all the removals
+        int found = 0;
+        for (long i = 0; i < 10000; i++) {
+            final Long value = cache.get(i);
+            if (value != null) {
+                assertEquals(i, value.longValue());
+                found++;
+            }
+        }
+        assertEquals(100, found);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidMaxSize() {
+        new LongLruCache<String>(0);
+    }
+
+}
@@ -0,0 +1,78 @@
+package net.opentsdb.core.sql;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public final class TestLruCache {
+
+    @Test
+    public void getAndCount() {
+        final LruCache<String, String> cache = new LruCache<String, String>(10);
+        assertNull(cache.get("foo"));
+        cache.put("foo", "bar");
+        assertEquals("bar", cache.get("foo"));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final LruCache<Integer, String> cache = new LruCache<Integer, String>(3, 1);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        cache.get(1);  // 2 is now the least recently used.
+        cache.put(4, "d");
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.evictions());
+        assertNull(cache.get(2));
+        assertEquals("a", cache.get(1));
+        assertEquals("d", cache.get(4));
+    }
+
+    @Test
+    public void neverExceedsMaxSize() {
+        final LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(100);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(i, i);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(9900, cache.evictions());
+    }
+
+    @Test
+    public void putIfAbsent() {
+        final LruCache<String, String> cache = new LruCache<String, String>(10);
+        assertNull(cache.putIfAbsent("foo", "bar"));
+        assertEquals("bar", cache.putIfAbsent("foo", "qux"));
+        assertEquals("bar", cache.get("foo"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidMaxSize() {
+        new LruCache<String, String>(0);
+    }
+
+    @Test
+    public void seriesKeyIgnoresTagOrder() {
+        final HashMap<String, String> tags = new HashMap<String, String>();
+        tags.put("host", "foo");
+        tags.put("t0", "bar");
+        final HashMap<String, String> other = new HashMap<String, String>();
+        other.put("t0", "bar");
+        other.put("host", "foo");
+        final LruCache<SeriesTemplate.Key, SeriesTemplate> cache =
+            new LruCache<SeriesTemplate.Key, SeriesTemplate>(10);
+        final SeriesTemplate series = new SeriesTemplate(1, new long[] {2, 3, 0, 0, 0, 0, 0, 0});
+        cache.put(new SeriesTemplate.Key("sys.cpu", tags).copy(), series);
+        assertSame(series, cache.get(new SeriesTemplate.Key("sys.cpu", other)));
+        assertNull(cache.get(new SeriesTemplate.Key("sys.mem", other)));
+        assertEquals(",1,2,3,NULL,NULL,NULL,NULL,NULL,NULL)", series.valuesSuffix());
+    }
+
+}
@@ -0,0 +1,83 @@
+package net.opentsdb.core.sql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import net.opentsdb.core.SpanCmp;
+
+public final class TestQueryCache {
+
+    /** An entry of {@code [start, sealed)} holding one series. */
+    private static QueryCache.Entry entry(long start, long sealed, int npoints) {
+        SpanViewSql span = new SpanViewSql("sys.cpu");
+        for (int i = 0; i < npoints; i++)
+            span.addPoint(start + i, (long) i);
+        List<SpanViewSql> rows = new ArrayList<SpanViewSql>();
+        rows.add(span);
+        Map<byte[], List<SpanViewSql>> series =
+            new TreeMap<byte[], List<SpanViewSql>>(new SpanCmp((short) 3));
+        series.put(new byte[] { 0, 0, 1 }, rows);
+        return new QueryCache.Entry(start, sealed, series);
+    }
+
+    @Test
+    public void getsEntriesHoldingTheStart() {
+        QueryCache cache = new QueryCache(1 << 20);
+        QueryCache.Entry entry = entry(1000, 2000, 10);
+        cache.put("q", entry);
+        assertSame(entry, cache.get("q", 1000, 1500));
+        assertSame(entry, cache.get("q", 1200, 3000));
+        assertNull(cache.get("q", 900, 1500));
+        assertNull(cache.get("q", 2000, 3000));
+        assertNull(cache.get("other", 1000, 1500));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        QueryCache.Entry entry = entry(1000, 2000, 1000);
+        QueryCache cache = new QueryCache(entry.bytes * 2 + entry.bytes / 2);
+        cache.put("a", entry);
+        cache.put("b", entry(1000, 2000, 1000));
+        assertNotNull(cache.get("a", 1000, 1500));  // b is now the least recently used
+        cache.put("c", entry(1000, 2000, 1000));
+        assertNull(cache.get("b", 1000, 1500));
+        assertNotNull(cache.get("a", 1000, 1500));
+        assertNotNull(cache.get("c", 1000, 1500));
+    }
+
+    @Test
+    public void skipsEntriesLargerThanTheCache() {
+        QueryCache cache = new QueryCache(1024);
+        cache.put("q", entry(1000, 2000, 1000));
+        assertNull(cache.get("q", 1000, 1500));
+    }
+
+    @Test
+    public void sealsOnInterval() {
+        QueryCache cache = new QueryCache(1 << 20);
+        assertEquals(1200, cache.sealedUntil(1234, 60, Long.MAX_VALUE));
+        long now = System.currentTimeMillis() / 1000;
+        long sealed = cache.sealedUntil(now + 3600, 60, Long.MAX_VALUE);
+        assertEquals(0, sealed % 60);
+        assertEquals(true, sealed <= now - 120);
+    }
+
+    @Test
+    public void pendingPointsHoldBackSealed() {
+        QueryCache cache = new QueryCache(1 << 20);
+        long now = System.currentTimeMillis() / 1000;
+        // points of an hour ago still waiting to be written
+        long sealed = cache.sealedUntil(now + 3600, 60, now - 3600);
+        assertEquals(true, sealed <= now - 3600 - 120);
+        assertEquals(true, cache.sealedUntil(now, 60, 0) <= 0);
+    }
+
+}
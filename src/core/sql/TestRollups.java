@@ -0,0 +1,34 @@
+package net.opentsdb.core.sql;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import net.opentsdb.core.Aggregators;
+
+public final class TestRollups {
+
+    @Test
+    public void choosesCoarsestRollup() {
+        assertEquals(1, Rollups.choose(3600, Aggregators.AVG, true));
+        assertEquals(1, Rollups.choose(86400, Aggregators.MAX, false));
+        assertEquals(0, Rollups.choose(300, Aggregators.MIN, false));
+        assertEquals(0, Rollups.choose(5400, Aggregators.SUM, true));
+    }
+
+    @Test
+    public void rawWhenRollupsDontFit() {
+        assertEquals(-1, Rollups.choose(0, Aggregators.AVG, true));
+        assertEquals(-1, Rollups.choose(90, Aggregators.AVG, true));
+        assertEquals(-1, Rollups.choose(3600, Aggregators.DEV, true));
+        assertNull(Rollups.valueColumn(Aggregators.PCT95));
+    }
+
+    @Test
+    public void averagesOnlyWhenPushedDown() {
+        // the downsampler would average the bucket averages
+        assertEquals(-1, Rollups.choose(3600, Aggregators.AVG, false));
+        assertNull(Rollups.valueColumn(Aggregators.AVG));
+    }
+
+}
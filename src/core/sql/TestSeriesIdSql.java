@@ -0,0 +1,50 @@
+package net.opentsdb.core.sql;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public final class TestSeriesIdSql {
+
+    @Test
+    public void encodeSortsByTagName() {
+        assertEquals("3=30,7=70,12=120", SeriesIdSql.encodeTags(
+            new long[] {12, 3, 7}, new long[] {120, 30, 70}));
+    }
+
+    @Test
+    public void encodeNoTags() {
+        assertEquals("", SeriesIdSql.encodeTags(new long[0], new long[0]));
+        assertEquals(0, SeriesIdSql.decodeTags("").length);
+    }
+
+    @Test
+    public void decode() {
+        assertArrayEquals(new long[] {3, 30, 7, 70, 12, 120},
+                          SeriesIdSql.decodeTags("3=30,7=70,12=120"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void decodeInvalid() {
+        SeriesIdSql.decodeTags("3=30,7");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void encodeTooLong() {
+        final long[] tagks = new long[100];
+        final long[] tagvs = new long[100];
+        for (int i = 0; i < tagks.length; i++) {
+            tagks[i] = Long.MAX_VALUE - i;
+            tagvs[i] = Long.MAX_VALUE - i;
+        }
+        SeriesIdSql.encodeTags(tagks, tagvs);
+    }
+
+    @Test
+    public void narrowTemplate() {
+        final SeriesTemplate series = new SeriesTemplate(42);
+        assertEquals(",42)", series.valuesSuffix());
+        assertEquals("\t42\n", series.tsvSuffix());
+    }
+
+}
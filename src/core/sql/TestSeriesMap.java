@@ -0,0 +1,43 @@
+package net.opentsdb.core.sql;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public final class TestSeriesMap {
+
+    @Test
+    public void getAndPut() {
+        SeriesMap<String> map = new SeriesMap<String>(3);
+        long[] key = { 1, 0, 7 };
+        assertNull(map.get(key));
+        map.put(key, "a");
+        // the key is copied
+        key[2] = 8;
+        assertNull(map.get(key));
+        map.put(key, "b");
+        assertEquals("a", map.get(new long[] { 1, 0, 7 }));
+        assertEquals("b", map.get(new long[] { 1, 0, 8 }));
+        map.put(key, "c");
+        assertEquals("c", map.get(new long[] { 1, 0, 8 }));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void grows() {
+        SeriesMap<Long> map = new SeriesMap<Long>(2);
+        long[] key = new long[2];
+        for (long i = 0; i < 10000; i++) {
+            key[0] = i % 100;
+            key[1] = i / 100;
+            map.put(key, i);
+        }
+        assertEquals(10000, map.size());
+        for (long i = 0; i < 10000; i++) {
+            key[0] = i % 100;
+            key[1] = i / 100;
+            assertEquals(Long.valueOf(i), map.get(key));
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package net.opentsdb.core.sql;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.SeekableView;
+
+public final class TestSpanViewSql {
+
+    private static SpanViewSql span(int npoints) {
+        SpanViewSql span = new SpanViewSql("sys.cpu");
+        for (int i = 0; i < npoints; i++) {
+            if (i % 2 == 0)
+                span.addPoint(1000 + i * 10, (long) i);
+            else
+                span.addPoint(1000 + i * 10, i / 2.0);
+        }
+        return span;
+    }
+
+    @Test
+    public void storesLongsAndDoubles() {
+        SpanViewSql span = span(100);
+        assertEquals(100, span.size());
+        assertEquals(1000, span.timestamp(0));
+        assertTrue(span.isInteger(0));
+        assertEquals(42, span.longValue(42));
+        assertFalse(span.isInteger(43));
+        assertEquals(1430, span.timestamp(43));
+        assertEquals(21.5, span.doubleValue(43), 0.0);
+    }
+
+    @Test
+    public void iterates() {
+        SeekableView it = span(37).iterator();
+        int n = 0;
+        while (it.hasNext()) {
+            DataPoint dp = it.next();
+            assertEquals(1000 + n * 10, dp.timestamp());
+            assertEquals(n % 2 == 0 ? n : n / 2.0, dp.toDouble(), 0.0);
+            n++;
+        }
+        assertEquals(37, n);
+    }
+
+    @Test
+    public void seeksForward() {
+        SeekableView it = span(100).iterator();
+        it.seek(1255);
+        assertEquals(1260, it.next().timestamp());
+        it.seek(1500);
+        assertEquals(1500, it.next().timestamp());
+        // Seeking backwards doesn't move the iterator.
+        it.seek(1000);
+        assertEquals(1510, it.next().timestamp());
+        it.seek(5000);
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void windowSharesPoints() {
+        SpanViewSql window = span(100).window(1255, 1300);
+        assertEquals(4, window.size());
+        assertEquals(1260, window.timestamp(0));
+        assertEquals(26, window.longValue(0));
+        assertEquals(1290, window.timestamp(3));
+        assertEquals(14.5, window.doubleValue(3), 0.0);
+        SeekableView it = window.iterator();
+        it.seek(1280);
+        assertEquals(1280, it.next().timestamp());
+        assertEquals(1290, it.next().timestamp());
+        assertFalse(it.hasNext());
+        assertEquals(0, span(100).window(5000, 6000).size());
+    }
+
+    @Test(expected=UnsupportedOperationException.class)
+    public void windowIsReadOnly() {
+        span(10).window(1000, 1050).addPoint(1200, 1L);
+    }
+
+    @Test
+    public void concatCopiesPoints() {
+        SpanViewSql span = span(100);
+        SpanViewSql copy = SpanViewSql.concat("sys.cpu",
+            Arrays.asList(span.window(1000, 1020), span.window(1500, 1520)));
+        assertEquals(4, copy.size());
+        assertEquals(1010, copy.timestamp(1));
+        assertEquals(0.5, copy.doubleValue(1), 0.0);
+        assertEquals(1500, copy.timestamp(2));
+        assertEquals(50, copy.longValue(2));
+        copy.addPoint(1600, 60L);
+        assertEquals(5, copy.size());
+    }
+
+    @Test(expected=ClassCastException.class)
+    public void longValueOfDouble() {
+        span(2).longValue(1);
+    }
+
+}
@@ -0,0 +1,188 @@
+package net.opentsdb.core.sql;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import com.stumbleupon.async.Deferred;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.opentsdb.core.StorageException;
+
+public final class TestSpool {
+
+    /** Size of a record: length, CRC, flags, timestamp, value, metric and tags. */
+    private static final int RECORD_SIZE =
+        4 + 4 + 1 + 8 + 8 + 8 + 8 * SeriesTemplate.NUM_TAG_COLUMNS;
+
+    private static final SeriesTemplate SERIES =
+        new SeriesTemplate(1, new long[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+
+    private File dir;
+
+    /** Without a db, replays fail and the points stay in the spool. */
+    private InsertQueue insert_queue;
+
+    private final ArrayList<Spool> spools = new ArrayList<Spool>();
+
+    @Before
+    public void before() throws Exception {
+        dir = File.createTempFile("spool", "");
+        dir.delete();
+        insert_queue = new InsertQueue(null, "tsdb", null, 10);
+    }
+
+    @After
+    public void after() throws Exception {
+        for (final Spool spool : spools) {
+            spool.shutdown();
+        }
+        insert_queue.abandon();
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        System.clearProperty("tsd.sql.spool_segment_size");
+        System.clearProperty("tsd.sql.spool_max_size");
+        System.clearProperty("tsd.sql.spool_fsync");
+    }
+
+    private Spool open() {
+        final Spool spool = new Spool(dir, insert_queue, 100);
+        spools.add(spool);
+        return spool;
+    }
+
+    /** Closes a spool the way a restart would. */
+    private static void close(final Spool spool) throws Exception {
+        spool.shutdown().joinUninterruptibly();
+    }
+
+    private static void append(final Spool spool, final int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            spool.append(SERIES, 1356998400 + i, i).joinUninterruptibly(5000);
+        }
+    }
+
+    private RandomAccessFile segment(final long id) throws Exception {
+        return new RandomAccessFile(new File(dir, "spool-" + id + ".seg"), "rw");
+    }
+
+    @Test
+    public void appendAndRecover() throws Exception {
+        final Spool spool = open();
+        assertEquals(0, spool.backlog());
+        assertEquals(Long.MAX_VALUE, spool.oldestPending());
+        append(spool, 3);
+        assertEquals(3 * RECORD_SIZE, spool.backlog());
+        close(spool);
+
+        final Spool recovered = open();
+        assertEquals(3 * RECORD_SIZE, recovered.backlog());
+        // not known until the backlog is being replayed
+        assertTrue(recovered.oldestPending() <= 1356998400);
+        append(recovered, 1);
+        assertEquals(4 * RECORD_SIZE, recovered.backlog());
+    }
+
+    @Test
+    public void dropsATornTail() throws Exception {
+        close(appendTo(open(), 3));
+        // half a record, as left by a crash in the middle of an append
+        final RandomAccessFile raf = segment(1);
+        try {
+            final byte[] record = new byte[RECORD_SIZE];
+            raf.seek(0);
+            raf.readFully(record);
+            raf.seek(3 * RECORD_SIZE);
+            raf.write(record, 0, RECORD_SIZE / 2);
+        } finally {
+            raf.close();
+        }
+        final Spool recovered = open();
+        assertEquals(3 * RECORD_SIZE, recovered.backlog());
+        append(recovered, 1);
+        assertEquals(4 * RECORD_SIZE, recovered.backlog());
+    }
+
+    @Test
+    public void stopsAtACorruptRecord() throws Exception {
+        close(appendTo(open(), 3));
+        final RandomAccessFile raf = segment(1);
+        try {
+            // flip a byte of the timestamp of the second record
+            final long pos = RECORD_SIZE + 8 + 1 + 7;
+            raf.seek(pos);
+            final int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+        final Spool recovered = open();
+        assertEquals(RECORD_SIZE, recovered.backlog());
+        // appends go over the corrupted record
+        append(recovered, 1);
+        assertEquals(2 * RECORD_SIZE, recovered.backlog());
+        close(recovered);
+        assertEquals(2 * RECORD_SIZE, open().backlog());
+    }
+
+    @Test
+    public void rotatesSegments() throws Exception {
+        // room for 2 records and the end of segment marker
+        final int segment_size = 2 * RECORD_SIZE + 4;
+        System.setProperty("tsd.sql.spool_segment_size", Integer.toString(segment_size));
+        final Spool spool = appendTo(open(), 5);
+        final long backlog = 2 * segment_size + RECORD_SIZE;
+        assertEquals(backlog, spool.backlog());
+        for (int id = 1; id <= 3; id++) {
+            assertTrue(new File(dir, "spool-" + id + ".seg").exists());
+        }
+        close(spool);
+        assertEquals(backlog, open().backlog());
+    }
+
+    @Test
+    public void rejectsWhenFull() throws Exception {
+        final int segment_size = 2 * RECORD_SIZE + 4;
+        System.setProperty("tsd.sql.spool_segment_size", Integer.toString(segment_size));
+        System.setProperty("tsd.sql.spool_max_size", Integer.toString(2 * segment_size));
+        final Spool spool = appendTo(open(), 4);
+        try {
+            spool.append(SERIES, 1356998400, 42).joinUninterruptibly(5000);
+            fail("should have been rejected");
+        } catch (StorageException e) {
+            // expected
+        }
+        assertEquals(segment_size + 2 * RECORD_SIZE, spool.backlog());
+    }
+
+    @Test
+    public void fsyncAlwaysCallsBackOnceForced() throws Exception {
+        System.setProperty("tsd.sql.spool_fsync", "always");
+        final Spool spool = open();
+        final ArrayList<Deferred<Object>> appends = new ArrayList<Deferred<Object>>();
+        for (int i = 0; i < 100; i++) {
+            appends.add(spool.append(SERIES, 1356998400 + i, i));
+        }
+        Deferred.group(appends).joinUninterruptibly(5000);
+        close(spool);
+        assertEquals(100 * RECORD_SIZE, open().backlog());
+    }
+
+    private static Spool appendTo(final Spool spool, final int n) throws Exception {
+        append(spool, n);
+        return spool;
+    }
+
+}
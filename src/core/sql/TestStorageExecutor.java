@@ -0,0 +1,195 @@
+package net.opentsdb.core.sql;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import net.opentsdb.core.StorageException;
+
+public final class TestStorageExecutor {
+
+    @After
+    public void clearProperties() {
+        System.clearProperty("tsd.sql.storage_threads");
+        System.clearProperty("tsd.sql.storage_queue");
+        System.clearProperty("tsd.sql.block_when_full");
+    }
+
+    /** A job returning a value once a latch is released. */
+    private static final class Blocking implements StorageExecutor.Job {
+        final CountDownLatch release;
+        final Object value;
+        volatile Thread ran_on;
+
+        Blocking(final CountDownLatch release, final Object value) {
+            this.release = release;
+            this.value = value;
+        }
+
+        public Deferred<Object> run() throws Exception {
+            ran_on = Thread.currentThread();
+            release.await();
+            return Deferred.fromResult(value);
+        }
+    }
+
+    private static StorageExecutor newExecutor(final int threads, final int queue) {
+        System.setProperty("tsd.sql.storage_threads", Integer.toString(threads));
+        System.setProperty("tsd.sql.storage_queue", Integer.toString(queue));
+        return new StorageExecutor();
+    }
+
+    @Test
+    public void flushWaitsForTheJobsSubmitted() throws Exception {
+        final StorageExecutor executor = newExecutor(2, 10);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Deferred<Object> result = executor.submit(new Blocking(release, "done"));
+        final Deferred<Object> flushed = executor.flush();
+        try {
+            flushed.joinUninterruptibly(50);
+            fail("flushed before the job ran");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        release.countDown();
+        flushed.joinUninterruptibly(5000);
+        assertEquals("done", result.joinUninterruptibly(5000));
+        // nothing left in flight
+        executor.flush().joinUninterruptibly(5000);
+    }
+
+    @Test
+    public void flushSeesConcurrentSubmits() throws Exception {
+        final StorageExecutor executor = newExecutor(4, 100000);
+        final AtomicInteger submitted = new AtomicInteger();
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final StorageExecutor.Job job = new StorageExecutor.Job() {
+            public Deferred<Object> run() throws Exception {
+                Thread.sleep(0, 1000);
+                ran.incrementAndGet();
+                return Deferred.fromResult(null);
+            }
+        };
+        final ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread() {
+                public void run() {
+                    for (int j = 0; j < 200; j++) {
+                        executor.submit(job);
+                        submitted.incrementAndGet();
+                        if (j % 20 == 0) {
+                            // every job submitted before the flush has run
+                            final int before = submitted.get();
+                            try {
+                                executor.flush().joinUninterruptibly(5000);
+                            } catch (Exception e) {
+                                failure.set(e.toString());
+                            }
+                            if (ran.get() < before) {
+                                failure.set("flushed with " + ran.get() + " of "
+                                            + before + " jobs run");
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        executor.flush().joinUninterruptibly(5000);
+        assertEquals(null, failure.get());
+        assertEquals(800, ran.get());
+    }
+
+    @Test
+    public void rejectsWhenTheQueueIsFull() throws Exception {
+        final StorageExecutor executor = newExecutor(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Blocking running = new Blocking(release, 1);
+        final Deferred<Object> first = executor.submit(running);
+        while (running.ran_on == null) {
+            Thread.sleep(1);
+        }
+        final Deferred<Object> queued = executor.submit(new Blocking(release, 2));
+        try {
+            executor.submit(new Blocking(release, 3)).joinUninterruptibly(5000);
+            fail("should have been rejected");
+        } catch (StorageException e) {
+            // expected
+        }
+        release.countDown();
+        assertEquals(1, first.joinUninterruptibly(5000));
+        assertEquals(2, queued.joinUninterruptibly(5000));
+        executor.flush().joinUninterruptibly(5000);
+    }
+
+    @Test
+    public void callerRunsWhenBlockingWhenFull() throws Exception {
+        System.setProperty("tsd.sql.block_when_full", "true");
+        final StorageExecutor executor = newExecutor(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Blocking running = new Blocking(release, 1);
+        executor.submit(running);
+        while (running.ran_on == null) {
+            Thread.sleep(1);
+        }
+        final Deferred<Object> queued = executor.submit(new Blocking(release, 2));
+        final Blocking overflow = new Blocking(new CountDownLatch(0), 3);
+        assertEquals(3, executor.submit(overflow).joinUninterruptibly(5000));
+        assertSame(Thread.currentThread(), overflow.ran_on);
+        release.countDown();
+        assertEquals(2, queued.joinUninterruptibly(5000));
+        executor.flush().joinUninterruptibly(5000);
+    }
+
+    @Test
+    public void oldestPendingCoversQueuedPoints() throws Exception {
+        final StorageExecutor executor = newExecutor(1, 10);
+        assertEquals(Long.MAX_VALUE, executor.oldestPending());
+        final CountDownLatch release = new CountDownLatch(1);
+        final Blocking running = new Blocking(release, null);
+        executor.submit(running, 2000);
+        while (running.ran_on == null) {
+            Thread.sleep(1);
+        }
+        executor.submit(new Blocking(release, null), 1000);
+        executor.submit(new Blocking(release, null));
+        assertEquals(1000, executor.oldestPending());
+        release.countDown();
+        executor.flush().joinUninterruptibly(5000);
+        assertEquals(Long.MAX_VALUE, executor.oldestPending());
+    }
+
+    @Test
+    public void failedJobsErrback() throws Exception {
+        final StorageExecutor executor = newExecutor(1, 10);
+        final Deferred<Object> result = executor.submit(new StorageExecutor.Job() {
+            public Deferred<Object> run() {
+                throw new IllegalStateException("boom");
+            }
+        });
+        try {
+            result.joinUninterruptibly(5000);
+            fail("should have failed");
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        executor.flush().joinUninterruptibly(5000);
+    }
+
+}
@@ -1,9 +1,13 @@
 package net.opentsdb.core.sql;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 
 import java.sql.Connection;
@@ -17,13 +21,17 @@ import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.TimeoutException;
 
 import net.opentsdb.uid.UniqueIdInterface;
 import net.opentsdb.stats.Histogram;
 import net.opentsdb.stats.StatsCollector;
 
 import net.opentsdb.core.TSDB;
+import net.opentsdb.core.StorageException;
+import net.opentsdb.core.StorageQuery;
 import net.opentsdb.core.Query;
 import net.opentsdb.core.TsdbQuery;
 import net.opentsdb.core.WritableDataPoints;
@@ -40,11 +48,25 @@ import net.opentsdb.uid.sql.UniqueIdSql;
  * system.cpu.load 1413473538 0.01 host=foo t0=percpu t1=avg1
  * system.cpu.load 1413473538 0.02 host=foo t0=percpu t1=avg5
  * system.cpu.load 1413473538 0.03 host=foo t0=percpu t1=avg15
+ *
+ * With {@code tsd.sql.schema=narrow}, series of any tags are stored once in
+ * the series table and points only carry the series id, see
+ * {@link SeriesIdSql}.
  */
 public final class TsdbSql implements TSDB {
     
     private static final Logger LOG = LoggerFactory.getLogger(TsdbSql.class);
     
+    /** Names of the tables, following the table prefix if any. */
+    public static final String METRIC_TABLE = "metric";
+    public static final String TAGK_TABLE = "tagk";
+    public static final String TAGV_TABLE = "tagv";
+    /** Data table of the wide schema. */
+    public static final String WIDE_TABLE = "tsdb";
+    /** Data and series tables of the narrow schema. */
+    public static final String NARROW_TABLE = "points";
+    public static final String SERIES_TABLE = "series";
+    
     private DataSource ds;
     
     private final UniqueIdSql metrics;
@@ -53,93 +75,179 @@ public final class TsdbSql implements TSDB {
     
     private final String table_tsdb;
     
+    /**
+     * Series ids of the narrow schema ({@code tsd.sql.schema=narrow}),
+     * {@code null} with the wide one.
+     */
+    private final SeriesIdSql series_ids;
+    
+    /**
+     * Time partitions of the data table, {@code null} unless
+     * {@code tsd.sql.partition} is set.
+     */
+    private final Partitions partitions;
+    
+    /** Rollups of the data table, {@code null} unless {@code tsd.sql.rollups}. */
+    private final Rollups rollups;
+    
+    /** Buffers data points and writes them in batches. */
+    private final InsertQueue insert_queue;
+    
+    /** Runs the blocking part of {@link #addPoint} off the caller's thread. */
+    private final StorageExecutor storage;
+    
+    /** Reads the time slices of queries in parallel. */
+    private final SliceExecutor slices;
+    
+    /**
+     * Points of recent queries, {@code null} unless
+     * {@code tsd.sql.query_cache_mb} is set.
+     */
+    private final QueryCache query_cache;
+    
+    /**
+     * Local write-ahead spool points go through before being written, or
+     * {@code null} if {@code tsd.sql.spool_dir} isn't set.
+     */
+    private final Spool spool;
+    
+    /** Resolved series, keyed by metric name and tags. */
+    private final LruCache<SeriesTemplate.Key, SeriesTemplate> series_cache;
+    
+    /** Default maximum number of entries in the series cache. */
+    private static final int DEFAULT_SERIES_CACHE_SIZE = 200000;
+    
+    /** Default maximum number of queries read by the same sql query. */
+    private static final int DEFAULT_QUERY_BATCH_SIZE = 16;
+    
+    /**
+     * Maximum number of queries read by the same sql query, set by
+     * {@code tsd.sql.query_batch_size}, 1 to disable batching.
+     */
+    private static final int QUERY_BATCH_SIZE =
+        Integer.getInteger("tsd.sql.query_batch_size", DEFAULT_QUERY_BATCH_SIZE);
+    
+    /** Default time in ms a data point may be buffered before being written. */
+    private static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    
+    /** Default time in ms {@link #shutdown} waits for pending writes. */
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT = 30000;
+    
     public TsdbSql(DataSource ds, String table_prefix) {
         this.ds = ds;
-        metrics = new UniqueIdSql(ds, addPrefix(table_prefix, "metric"));
-        tag_names = new UniqueIdSql(ds, addPrefix(table_prefix, "tagk"));
-        tag_values = new UniqueIdSql(ds, addPrefix(table_prefix, "tagv"));
-        table_tsdb = addPrefix(table_prefix, "tsdb");
+        metrics = new UniqueIdSql(ds, addPrefix(table_prefix, METRIC_TABLE));
+        tag_names = new UniqueIdSql(ds, addPrefix(table_prefix, TAGK_TABLE));
+        tag_values = new UniqueIdSql(ds, addPrefix(table_prefix, TAGV_TABLE));
+        final String snapshot_dir = System.getProperty("tsd.sql.uid_snapshot_dir");
+        if (snapshot_dir != null || Boolean.getBoolean("tsd.sql.uid_preload")) {
+            preload(metrics, snapshot_dir);
+            preload(tag_names, snapshot_dir);
+            preload(tag_values, snapshot_dir);
+        } else if (!"false".equals(System.getProperty("tsd.sql.suggest"))) {
+            loadSuggestions();
+        }
+        if (SeriesTemplate.narrowSchema()) {
+            table_tsdb = addPrefix(table_prefix, NARROW_TABLE);
+            series_ids = new SeriesIdSql(ds, addPrefix(table_prefix, SERIES_TABLE));
+        } else {
+            table_tsdb = addPrefix(table_prefix, WIDE_TABLE);
+            series_ids = null;
+        }
+        final long period = Partitions.period();
+        if (period > 0) {
+            partitions = new Partitions(ds, table_tsdb, period);
+        } else {
+            partitions = null;
+        }
+        if (Boolean.getBoolean("tsd.sql.rollups")) {
+            rollups = new Rollups(ds, table_tsdb, series_ids != null, period);
+        } else {
+            rollups = null;
+        }
+        insert_queue = new InsertQueue(ds, table_tsdb, rollups, DEFAULT_FLUSH_INTERVAL);
+        storage = new StorageExecutor();
+        slices = new SliceExecutor();
+        final long query_cache_mb = Long.getLong("tsd.sql.query_cache_mb", 0L);
+        if (query_cache_mb > 0) {
+            query_cache = new QueryCache(query_cache_mb << 20);
+        } else {
+            query_cache = null;
+        }
+        final String spool_dir = System.getProperty("tsd.sql.spool_dir");
+        if (spool_dir != null) {
+            spool = new Spool(new File(spool_dir), insert_queue, insert_queue.batchSize());
+        } else {
+            spool = null;
+        }
+        series_cache = new LruCache<SeriesTemplate.Key, SeriesTemplate>(
+            Integer.getInteger("tsd.sql.series_cache_size", DEFAULT_SERIES_CACHE_SIZE));
     }
     
-    private String addPrefix(String prefix, String name) {
+    /**
+     * Fills the caches of a UID table, from a snapshot in {@code dir} if
+     * not {@code null}.
+     */
+    private static void preload(UniqueIdSql uids, String dir) {
+        uids.preload(dir != null ? new File(dir, uids.kind() + ".uids") : null);
+    }
+    
+    /**
+     * Indexes the names of the UID tables for the suggestions of the UI,
+     * in the background so that startup doesn't wait for it.  Disabled by
+     * {@code tsd.sql.suggest=false}, suggestions then only come from the
+     * names looked up since startup.
+     */
+    private void loadSuggestions() {
+        final Thread loader = new Thread("SqlSuggestLoader") {
+            public void run() {
+                metrics.loadSuggestions();
+                tag_names.loadSuggestions();
+                tag_values.loadSuggestions();
+            }
+        };
+        loader.setDaemon(true);
+        loader.start();
+    }
+    
+    /** Returns the name of a table given the table prefix, if any. */
+    public static String addPrefix(String prefix, String name) {
         if (prefix != null) {
             return prefix + name;
         }
         return name;
     }
     
+    /**
+     * Sets the maximum time in ms a data point may be buffered in memory
+     * before it's written to the db.
+     */
+    public void setFlushInterval(final long flush_interval) {
+        insert_queue.setFlushInterval(flush_interval);
+    }
+    
     public Deferred<Object> addPoint(String metric, long timestamp,
             long value, Map<String, String> tags) {
-        addPoint(metric, timestamp, tags, null, new Long(value));
-        return new Deferred<Object>();
+        return addPoint(metric, timestamp, tags, new Long(value));
     }
     
     public Deferred<Object> addPoint(String metric, long timestamp, float value, Map<String, String> tags) {
-        addPoint(metric, timestamp, tags, new Float(value), null);
-        return new Deferred<Object>();
-    }
-    
-    private String buildInsertQuery(String metric, long timestamp, Map<String, String> tags,
-            Float val_dbl, Long val_int) {
-        
-        byte[] metric_id = metrics.getOrCreateId(metric);
-        String host = tags.get("host");
-        byte[] host_id = null;
-        if (host != null) {
-            host_id = tag_values.getOrCreateId(host);
-            // make sure host name tag id is created - used by query
-            tag_names.getOrCreateId("host");
-        }
-        
-        StringBuilder query = new StringBuilder();
-        query.append("INSERT INTO ");
-        query.append(table_tsdb);
-        if (val_dbl != null)
-            query.append("(val_dbl,");
-        else
-            query.append("(val_int,");
-        query.append("ts,metricid");
-        if (host_id != null)
-            query.append(",hostid");
-        Set<String> tag_keys = tags.keySet();
-        for (String tag : tag_keys) {
-            if ("host".equals(tag))
-                continue;
-            query.append(',');
-            query.append(tag);
-            query.append("_valueid");
-            // make sure tag name id is created - used by query
-            tag_names.getOrCreateId(tag);
-        }
-        query.append(") VALUES (");
-        if (val_dbl != null)
-            query.append(val_dbl);
-        else
-            query.append(val_int);
-        query.append(',');
-        query.append(timestamp);
-        query.append(',');
-        query.append(DataSourceUtil.toLong(metric_id));
-        if (host_id != null) {
-            query.append(',');
-            query.append(DataSourceUtil.toLong(host_id));
-        }
-        // append tags
-        for (String tag : tag_keys) {
-            if ("host".equals(tag))
-                continue;
-            String value = tags.get(tag);
-            byte[] value_id = tag_values.getOrCreateId(value);
-            query.append(',');
-            query.append(DataSourceUtil.toLong(value_id));
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            throw new IllegalArgumentException("value is NaN or Infinite: " + value
+                + " for metric=" + metric + " timestamp=" + timestamp);
         }
-        query.append(')');
-        
-        return query.toString();
+        return addPoint(metric, timestamp, tags, new Float(value));
     }
     
-    private void addPoint(String metric, long timestamp, Map<String, String> tags,
-            Float val_dbl, Long val_int) {
+    /**
+     * Queues the point for writing.
+     * <p>
+     * If its series isn't in the series cache, the point is validated and
+     * handed to a storage thread which resolves the ids of the metric and
+     * tags first.
+     * @return A deferred called back once the point has been committed.
+     */
+    private Deferred<Object> addPoint(final String metric, final long timestamp,
+            final Map<String, String> tags, final Number value) {
 
         /*if ((timestamp & 0xFFFFFFFF00000000L) != 0) {
           // => timestamp < 0 || timestamp > Integer.MAX_VALUE
@@ -149,29 +257,141 @@ public final class TsdbSql implements TSDB {
               + " to metric=" + metric + ", tags=" + tags);
         }
         */
-        IncomingDataPoints.checkMetricAndTags(metric, tags);
+        final SeriesTemplate.Key key = new SeriesTemplate.Key(metric, tags);
+        final SeriesTemplate series = series_cache.get(key);
+        if (series != null) {
+            return write(series, timestamp, value);
+        }
         
-        String insert_query = buildInsertQuery(metric, timestamp, tags, val_dbl, val_int);
-        //LOG.info(insert_query);
+        IncomingDataPoints.checkMetricAndTags(metric, tags);
+        if (series_ids == null) {
+            SeriesTemplate.checkTagColumns(tags);
+        }
         
-        Connection conn = null;
-        PreparedStatement st = null;
-        ResultSet rs = null;
-        try {
-            conn = ds.getConnection();
-            try {
-                st = conn.prepareStatement(insert_query);
-                st.executeUpdate();
-            } finally {
-                DataSourceUtil.close(rs, st, null);
+        final class Insert implements StorageExecutor.Job {
+            public Deferred<Object> run() {
+                return write(resolveSeries(key, metric, tags), timestamp, value);
             }
+        }
+        return storage.submit(new Insert(), timestamp);
+    }
+    
+    /**
+     * Hands a point to the spool if there's one, to the insert queue
+     * otherwise.
+     */
+    private Deferred<Object> write(final SeriesTemplate series,
+            final long timestamp, final Number value) {
+        if (spool != null) {
+            return spool.append(series, timestamp, value);
+        }
+        return insert_queue.add(series, timestamp, value);
+    }
+    
+    /**
+     * Resolves the ids of a series, creating the missing ones, and caches
+     * the result.
+     */
+    private SeriesTemplate resolveSeries(final SeriesTemplate.Key key,
+            final String metric, final Map<String, String> tags) {
+        // Another point of the same series may have been resolved while
+        // this one was waiting for a storage thread.
+        SeriesTemplate series = series_cache.get(key);
+        if (series != null) {
+            return series;
+        }
+        final long metricid = toId(metrics.getOrCreateId(metric));
+        if (series_ids != null) {
+            final long[] tagks = new long[tags.size()];
+            final long[] tagvs = new long[tags.size()];
+            int i = 0;
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                tagks[i] = toId(tag_names.getOrCreateId(tag.getKey()));
+                tagvs[i] = toId(tag_values.getOrCreateId(tag.getValue()));
+                i++;
+            }
+            series = new SeriesTemplate(series_ids.getOrCreateId(metricid,
+                SeriesIdSql.encodeTags(tagks, tagvs)));
+            series_cache.put(key.copy(), series);
+            return series;
+        }
+        final long[] tagids = new long[SeriesTemplate.NUM_TAG_COLUMNS];
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            // make sure tag name id is created - used by query
+            tag_names.getOrCreateId(tag.getKey());
+            tagids[SeriesTemplate.tagColumn(tag.getKey())] =
+                toId(tag_values.getOrCreateId(tag.getValue()));
+        }
+        series = new SeriesTemplate(metricid, tagids);
+        series_cache.put(key.copy(), series);
+        return series;
+    }
+    
+    private long toId(byte[] id) {
+        if (id == null) {
+            throw new StorageException("Unable to assign uid");
+        }
+        return DataSourceUtil.toLong(id);
+    }
+    
+    /** Returns the series ids of the narrow schema, {@code null} if not used. */
+    SeriesIdSql getSeriesIds() {
+        return series_ids;
+    }
+    
+    /** Returns the time partitions of the data table, {@code null} if not used. */
+    Partitions getPartitions() {
+        return partitions;
+    }
+    
+    /**
+     * Returns the timestamp of the oldest point queued or spooled which
+     * isn't written yet, {@code Long.MAX_VALUE} if there's none.
+     */
+    long oldestPending() {
+        // In the order points move through, so that one moving on while
+        // we look is seen by the next stage.
+        long oldest = storage.oldestPending();
+        if (spool != null) {
+            oldest = Math.min(oldest, spool.oldestPending());
+        }
+        return Math.min(oldest, insert_queue.oldestPending());
+    }
+    
+    /** Returns the rollups of the data table, {@code null} if not used. */
+    Rollups getRollups() {
+        return rollups;
+    }
+
+    /**
+     * Recomputes the rollups of a time range, for tools which wrote points
+     * in it, as the rollups of the TSDs don't see them.  Does nothing
+     * unless {@code tsd.sql.rollups} is set.  Call once the points are
+     * written, see {@link #flush}.
+     * @param start The start of the range, in seconds.
+     * @param end The end (exclusive) of the range, in seconds.
+     * @throws StorageException if the rollups couldn't be updated.
+     */
+    public void rebuildRollups(final long start, final long end) {
+        if (rollups == null || start >= end) {
+            return;
+        }
+        try {
+            rollups.rebuild(start, end);
         } catch (SQLException e) {
-            LOG.info(insert_query);
-            LOG.error("Unable to get sql db connection: " + e.getMessage());
-        } finally {
-            DataSourceUtil.close(rs, st, conn);
+            throw new StorageException("Unable to rebuild the rollups from "
+                + start + " to " + end + ": " + e.getMessage());
         }
     }
+
+    SliceExecutor getSliceExecutor() {
+        return slices;
+    }
+    
+    /** Returns the cache of query results, {@code null} if not used. */
+    QueryCache getQueryCache() {
+        return query_cache;
+    }
     
     public UniqueIdInterface getMetrics() {
         return metrics;
@@ -186,23 +406,52 @@ public final class TsdbSql implements TSDB {
     }
     
     public int uidCacheHits() {
-        return 0;
+        return (int) (metrics.cacheHits() + tag_names.cacheHits()
+                      + tag_values.cacheHits());
     }
 
     public int uidCacheMisses() {
-        return 0;
+        return (int) (metrics.cacheMisses() + tag_names.cacheMisses()
+                      + tag_values.cacheMisses());
     }
 
     public int uidCacheSize() {
-        return 0;
+        return metrics.cacheSize() + tag_names.cacheSize() + tag_values.cacheSize();
     }
 
     public void collectStats(final StatsCollector collector) {
+        metrics.collectStats(collector);
+        tag_names.collectStats(collector);
+        tag_values.collectStats(collector);
+        storage.collectStats(collector);
+        slices.collectStats(collector);
+        if (query_cache != null) {
+            query_cache.collectStats(collector);
+        }
+        series_cache.collectStats("sql.series.cache", collector);
+        if (partitions != null) {
+            partitions.collectStats(collector);
+        }
+        if (rollups != null) {
+            rollups.collectStats(collector);
+        }
+        if (spool != null) {
+            spool.collectStats(collector);
+        }
+        insert_queue.collectStats(collector);
+        collector.record("sql.query.rows", StorageQuerySql.rows_read);
+        collector.record("sql.query.batched", StorageQuerySql.batched);
+        collector.record("sql.query.aborted", StorageQuerySql.too_many_rows,
+                         "reason=too_many_rows");
         
+        // JVM stats
+        Runtime runtime = Runtime.getRuntime();
+        collector.record("jvm.ramfree", runtime.freeMemory());
+        collector.record("jvm.ramused", runtime.totalMemory());
     }
 
     public Histogram getPutLatencyHistogram() {
-        return null;
+        return insert_queue.getLatencyHistogram();
     }
 
     public Histogram getScanLatencyHistogram() {
@@ -214,29 +463,201 @@ public final class TsdbSql implements TSDB {
         query.setStorageQuery(new StorageQuerySql(this, ds, table_tsdb, null));
         return query;
     }
+    
+    /**
+     * Reads queries of different metrics but otherwise the same time range,
+     * downsampling and, with the wide schema, tag filters by a single sql
+     * query, {@code metricid IN (...)} or the union of their series, at
+     * most {@code tsd.sql.query_batch_size} at a time (default 16).
+     */
+    public void batchQueries(Query[] queries) {
+        if (QUERY_BATCH_SIZE <= 1)
+            return;
+        // the batches being filled, by what their queries have in common
+        final HashMap<String, List<List<StorageQuerySql>>> batches =
+            new HashMap<String, List<List<StorageQuerySql>>>();
+        for (Query query : queries) {
+            if (!(query instanceof TsdbQuery))
+                continue;
+            final StorageQuery prepared = ((TsdbQuery) query).getStorageQuery();
+            if (!(prepared instanceof StorageQuerySql))
+                continue;
+            final StorageQuerySql storage_query = (StorageQuerySql) prepared;
+            final String key = storage_query.batchKey();
+            List<List<StorageQuerySql>> candidates = batches.get(key);
+            if (candidates == null) {
+                candidates = new ArrayList<List<StorageQuerySql>>();
+                batches.put(key, candidates);
+            }
+            // the series of a batch are told apart by their metric
+            List<StorageQuerySql> batch = null;
+            for (List<StorageQuerySql> candidate : candidates) {
+                if (candidate.size() < QUERY_BATCH_SIZE
+                    && !hasMetric(candidate, storage_query.getMetric())) {
+                    batch = candidate;
+                    break;
+                }
+            }
+            if (batch == null) {
+                batch = new ArrayList<StorageQuerySql>();
+                candidates.add(batch);
+            }
+            batch.add(storage_query);
+        }
+        for (List<List<StorageQuerySql>> candidates : batches.values()) {
+            for (List<StorageQuerySql> batch : candidates) {
+                if (batch.size() < 2)
+                    continue;
+                final StorageQuerySql.Batch shared = new StorageQuerySql.Batch(batch);
+                for (StorageQuerySql storage_query : batch) {
+                    storage_query.setBatch(shared);
+                }
+                StorageQuerySql.batched.addAndGet(batch.size());
+            }
+        }
+    }
+    
+    private static boolean hasMetric(List<StorageQuerySql> batch, byte[] metric) {
+        for (StorageQuerySql storage_query : batch) {
+            if (Arrays.equals(storage_query.getMetric(), metric))
+                return true;
+        }
+        return false;
+    }
 
     public WritableDataPoints newDataPoints() {
         return null;
     }
 
+    /**
+     * Forces a flush of any un-committed in memory data.
+     * <p>
+     * For instance, any data point not persisted will be sent to the db.
+     * @return A {@link Deferred} that will be called once all the un-committed
+     * data has been successfully and durably stored.
+     */
     public Deferred<Object> flush() throws Exception {
-        return null;
+        final class FlushInserts implements Callback<Deferred<Object>, Object> {
+            public Deferred<Object> call(final Object arg) {
+                return insert_queue.flush();
+            }
+            public String toString() {
+                return "flush insert queue";
+            }
+        }
+        final class FlushSpool implements Callback<Deferred<Object>, Object> {
+            public Deferred<Object> call(final Object arg) {
+                return spool.flush();
+            }
+            public String toString() {
+                return "flush spool";
+            }
+        }
+        // First wait for the points being resolved, then write them.
+        if (spool != null) {
+            return storage.flush().addCallbackDeferring(new FlushSpool())
+                .addCallbackDeferring(new FlushInserts());
+        }
+        return storage.flush().addCallbackDeferring(new FlushInserts());
     }
 
+    /**
+     * Gracefully shuts down this instance.
+     * <p>
+     * This does the same thing as {@link #flush} and also stops accepting
+     * new data points.  Points which couldn't be written within
+     * {@code tsd.sql.shutdown_timeout} ms are abandoned.  The number of
+     * points flushed and abandoned is logged.  The data source is left
+     * open, it's up to whoever created it to close it.
+     * @return A {@link Deferred} that will be called once the un-committed
+     * data has been stored or abandoned.
+     */
     public Deferred<Object> shutdown() {
-        return null;
+        final long timeout = Long.getLong("tsd.sql.shutdown_timeout",
+                                          DEFAULT_SHUTDOWN_TIMEOUT);
+        final long start = System.currentTimeMillis();
+        final long written_before = insert_queue.written();
+        final class ShutdownInserts implements Callback<Deferred<Object>, Object> {
+            public Deferred<Object> call(final Object arg) {
+                return insert_queue.shutdown();
+            }
+            public String toString() {
+                return "shutdown insert queue";
+            }
+        }
+        final class ShutdownSpool implements Callback<Deferred<Object>, Object> {
+            public Deferred<Object> call(final Object arg) {
+                return spool.shutdown();
+            }
+            public String toString() {
+                return "shutdown spool";
+            }
+        }
+        // First stop the storage threads, then write what they queued.
+        // Points still in the spool are replayed on the next start.
+        final Deferred<Object> drained;
+        if (spool != null) {
+            drained = storage.shutdown(timeout).addCallbackDeferring(new ShutdownSpool())
+                .addCallbackDeferring(new ShutdownInserts());
+        } else {
+            drained = storage.shutdown(timeout).addCallbackDeferring(new ShutdownInserts());
+        }
+        final Deferred<Object> d = new Deferred<Object>();
+        final class Thrd extends Thread {
+            Thrd() {
+                super("SqlShutdown");
+            }
+            public void run() {
+                try {
+                    drained.joinUninterruptibly(Math.max(1,
+                        timeout - (System.currentTimeMillis() - start)));
+                } catch (TimeoutException e) {
+                    LOG.warn("Pending writes not done after " + timeout
+                             + "ms, abandoning them");
+                } catch (Exception e) {
+                    LOG.error("Error while flushing pending writes", e);
+                }
+                // Whatever is left at this point won't make it to the db.
+                final int abandoned = storage.abandon() + insert_queue.abandon();
+                final int in_flight = insert_queue.inFlight();
+                final long flushed = insert_queue.written() - written_before;
+                final StringBuilder buf = new StringBuilder();
+                buf.append("Shut down in ")
+                    .append(System.currentTimeMillis() - start).append("ms: ")
+                    .append(flushed).append(" points flushed, ")
+                    .append(abandoned).append(" abandoned");
+                if (in_flight > 0) {
+                    buf.append(", ").append(in_flight).append(" still being written");
+                }
+                if (spool != null) {
+                    buf.append(", ").append(spool.backlog())
+                        .append(" bytes left in the spool");
+                }
+                if (abandoned > 0 || in_flight > 0) {
+                    LOG.warn(buf.toString());
+                } else {
+                    LOG.info(buf.toString());
+                }
+                slices.shutdown();
+                d.callback(null);
+            }
+        }
+        final Thrd thread = new Thrd();
+        thread.setDaemon(true);
+        thread.start();
+        return d;
     }
 
     public List<String> suggestMetrics(final String search) {
-        return null;
+        return metrics.suggest(search);
     }
 
     public List<String> suggestTagNames(final String search) {
-        return null;
+        return tag_names.suggest(search);
     }
 
     public List<String> suggestTagValues(final String search) {
-        return null;
+        return tag_values.suggest(search);
     }
     
 }
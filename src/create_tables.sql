@@ -33,6 +33,92 @@ CREATE TABLE IF NOT EXISTS `tsdb` (
   `t5_valueid` bigint unsigned,
   `t6_valueid` bigint unsigned,
   KEY `index1` (`metricid`, `hostid`),
-  KEY `index2` (`hostid`, `metricid`)
+  KEY `index2` (`hostid`, `metricid`),
+  KEY `ts` (`ts`)
 ) ENGINE=TokuDB DEFAULT CHARSET=utf8;
 
+-- Narrow schema, used with tsd.sql.schema=narrow (tsdb migrate converts
+-- the tsdb table).  Each series is stored once, its tags encoded as
+-- "tagkid=tagvid" pairs sorted by tagkid and separated by commas.
+CREATE TABLE IF NOT EXISTS `series` (
+  `id` bigint unsigned NOT NULL AUTO_INCREMENT,
+  `metricid` bigint unsigned NOT NULL,
+  `tags` varchar(700) CHARACTER SET ascii NOT NULL,
+  PRIMARY KEY (id),
+  UNIQUE KEY `metric_tags` (`metricid`, `tags`),
+  KEY `metric_id` (`metricid`, `id`)
+) ENGINE=TokuDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE IF NOT EXISTS `points` (
+  `series_id` bigint unsigned NOT NULL,
+  `ts` bigint NOT NULL,
+  `val_int` bigint,
+  `val_dbl` double,
+  PRIMARY KEY (`series_id`, `ts`),
+  KEY `ts` (`ts`)
+) ENGINE=TokuDB DEFAULT CHARSET=utf8;
+
+-- Rollups, used with tsd.sql.rollups: min, max, sum and count of the
+-- points of each series per minute (_1m) and hour (_1h).  Unset tags are 0.
+-- The rollups are computed by time range, from the data table for _1m and
+-- from _1m for _1h, which needs the `ts` keys above.  On existing tables:
+--   ALTER TABLE tsdb ADD KEY `ts` (`ts`);     -- points with the narrow schema
+--   ALTER TABLE tsdb_1m ADD KEY `ts` (`ts`);  -- points_1m
+
+CREATE TABLE IF NOT EXISTS `tsdb_1m` (
+  `metricid` bigint unsigned NOT NULL,
+  `hostid` bigint unsigned NOT NULL DEFAULT 0,
+  `t0_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `t1_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `t2_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `t3_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `t4_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `t5_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `t6_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `ts` bigint NOT NULL,
+  `val_min` double,
+  `val_max` double,
+  `val_sum` double,
+  `val_cnt` bigint unsigned NOT NULL,
+  PRIMARY KEY (`metricid`, `hostid`, `t0_valueid`, `t1_valueid`, `t2_valueid`, `t3_valueid`, `t4_valueid`, `t5_valueid`, `t6_valueid`, `ts`),
+  KEY `ts` (`ts`)
+) ENGINE=TokuDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE IF NOT EXISTS `tsdb_1h` (
+  `metricid` bigint unsigned NOT NULL,
+  `hostid` bigint unsigned NOT NULL DEFAULT 0,
+  `t0_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `t1_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `t2_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `t3_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `t4_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `t5_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `t6_valueid` bigint unsigned NOT NULL DEFAULT 0,
+  `ts` bigint NOT NULL,
+  `val_min` double,
+  `val_max` double,
+  `val_sum` double,
+  `val_cnt` bigint unsigned NOT NULL,
+  PRIMARY KEY (`metricid`, `hostid`, `t0_valueid`, `t1_valueid`, `t2_valueid`, `t3_valueid`, `t4_valueid`, `t5_valueid`, `t6_valueid`, `ts`)
+) ENGINE=TokuDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE IF NOT EXISTS `points_1m` (
+  `series_id` bigint unsigned NOT NULL,
+  `ts` bigint NOT NULL,
+  `val_min` double,
+  `val_max` double,
+  `val_sum` double,
+  `val_cnt` bigint unsigned NOT NULL,
+  PRIMARY KEY (`series_id`, `ts`),
+  KEY `ts` (`ts`)
+) ENGINE=TokuDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE IF NOT EXISTS `points_1h` (
+  `series_id` bigint unsigned NOT NULL,
+  `ts` bigint NOT NULL,
+  `val_min` double,
+  `val_max` double,
+  `val_sum` double,
+  `val_cnt` bigint unsigned NOT NULL,
+  PRIMARY KEY (`series_id`, `ts`)
+) ENGINE=TokuDB DEFAULT CHARSET=utf8;
@@ -48,6 +48,16 @@ final class CliOptions {
                    + " (default: /hbase).");
   }
 
+  /** Adds the options to connect to a sql db.  */
+  static void addSql(final ArgP argp) {
+    argp.addOption("--dbhost", "DB_HOST", "Sql db host");
+    argp.addOption("--dbuser", "DB_USER", "Sql db user");
+    argp.addOption("--dbpass", "DB_PASS", "Sql db pass");
+    argp.addOption("--dbname", "DB_NAME", "Sql db name");
+    argp.addOption("--schema", "wide|narrow",
+                   "Layout of the sql data tables (default: wide).");
+  }
+
   /** Adds a --verbose flag.  */
   static void addVerbose(final ArgP argp) {
     argp.addOption("--verbose",
@@ -111,6 +121,9 @@ final class CliOptions {
     if (argp.optionExists("--auto-metric") && argp.has("--auto-metric")) {
       System.setProperty("tsd.core.auto_create_metrics", "true");
     }
+    if (argp.optionExists("--schema") && argp.has("--schema")) {
+      System.setProperty("tsd.sql.schema", argp.get("--schema"));
+    }
     final String host = argp.get("--dbhost", "localhost");
     final String user = argp.get("--dbuser", "tsdb");
     final String pass = argp.get("--dbpass", "tsdb");
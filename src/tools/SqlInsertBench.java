@@ -0,0 +1,237 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.core.sql.DataSourceUtil;
+import net.opentsdb.core.sql.TsdbSql;
+
+/**
+ * Compares the cost of the sql insert modes.
+ * <p>
+ * Writes the same points once per insert mode ("literal" then "prepared"
+ * by default) into scratch copies of the tables, and reports the
+ * throughput, the CPU time used by the TSD side and the number of
+ * statements the MySQL server had to parse and execute.
+ * <p>
+ * The server counters are global: run this against an otherwise idle
+ * server to get meaningful numbers.
+ */
+final class SqlInsertBench {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqlInsertBench.class);
+
+  /** Prefix of the scratch tables. */
+  private static final String PREFIX = "bench_";
+
+  /** Server status counters reported for each run. */
+  private static final String[] COUNTERS = {
+    "Com_stmt_prepare", "Com_stmt_execute", "Com_insert", "Questions",
+    "Bytes_received",
+  };
+
+  /** Prints usage and exits with the given retval.  */
+  private static void usage(final ArgP argp, final String errmsg,
+                            final int retval) {
+    System.err.println(errmsg);
+    System.err.println("Usage: bench [--points NUM] [--series NUM]"
+                       + " [--modes literal,prepared] [--keep]");
+    if (argp != null) {
+      System.err.print(argp.usage());
+    }
+    System.exit(retval);
+  }
+
+  public static void main(String[] args) throws Exception {
+    ArgP argp = new ArgP();
+    CliOptions.addSql(argp);
+    CliOptions.addVerbose(argp);
+    argp.addOption("--points", "NUM",
+                   "Number of data points to write per mode (default: 1000000).");
+    argp.addOption("--series", "NUM",
+                   "Number of distinct time series (default: 1000).");
+    argp.addOption("--modes", "LIST",
+                   "Comma separated insert modes to compare"
+                   + " (default: literal,prepared).");
+    argp.addOption("--keep", "Don't drop the scratch tables when done.");
+    args = CliOptions.parse(argp, args);
+    if (args == null) {
+      usage(argp, "Invalid usage.", 1);
+    } else if (args.length != 0) {
+      usage(argp, "Too many arguments.", 2);
+    }
+
+    final int points = Integer.parseInt(argp.get("--points", "1000000"));
+    final int series = Integer.parseInt(argp.get("--series", "1000"));
+    final String[] modes = argp.get("--modes", "literal,prepared").split(",");
+    final boolean keep = argp.has("--keep");
+    if (points <= 0 || series <= 0) {
+      usage(argp, "--points and --series must be positive.", 3);
+    }
+    // Don't reject points because the benchmark writes faster than the db.
+    System.setProperty("tsd.sql.max_pending", Integer.toString(points + series));
+    System.setProperty("tsd.sql.storage_queue", Integer.toString(series + 1));
+
+    final DataSource ds = CliOptions.dsFromOptions(argp);
+    argp = null;
+    try {
+      createTables(ds);
+      for (final String mode : modes) {
+        run(ds, mode, points, series);
+      }
+    } finally {
+      try {
+        if (!keep) {
+          dropTables(ds);
+        }
+      } finally {
+        // the TSDBs of the modes share the pool
+        DataSourceUtil.close(ds);
+      }
+    }
+    System.exit(0);
+  }
+
+  /** Writes the points with one insert mode and prints the results. */
+  private static void run(final DataSource ds, final String mode,
+                          final int points, final int series) throws Exception {
+    execute(ds, "TRUNCATE TABLE " + PREFIX + "tsdb");
+    System.setProperty("tsd.sql.insert_mode", mode);
+    final TsdbSql tsdb = new TsdbSql(ds, PREFIX);
+
+    // Resolve all the series first so that only the inserts are measured.
+    final HashMap<String, String>[] tags = newTags(series);
+    for (int i = 0; i < series; i++) {
+      tsdb.addPoint("bench.metric", 0, 0L, tags[i]);
+    }
+    tsdb.flush().joinUninterruptibly();
+
+    final long[] server_before = serverCounters(ds);
+    final long cpu_before = cpuTime();
+    final long start = System.nanoTime();
+    final long base_time = System.currentTimeMillis() / 1000;
+    for (int i = 0; i < points; i++) {
+      final long timestamp = base_time + i / series;
+      if (i % 2 == 0) {
+        tsdb.addPoint("bench.metric", timestamp, (long) i, tags[i % series]);
+      } else {
+        tsdb.addPoint("bench.metric", timestamp, i / 3.0f, tags[i % series]);
+      }
+    }
+    tsdb.flush().joinUninterruptibly();
+    final long elapsed = (System.nanoTime() - start) / 1000000;
+    final long cpu = (cpuTime() - cpu_before) / 1000000;
+    final long[] server_after = serverCounters(ds);
+    tsdb.shutdown().joinUninterruptibly();
+
+    final StringBuilder buf = new StringBuilder();
+    buf.append("mode=").append(mode)
+      .append(" points=").append(points)
+      .append(" elapsed=").append(elapsed).append("ms")
+      .append(" rate=").append(points * 1000L / Math.max(1, elapsed)).append("/s")
+      .append(" tsd_cpu=").append(cpu).append("ms");
+    for (int i = 0; i < COUNTERS.length; i++) {
+      buf.append(' ').append(COUNTERS[i]).append('=')
+        .append(server_after[i] - server_before[i]);
+    }
+    System.out.println(buf);
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static HashMap<String, String>[] newTags(final int series) {
+    final HashMap<String, String>[] tags = new HashMap[series];
+    for (int i = 0; i < series; i++) {
+      tags[i] = new HashMap<String, String>(2);
+      tags[i].put("host", "bench" + (i / 10));
+      tags[i].put("t0", "v" + (i % 10));
+    }
+    return tags;
+  }
+
+  /** Returns the CPU time in ns used so far by the live threads. */
+  private static long cpuTime() {
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long total = 0;
+    for (final long id : threads.getAllThreadIds()) {
+      final long cpu = threads.getThreadCpuTime(id);
+      if (cpu > 0) {
+        total += cpu;
+      }
+    }
+    return total;
+  }
+
+  private static long[] serverCounters(final DataSource ds) throws SQLException {
+    final long[] values = new long[COUNTERS.length];
+    final Connection conn = ds.getConnection();
+    try {
+      final Statement st = conn.createStatement();
+      final ResultSet rs = st.executeQuery("SHOW GLOBAL STATUS");
+      while (rs.next()) {
+        final String name = rs.getString(1);
+        for (int i = 0; i < COUNTERS.length; i++) {
+          if (COUNTERS[i].equalsIgnoreCase(name)) {
+            values[i] = rs.getLong(2);
+          }
+        }
+      }
+      rs.close();
+      st.close();
+    } finally {
+      conn.close();
+    }
+    return values;
+  }
+
+  private static void createTables(final DataSource ds) throws SQLException {
+    for (final String table : new String[] { "metric", "tagk", "tagv", "tsdb" }) {
+      execute(ds, "CREATE TABLE IF NOT EXISTS " + PREFIX + table
+              + " LIKE " + table);
+    }
+  }
+
+  private static void dropTables(final DataSource ds) {
+    for (final String table : new String[] { "metric", "tagk", "tagv", "tsdb" }) {
+      try {
+        execute(ds, "DROP TABLE IF EXISTS " + PREFIX + table);
+      } catch (SQLException e) {
+        LOG.error("Unable to drop " + PREFIX + table, e);
+      }
+    }
+  }
+
+  private static void execute(final DataSource ds, final String query)
+    throws SQLException {
+    final Connection conn = ds.getConnection();
+    try {
+      final Statement st = conn.createStatement();
+      st.executeUpdate(query);
+      st.close();
+    } finally {
+      conn.close();
+    }
+  }
+
+}
@@ -0,0 +1,316 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.core.sql.DataSourceUtil;
+import net.opentsdb.core.sql.SeriesIdSql;
+import net.opentsdb.core.sql.TsdbSql;
+import net.opentsdb.uid.sql.UniqueIdSql;
+
+/**
+ * Copies the data of the wide sql schema (the tsdb table, one column per
+ * tag) to the narrow one (the series and points tables).
+ * <p>
+ * Metrics are migrated in parallel, each by a single thread which streams
+ * the rows of the metric from the tsdb table and writes them in batches.
+ * Points overwrite the ones already migrated, so the tool can be run again
+ * after a failure, or to catch up with points written in the meantime.
+ */
+final class SqlSchemaMigrate {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqlSchemaMigrate.class);
+
+  /** Names of the tags stored in the tag columns of the tsdb table. */
+  private static final String[] TAG_NAMES = {
+    "host", "t0", "t1", "t2", "t3", "t4", "t5", "t6",
+  };
+
+  /** How often progress is logged, in ms. */
+  private static final long PROGRESS_INTERVAL = 10000;
+
+  /** Prints usage and exits with the given retval.  */
+  private static void usage(final ArgP argp, final String errmsg,
+                            final int retval) {
+    System.err.println(errmsg);
+    System.err.println("Usage: migrate [--threads NUM] [--batch NUM]"
+                       + " [--metrics ID,ID...] [--table-prefix PREFIX]");
+    if (argp != null) {
+      System.err.print(argp.usage());
+    }
+    System.exit(retval);
+  }
+
+  public static void main(String[] args) throws Exception {
+    ArgP argp = new ArgP();
+    CliOptions.addSql(argp);
+    CliOptions.addVerbose(argp);
+    argp.addOption("--threads", "NUM",
+                   "Number of metrics migrated in parallel (default: 4).");
+    argp.addOption("--batch", "NUM",
+                   "Number of points written per transaction (default: 5000).");
+    argp.addOption("--metrics", "LIST",
+                   "Comma separated ids of the metrics to migrate"
+                   + " (default: all).");
+    argp.addOption("--table-prefix", "PREFIX",
+                   "Prefix of the names of the sql tables (default: none).");
+    args = CliOptions.parse(argp, args);
+    if (args == null) {
+      usage(argp, "Invalid usage.", 1);
+    } else if (args.length != 0) {
+      usage(argp, "Too many arguments.", 2);
+    }
+    final int nthreads = Integer.parseInt(argp.get("--threads", "4"));
+    final int batch = Integer.parseInt(argp.get("--batch", "5000"));
+    if (nthreads <= 0 || batch <= 0) {
+      usage(argp, "--threads and --batch must be positive.", 3);
+    }
+    final String metrics = argp.get("--metrics");
+    final String prefix = argp.get("--table-prefix");
+    final DataSource ds = CliOptions.dsFromOptions(argp);
+    argp = null;
+
+    final SqlSchemaMigrate migrate = new SqlSchemaMigrate(ds, prefix, batch);
+    if (metrics != null) {
+      for (final String id : metrics.split(",")) {
+        migrate.todo.add(Long.parseLong(id.trim()));
+      }
+    } else {
+      migrate.listMetrics();
+    }
+    final int failed = migrate.run(nthreads);
+    DataSourceUtil.close(ds);
+    System.exit(failed == 0 ? 0 : 1);
+  }
+
+  private final DataSource ds;
+  private final SeriesIdSql series_ids;
+
+  /** Names of the tables read and written. */
+  private final String metric_table;
+  private final String wide_table;
+  private final String narrow_table;
+
+  /** Number of points written per transaction. */
+  private final int batch;
+
+  /** Ids of the tag names of the tag columns, indexed like them. */
+  private final long[] tagks = new long[TAG_NAMES.length];
+
+  /** Ids of the metrics left to migrate. */
+  private final ConcurrentLinkedQueue<Long> todo =
+    new ConcurrentLinkedQueue<Long>();
+
+  private final AtomicLong points = new AtomicLong();
+  private final AtomicLong series = new AtomicLong();
+  private final AtomicLong metrics_done = new AtomicLong();
+  private final AtomicLong metrics_failed = new AtomicLong();
+
+  private SqlSchemaMigrate(final DataSource ds, final String prefix,
+                           final int batch) {
+    this.ds = ds;
+    this.batch = batch;
+    metric_table = TsdbSql.addPrefix(prefix, TsdbSql.METRIC_TABLE);
+    wide_table = TsdbSql.addPrefix(prefix, TsdbSql.WIDE_TABLE);
+    narrow_table = TsdbSql.addPrefix(prefix, TsdbSql.NARROW_TABLE);
+    series_ids = new SeriesIdSql(ds, TsdbSql.addPrefix(prefix, TsdbSql.SERIES_TABLE));
+    final UniqueIdSql tag_names =
+      new UniqueIdSql(ds, TsdbSql.addPrefix(prefix, TsdbSql.TAGK_TABLE));
+    for (int i = 0; i < TAG_NAMES.length; i++) {
+      final byte[] id = tag_names.getOrCreateId(TAG_NAMES[i]);
+      if (id == null) {
+        throw new IllegalStateException("Unable to get the id of tag "
+                                        + TAG_NAMES[i]);
+      }
+      tagks[i] = DataSourceUtil.toLong(id);
+    }
+  }
+
+  /** Queues all the metrics for migration. */
+  private void listMetrics() throws SQLException {
+    final Connection conn = ds.getConnection();
+    try {
+      final Statement st = conn.createStatement();
+      final ResultSet rs = st.executeQuery("SELECT id FROM " + metric_table);
+      while (rs.next()) {
+        todo.add(rs.getLong(1));
+      }
+      rs.close();
+      st.close();
+    } finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Migrates the queued metrics.
+   * @return The number of metrics which failed to migrate.
+   */
+  private int run(final int nthreads) throws InterruptedException {
+    final int total = todo.size();
+    LOG.info("Migrating " + total + " metrics with " + nthreads + " threads");
+    final long start = System.currentTimeMillis();
+    final Thrd[] threads = new Thrd[nthreads];
+    for (int i = 0; i < nthreads; i++) {
+      threads[i] = new Thrd(i);
+      threads[i].start();
+    }
+    for (final Thrd thread : threads) {
+      while (thread.isAlive()) {
+        thread.join(PROGRESS_INTERVAL);
+        if (thread.isAlive()) {
+          logProgress(start, total);
+        }
+      }
+    }
+    logProgress(start, total);
+    if (metrics_failed.get() > 0) {
+      LOG.error(metrics_failed.get() + " metrics failed to migrate,"
+                + " run again to retry them");
+    }
+    return (int) metrics_failed.get();
+  }
+
+  private void logProgress(final long start, final int total) {
+    final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    LOG.info("Migrated " + metrics_done.get() + '/' + total + " metrics, "
+             + series.get() + " series, " + points.get() + " points ("
+             + points.get() * 1000 / elapsed + " points/s)");
+  }
+
+  /** Migrates all the points of a metric. */
+  private void migrateMetric(final long metricid) throws SQLException {
+    // Series seen so far, keyed by the encoded tags.
+    final HashMap<String, Long> ids = new HashMap<String, Long>();
+    final long[] row_tagks = new long[TAG_NAMES.length];
+    final long[] row_tagvs = new long[TAG_NAMES.length];
+    Connection in = null;
+    Connection out = null;
+    Statement scan = null;
+    PreparedStatement insert = null;
+    ResultSet rs = null;
+    try {
+      in = ds.getConnection();
+      out = ds.getConnection();
+      out.setAutoCommit(false);
+      // Stream the rows rather than buffering the whole metric.
+      scan = in.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                                ResultSet.CONCUR_READ_ONLY);
+      scan.setFetchSize(Integer.MIN_VALUE);
+      rs = scan.executeQuery("SELECT val_int,val_dbl,ts,hostid,t0_valueid,"
+          + "t1_valueid,t2_valueid,t3_valueid,t4_valueid,t5_valueid,t6_valueid"
+          + " FROM " + wide_table + " WHERE metricid=" + metricid);
+      insert = out.prepareStatement("INSERT INTO " + narrow_table
+          + " (val_int,val_dbl,ts,series_id) VALUES (?,?,?,?)"
+          + " ON DUPLICATE KEY UPDATE val_int=VALUES(val_int),val_dbl=VALUES(val_dbl)");
+      int n = 0;
+      while (rs.next()) {
+        final long val_int = rs.getLong(1);
+        final boolean is_int = !rs.wasNull();
+        final double val_dbl = rs.getDouble(2);
+        final long ts = rs.getLong(3);
+        int ntags = 0;
+        for (int i = 0; i < TAG_NAMES.length; i++) {
+          final long tagv = rs.getLong(4 + i);
+          if (!rs.wasNull()) {
+            row_tagks[ntags] = tagks[i];
+            row_tagvs[ntags] = tagv;
+            ntags++;
+          }
+        }
+        final String tags = SeriesIdSql.encodeTags(trim(row_tagks, ntags),
+                                                   trim(row_tagvs, ntags));
+        Long series_id = ids.get(tags);
+        if (series_id == null) {
+          series_id = series_ids.getOrCreateId(metricid, tags);
+          ids.put(tags, series_id);
+          series.incrementAndGet();
+        }
+        if (is_int) {
+          insert.setLong(1, val_int);
+          insert.setNull(2, Types.DOUBLE);
+        } else {
+          insert.setNull(1, Types.BIGINT);
+          insert.setDouble(2, val_dbl);
+        }
+        insert.setLong(3, ts);
+        insert.setLong(4, series_id);
+        insert.addBatch();
+        if (++n % batch == 0) {
+          insert.executeBatch();
+          out.commit();
+          points.addAndGet(batch);
+        }
+      }
+      insert.executeBatch();
+      out.commit();
+      points.addAndGet(n % batch);
+    } finally {
+      DataSourceUtil.close(rs, null, null);
+      close(scan);
+      DataSourceUtil.close(null, null, in);
+      DataSourceUtil.close(null, insert, out);
+    }
+  }
+
+  private static void close(final Statement st) {
+    if (st != null) {
+      try {
+        st.close();
+      } catch (SQLException e) {
+        LOG.error("Unable to close statement: " + e.getMessage());
+      }
+    }
+  }
+
+  private static long[] trim(final long[] array, final int length) {
+    final long[] trimmed = new long[length];
+    System.arraycopy(array, 0, trimmed, 0, length);
+    return trimmed;
+  }
+
+  /** Migrates metrics until there are none left. */
+  private final class Thrd extends Thread {
+    Thrd(final int i) {
+      super("SqlMigrate-" + i);
+    }
+
+    public void run() {
+      Long metricid;
+      while ((metricid = todo.poll()) != null) {
+        try {
+          migrateMetric(metricid);
+          metrics_done.incrementAndGet();
+        } catch (Exception e) {
+          metrics_failed.incrementAndGet();
+          LOG.error("Failed to migrate metricid=" + metricid, e);
+        }
+      }
+    }
+  }
+
+}
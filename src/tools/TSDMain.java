@@ -29,6 +29,7 @@ import org.hbase.async.HBaseClient;
 import net.opentsdb.BuildData;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TsdbHbase;
+import net.opentsdb.core.sql.DataSourceUtil;
 import net.opentsdb.core.sql.TsdbSql;
 import net.opentsdb.tsd.PipelineFactory;
 
@@ -100,11 +101,49 @@ final class TSDMain {
     argp.addOption("--flush-interval", "MSEC",
                    "Maximum time for which a new data point can be buffered"
                    + " (default: " + DEFAULT_FLUSH_INTERVAL + ").");
-    // sql               
-    argp.addOption("--dbhost", "DB_HOST", "Sql db host");
-    argp.addOption("--dbuser", "DB_USER", "Sql db user");
-    argp.addOption("--dbpass", "DB_PASS", "Sql db pass");
-    argp.addOption("--dbname", "DB_NAME", "Sql db name");
+    argp.addOption("--query-timeout", "MSEC",
+                   "Maximum time to wait for the queries of a graph request,"
+                   + " 0 for no limit (default: 120000).");
+    CliOptions.addSql(argp);
+    argp.addOption("--uid-preload",
+                   "Read the metric, tagk and tagv tables into the UID caches"
+                   + " at startup.");
+    argp.addOption("--uid-snapshot-dir", "PATH",
+                   "Directory of a local copy of the UID tables, preloaded"
+                   + " at startup and updated with the ids added since"
+                   + " (default: none).");
+    argp.addOption("--spool-dir", "PATH",
+                   "Directory of a local spool data points are written to"
+                   + " before being replayed to the sql db (default: none).");
+    argp.addOption("--storage-threads", "NUM",
+                   "Number of threads doing blocking sql work (default: 8).");
+    argp.addOption("--storage-queue", "NUM",
+                   "Maximum number of requests waiting for a sql storage"
+                   + " thread (default: 10000).");
+    argp.addOption("--partition", "none|day|week",
+                   "Split the sql data table in time partitions (default: none).");
+    argp.addOption("--retention-days", "NUM",
+                   "Drop the sql partitions older than this (default: keep all).");
+    argp.addOption("--rollups", "Maintain 1m and 1h rollups of the sql data"
+                   + " and use them for downsampled queries.");
+    argp.addOption("--pushdown", "Let the sql db downsample the points of"
+                   + " avg, sum, min and max downsampled queries.");
+    argp.addOption("--query-max-rows", "NUM",
+                   "Fail sql queries reading more rows than this, 0 for no"
+                   + " limit (default: 10000000).");
+    argp.addOption("--query-slices", "NUM",
+                   "Maximum number of time slices of a sql query read in"
+                   + " parallel, 1 to disable (default: 4).");
+    argp.addOption("--query-cache-mb", "MB",
+                   "Cache up to this many MB of the points read by sql"
+                   + " queries, so that refreshing them only reads the"
+                   + " latest points (default: 0, disabled).");
+    argp.addOption("--query-batch-size", "NUM",
+                   "Maximum number of queries of a graph read by the same"
+                   + " sql query, 1 to disable (default: 16).");
+    argp.addOption("--shutdown-timeout", "MSEC",
+                   "Maximum time to wait for pending sql writes on shutdown"
+                   + " before abandoning them (default: 30000).");
     
     CliOptions.addAutoMetricFlag(argp);
     args = CliOptions.parse(argp, args);
@@ -122,6 +161,9 @@ final class TSDMain {
                               DONT_CREATE, !MUST_BE_WRITEABLE);
     setDirectoryInSystemProps("tsd.http.cachedir", argp.get("--cachedir"),
                               CREATE_IF_NEEDED, MUST_BE_WRITEABLE);
+    if (argp.has("--query-timeout")) {
+      System.setProperty("tsd.query.timeout", argp.get("--query-timeout"));
+    }
 
     final NioServerSocketChannelFactory factory = new NioServerSocketChannelFactory(
             Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
@@ -131,8 +173,61 @@ final class TSDMain {
       DataSource ds = null;
       TSDB tsdb = null;
       if (CliOptions.isSql(argp)) {
+          if (argp.has("--uid-preload")) {
+            System.setProperty("tsd.sql.uid_preload", "true");
+          }
+          if (argp.has("--uid-snapshot-dir")) {
+            System.setProperty("tsd.sql.uid_snapshot_dir",
+                               argp.get("--uid-snapshot-dir"));
+          }
+          if (argp.has("--spool-dir")) {
+            System.setProperty("tsd.sql.spool_dir", argp.get("--spool-dir"));
+          }
+          if (argp.has("--storage-threads")) {
+            System.setProperty("tsd.sql.storage_threads",
+                               argp.get("--storage-threads"));
+          }
+          if (argp.has("--storage-queue")) {
+            System.setProperty("tsd.sql.storage_queue",
+                               argp.get("--storage-queue"));
+          }
+          if (argp.has("--partition")) {
+            System.setProperty("tsd.sql.partition", argp.get("--partition"));
+          }
+          if (argp.has("--retention-days")) {
+            System.setProperty("tsd.sql.retention_days",
+                               argp.get("--retention-days"));
+          }
+          if (argp.has("--rollups")) {
+            System.setProperty("tsd.sql.rollups", "true");
+          }
+          if (argp.has("--pushdown")) {
+            System.setProperty("tsd.sql.pushdown", "true");
+          }
+          if (argp.has("--query-max-rows")) {
+            System.setProperty("tsd.sql.query_max_rows",
+                               argp.get("--query-max-rows"));
+          }
+          if (argp.has("--query-slices")) {
+            System.setProperty("tsd.sql.query_slices",
+                               argp.get("--query-slices"));
+          }
+          if (argp.has("--query-cache-mb")) {
+            System.setProperty("tsd.sql.query_cache_mb",
+                               argp.get("--query-cache-mb"));
+          }
+          if (argp.has("--query-batch-size")) {
+            System.setProperty("tsd.sql.query_batch_size",
+                               argp.get("--query-batch-size"));
+          }
+          if (argp.has("--shutdown-timeout")) {
+            System.setProperty("tsd.sql.shutdown_timeout",
+                               argp.get("--shutdown-timeout"));
+          }
           ds = CliOptions.dsFromOptions(argp);
-          tsdb = new TsdbSql(ds, null);
+          final TsdbSql tsdb_sql = new TsdbSql(ds, null);
+          tsdb_sql.setFlushInterval(flush_interval);
+          tsdb = tsdb_sql;
       } else {
           // Make sure we don't even start if we can't find out tables.
           client = CliOptions.clientFromOptions(argp);
@@ -144,7 +239,7 @@ final class TSDMain {
           tsdb = new TsdbHbase(client, table, uidtable);
       }
 
-      registerShutdownHook(tsdb);
+      registerShutdownHook(tsdb, ds);
 
       final InetSocketAddress addr = new InetSocketAddress(Integer.parseInt(argp.get("--port")));
 
@@ -188,7 +283,12 @@ final class TSDMain {
     return flush_interval;
   }
 
-  private static void registerShutdownHook(final TSDB tsdb) {
+  /**
+   * Shuts down the TSDB on exit, then closes its sql connection pool.
+   * @param ds The pool of the sql TSDB, {@code null} with HBase.
+   */
+  private static void registerShutdownHook(final TSDB tsdb,
+                                           final DataSource ds) {
     final class TSDBShutdown extends Thread {
       public TSDBShutdown() {
         super("TSDBShutdown");
@@ -200,6 +300,9 @@ final class TSDMain {
           LoggerFactory.getLogger(TSDBShutdown.class)
             .error("Uncaught exception during shutdown", e);
         }
+        if (ds != null) {
+          DataSourceUtil.close(ds);
+        }
       }
     }
     Runtime.getRuntime().addShutdownHook(new TSDBShutdown());
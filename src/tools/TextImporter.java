@@ -20,6 +20,8 @@ import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.zip.GZIPInputStream;
 
+import javax.sql.DataSource;
+
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
@@ -35,6 +37,8 @@ import net.opentsdb.core.Tags;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TsdbHbase;
 import net.opentsdb.core.WritableDataPoints;
+import net.opentsdb.core.sql.DataSourceUtil;
+import net.opentsdb.core.sql.TsdbSql;
 import net.opentsdb.stats.StatsCollector;
 
 final class TextImporter {
@@ -53,6 +57,13 @@ final class TextImporter {
     ArgP argp = new ArgP();
     CliOptions.addCommon(argp);
     CliOptions.addAutoMetricFlag(argp);
+    CliOptions.addSql(argp);
+    argp.addOption("--bulk-chunk", "NUM",
+                   "Number of data points loaded at once in the sql db"
+                   + " (default: 50000).");
+    argp.addOption("--bulk-threads", "NUM",
+                   "Number of chunks loaded in parallel in the sql db"
+                   + " (default: 1).");
     args = CliOptions.parse(argp, args);
     if (args == null) {
       usage(argp, 1);
@@ -60,11 +71,33 @@ final class TextImporter {
       usage(argp, 2);
     }
 
-    final HBaseClient client = CliOptions.clientFromOptions(argp);
-    // Flush more frequently since we read very fast from the files.
-    client.setFlushInterval((short) 500);  // ms
-    final TSDB tsdb = new TsdbHbase(client, argp.get("--table", "tsdb"),
-                               argp.get("--uidtable", "tsdb-uid"));
+    final HBaseClient client;
+    final DataSource ds;
+    final TSDB tsdb;
+    if (CliOptions.isSql(argp)) {
+      client = null;
+      // Load the points with LOAD DATA LOCAL INFILE, unless asked otherwise,
+      // and wait rather than drop points when the db isn't keeping up.
+      if (System.getProperty("tsd.sql.insert_mode") == null) {
+        System.setProperty("tsd.sql.insert_mode", "bulk");
+      }
+      System.setProperty("tsd.sql.block_when_full", "true");
+      if (argp.has("--bulk-chunk")) {
+        System.setProperty("tsd.sql.batch_size", argp.get("--bulk-chunk"));
+      }
+      if (argp.has("--bulk-threads")) {
+        System.setProperty("tsd.sql.writer_threads", argp.get("--bulk-threads"));
+      }
+      ds = CliOptions.dsFromOptions(argp);
+      tsdb = new TsdbSql(ds, null);
+    } else {
+      ds = null;
+      client = CliOptions.clientFromOptions(argp);
+      // Flush more frequently since we read very fast from the files.
+      client.setFlushInterval((short) 500);  // ms
+      tsdb = new TsdbHbase(client, argp.get("--table", "tsdb"),
+                           argp.get("--uidtable", "tsdb-uid"));
+    }
     argp = null;
     try {
       int points = 0;
@@ -76,6 +109,9 @@ final class TextImporter {
       LOG.info(String.format("Total: imported %d data points in %.3fs"
                              + " (%.1f points/s)",
                              points, time_delta, (points / time_delta)));
+      if (tsdb instanceof TsdbSql && min_timestamp <= max_timestamp) {
+        rebuildRollups((TsdbSql) tsdb);
+      }
       // TODO(tsuna): Figure out something better than just writing to stderr.
       tsdb.collectStats(new StatsCollector("tsd") {
         @Override
@@ -89,12 +125,40 @@ final class TextImporter {
       } catch (Exception e) {
         LOG.error("Unexpected exception", e);
         System.exit(1);
+      } finally {
+        if (ds != null) {
+          DataSourceUtil.close(ds);
+        }
       }
     }
   }
 
   static volatile boolean throttle = false;
 
+  /** Range of the timestamps imported. */
+  private static long min_timestamp = Long.MAX_VALUE;
+  private static long max_timestamp = Long.MIN_VALUE;
+
+  /**
+   * Recomputes the rollups of the range imported once the points are
+   * written: the TSDs only recompute the buckets they write to themselves.
+   */
+  private static void rebuildRollups(final TsdbSql tsdb) {
+    try {
+      tsdb.flush().joinUninterruptibly();
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to write the imported points", e);
+    }
+    LOG.info("Rebuilding the rollups from " + min_timestamp + " to "
+             + max_timestamp);
+    tsdb.rebuildRollups(min_timestamp, max_timestamp + 1);
+  }
+
+  /**
+   * Imports the data points of a file.
+   * @param client The HBase client, or {@code null} when importing in a
+   * sql db, in which case the points are handed to {@link TSDB#addPoint}.
+   */
   private static int importFile(final HBaseClient client,
                                 final TSDB tsdb,
                                 final String path) throws IOException {
@@ -136,6 +200,8 @@ final class TextImporter {
         if (timestamp <= 0) {
           throw new RuntimeException("invalid timestamp: " + timestamp);
         }
+        min_timestamp = Math.min(min_timestamp, timestamp);
+        max_timestamp = Math.max(max_timestamp, timestamp);
         final String value = words[2];
         if (value.length() <= 0) {
           throw new RuntimeException("invalid value: " + value);
@@ -146,12 +212,20 @@ final class TextImporter {
             Tags.parse(tags, words[i]);
           }
         }
-        final WritableDataPoints dp = getDataPoints(tsdb, metric, tags);
         Deferred<Object> d;
-        if (value.indexOf('.') < 0) {  // integer value
-          d = dp.addPoint(timestamp, Tags.parseLong(value));
-        } else {  // floating point value
-          d = dp.addPoint(timestamp, Float.parseFloat(value));
+        if (client == null) {
+          if (value.indexOf('.') < 0) {  // integer value
+            d = tsdb.addPoint(metric, timestamp, Tags.parseLong(value), tags);
+          } else {  // floating point value
+            d = tsdb.addPoint(metric, timestamp, Float.parseFloat(value), tags);
+          }
+        } else {
+          final WritableDataPoints dp = getDataPoints(tsdb, metric, tags);
+          if (value.indexOf('.') < 0) {  // integer value
+            d = dp.addPoint(timestamp, Tags.parseLong(value));
+          } else {  // floating point value
+            d = dp.addPoint(timestamp, Float.parseFloat(value));
+          }
         }
         d.addErrback(errback);
         points++;
@@ -18,6 +18,8 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.URL;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -25,13 +27,16 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
@@ -50,7 +55,6 @@ import net.opentsdb.graph.Plot;
 import net.opentsdb.stats.Histogram;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.uid.NoSuchUniqueName;
-import net.opentsdb.tsd.TaskExecutor;
 
 /**
  * Stateless handler of HTTP graph requests (the {@code /q} endpoint).
@@ -66,6 +70,12 @@ final class GraphHandler implements HttpRpc {
   /** Number of times a graph request was served from disk, no work needed. */
   private static final AtomicInteger graphs_diskcache_hit
     = new AtomicInteger();
+  /**
+   * Number of times a graph request waited for an identical one in flight
+   * instead of doing the work again.
+   */
+  private static final AtomicInteger graphs_coalesced
+    = new AtomicInteger();
 
   /** Keep track of the latency of graphing requests. */
   private static final Histogram graphlatency =
@@ -75,12 +85,22 @@ final class GraphHandler implements HttpRpc {
   private static final Histogram gnuplotlatency =
     new Histogram(16000, (short) 2, 100);
 
+  /** Runs the queries of the graph requests. */
+  private static final QueryExecutor executor = new QueryExecutor();
+
   /** Executor to run Gnuplot in separate bounded thread pool. */
   private final ThreadPoolExecutor gnuplot;
 
   /** Directory where to cache query results. */
   private final String cachedir;
 
+  /**
+   * Requests being worked on, by base path and output file, so that
+   * identical requests arriving meanwhile wait for them.
+   */
+  private final ConcurrentHashMap<String, Flight> flights =
+    new ConcurrentHashMap<String, Flight>();
+
   /**
    * Constructor.
    */
@@ -102,7 +122,6 @@ final class GraphHandler implements HttpRpc {
     // of throughput but we don't need high throughput here.  We use ABQ instead
     // of LBQ because it creates far fewer references.
     cachedir = RpcHandler.getDirectoryFromSystemProp("tsd.http.cachedir");
-    TaskExecutor.init(128, 512, 5000);
   }
 
   public void execute(final TSDB tsdb, final HttpQuery query) {
@@ -132,6 +151,35 @@ final class GraphHandler implements HttpRpc {
     if (!nocache && isDiskCacheHit(query, end_time, max_age, basepath)) {
       return;
     }
+    final Flight flight;
+    if (nocache) {
+      flight = new Flight(null, basepath);
+    } else {
+      flight = join(query, max_age, basepath);
+      if (flight == null) {
+        return;  // An identical request in flight will answer this one.
+      }
+    }
+    try {
+      doGraph(tsdb, query, basepath, start_time, end_time, max_age, flight);
+    } catch (IOException e) {
+      flight.complete(new Result(e));
+      throw e;
+    } catch (RuntimeException e) {
+      flight.complete(new Result(e));
+      throw e;
+    }
+  }
+
+  /**
+   * Runs the queries of a graph request and answers it, along with the
+   * identical requests which joined its flight.
+   */
+  private void doGraph(final TSDB tsdb, final HttpQuery query,
+                       final String basepath,
+                       final long start_time, final long end_time,
+                       final int max_age, final Flight flight)
+    throws IOException {
     Query[] tsdbqueries;
     List<String> options;
     tsdbqueries = parseQuery(tsdb, query);
@@ -160,6 +208,7 @@ final class GraphHandler implements HttpRpc {
         throw new BadRequestException("end time: " + e.getMessage());
       }
     }
+    tsdb.batchQueries(tsdbqueries);
     final Plot plot = new Plot(start_time, end_time);
     setPlotDimensions(query, plot);
     setPlotParams(query, plot);
@@ -168,62 +217,242 @@ final class GraphHandler implements HttpRpc {
     final HashSet<String>[] aggregated_tags = new HashSet[nqueries];
     int npoints = 0;
     
-    List<TaskExecutor.Task> tasks = new LinkedList<TaskExecutor.Task>();
+    final List<Callable<DataPoints[]>> tasks =
+      new ArrayList<Callable<DataPoints[]>>(nqueries);
+    final List<Integer> ids = new ArrayList<Integer>(nqueries);
     for (int i = 0; i < nqueries; i++) {
       if (null == tsdbqueries[i]) {
           continue;
       }
-      final int ii = i;
-      final Query[] tsdbqueriesF = tsdbqueries;
-      tasks.add(new TaskExecutor.Task() {
-          public Object execute() throws Exception {
-              return tsdbqueriesF[ii].run();
+      final Query tsdbquery = tsdbqueries[i];
+      tasks.add(new Callable<DataPoints[]>() {
+          public DataPoints[] call() {
+              return tsdbquery.run();
           }
-          public int getId() {
-              return ii;
+          public String toString() {
+              return tsdbquery.toString();
           }
       });
+      ids.add(i);
     }
     
-    TaskExecutor executor = new TaskExecutor();
-    List<TaskExecutor.TaskResult> results = executor.parallelize(tasks);
+    final List<DataPoints[]> results;
+    try {
+      results = executor.invokeAll(getUser(query), tasks);
+    } catch (ExecutionException e) {
+      logInfo(query, "Query failed (stack trace coming): " + e.getMessage());
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      else
+        throw new RuntimeException(e.getCause().getMessage());
+    } catch (TimeoutException e) {
+      logWarn(query, "Queries timed out: " + e.getMessage());
+      query.internalError(e);
+      flight.complete(new Result(e));
+      return;
+    } catch (RejectedExecutionException e) {
+      query.internalError(e);
+      flight.complete(new Result(e));
+      return;
+    }
     
-    for (TaskExecutor.TaskResult result : results) {
-        if (result.exception != null) {
-            logInfo(query, "Query failed (stack trace coming): "
-                + tsdbqueries[result.id]);
-            if (result.exception instanceof RuntimeException)
-                throw (RuntimeException) result.exception;
-            else
-                throw new RuntimeException(result.exception.getMessage());
-        }
+    for (int i = 0; i < results.size(); i++) {
+        final int id = ids.get(i);
         try {
-            final DataPoints[] series = (DataPoints[]) result.value;
-            for (final DataPoints datapoints : series) {
-              plot.add(datapoints, options.get(result.id));
-              aggregated_tags[result.id] = new HashSet<String>();
-              aggregated_tags[result.id].addAll(datapoints.getAggregatedTags());
+            for (final DataPoints datapoints : results.get(i)) {
+              plot.add(datapoints, options.get(id));
+              aggregated_tags[id] = new HashSet<String>();
+              aggregated_tags[id].addAll(datapoints.getAggregatedTags());
               npoints += datapoints.aggregatedSize();
             }
         } catch (RuntimeException e) {
           logInfo(query, "Query failed (stack trace coming): "
-                + tsdbqueries[result.id]);
+                + tsdbqueries[id]);
           throw e;
         }
     }
     tsdbqueries = null;  // free()
 
     if (query.hasQueryStringParam("ascii")) {
-      respondAsciiQuery(query, max_age, basepath, plot);
+      writeAsciiFile(query, basepath, plot);
+      final Result result = new Result(0, npoints, aggregated_tags);
+      respond(query, max_age, basepath, result);
+      flight.complete(result);
       return;
     }
 
     try {
       gnuplot.execute(new RunGnuplot(query, max_age, plot, basepath,
-                                     aggregated_tags, npoints));
+                                     aggregated_tags, npoints, flight));
     } catch (RejectedExecutionException e) {
-      query.internalError(new Exception("Too many requests pending,"
-                                        + " please try again later", e));
+      final Exception error = new Exception("Too many requests pending,"
+                                            + " please try again later", e);
+      query.internalError(error);
+      flight.complete(new Result(error));
+    }
+  }
+
+  /**
+   * Makes a request wait for an identical one in flight, or registers it
+   * as in flight.
+   * @param query The query to serve.
+   * @param max_age The maximum time (in seconds) we wanna allow clients to
+   * cache the result.
+   * @param basepath The base path used for the Gnuplot files.
+   * @return {@code null} if the request was attached to one in flight,
+   * which will answer it, otherwise the flight of this request, which must
+   * be completed once done.
+   */
+  private Flight join(final HttpQuery query, final int max_age,
+                      final String basepath) {
+    final String key = basepath + (query.hasQueryStringParam("ascii")
+                                   ? ".txt" : ".png");
+    final Flight flight = new Flight(key, basepath);
+    while (true) {
+      final Flight inflight = flights.putIfAbsent(key, flight);
+      if (inflight == null) {
+        return flight;
+      } else if (inflight.attach(query, max_age)) {
+        graphs_coalesced.incrementAndGet();
+        return null;
+      }
+      // It completed meanwhile, and is already out of the map.
+    }
+  }
+
+  /** The outcome of a graph request, shared with the requests it answers. */
+  private static final class Result {
+    final int nplotted;
+    final int npoints;
+    final HashSet<String>[] aggregated_tags;
+    /** The error the request failed with, or {@code null}. */
+    final Exception error;
+
+    Result(final int nplotted, final int npoints,
+           final HashSet<String>[] aggregated_tags) {
+      this.nplotted = nplotted;
+      this.npoints = npoints;
+      this.aggregated_tags = aggregated_tags;
+      this.error = null;
+    }
+
+    Result(final Exception error) {
+      this.nplotted = 0;
+      this.npoints = 0;
+      this.aggregated_tags = null;
+      this.error = error;
+    }
+  }
+
+  /**
+   * A graph request being worked on, and the identical requests waiting
+   * for it.
+   */
+  private final class Flight {
+    /** Key in {@link #flights}, {@code null} if not registered. */
+    private final String key;
+    private final String basepath;
+    private final ArrayList<HttpQuery> waiters = new ArrayList<HttpQuery>();
+    private final ArrayList<Integer> max_ages = new ArrayList<Integer>();
+    private boolean done;
+
+    Flight(final String key, final String basepath) {
+      this.key = key;
+      this.basepath = basepath;
+    }
+
+    /**
+     * Adds a request to answer once done.
+     * @return {@code false} if it's too late, the flight is done.
+     */
+    synchronized boolean attach(final HttpQuery query, final int max_age) {
+      if (done) {
+        return false;
+      }
+      waiters.add(query);
+      max_ages.add(max_age);
+      return true;
+    }
+
+    /** Answers the waiting requests, only the first call does anything. */
+    void complete(final Result result) {
+      if (key != null) {
+        flights.remove(key, this);
+      }
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        done = true;
+      }
+      for (int i = 0; i < waiters.size(); i++) {
+        try {
+          respond(waiters.get(i), max_ages.get(i), basepath, result);
+        } catch (RuntimeException e) {
+          waiters.get(i).internalError(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Answers a graph request once its graph, or ASCII file, is ready.
+   * @param query The query to serve.
+   * @param max_age The maximum time (in seconds) we wanna allow clients to
+   * cache the result.
+   * @param basepath The base path used for the Gnuplot files.
+   * @param result The outcome of the request.
+   */
+  private static void respond(final HttpQuery query, final int max_age,
+                              final String basepath, final Result result) {
+    final Exception error = result.error;
+    if (error instanceof GnuplotException) {
+      query.badRequest("<pre>" + error.getMessage() + "</pre>");
+      return;
+    } else if (error instanceof BadRequestException
+               || error instanceof IllegalArgumentException) {
+      query.badRequest(error.getMessage());
+      return;
+    } else if (error != null) {
+      query.internalError(error);
+      return;
+    }
+    try {
+      if (query.hasQueryStringParam("ascii")) {
+        query.sendFile(basepath + ".txt", max_age);
+      } else if (query.hasQueryStringParam("json")) {
+        final StringBuilder buf = new StringBuilder(64);
+        buf.append("{\"plotted\":").append(result.nplotted)
+          .append(",\"points\":").append(result.npoints)
+          .append(",\"etags\":[");
+        for (final HashSet<String> tags : result.aggregated_tags) {
+          if (tags == null || tags.isEmpty()) {
+            buf.append("[]");
+          } else {
+            HttpQuery.toJsonArray(tags, buf);
+          }
+          buf.append(',');
+        }
+        buf.setCharAt(buf.length() - 1, ']');
+        // The "timing" field must remain last, loadCachedJson relies this.
+        buf.append(",\"timing\":").append(query.processingTimeMillis())
+          .append('}');
+        query.sendReply(buf);
+        writeFile(query, basepath + ".json", buf.toString().getBytes());
+      } else if (query.hasQueryStringParam("png")) {
+        query.sendFile(basepath + ".png", max_age);
+      } else if (result.nplotted > 0) {
+        query.sendReply(HttpQuery.makePage("TSDB Query", "Your graph is ready",
+          "<img src=\"" + query.request().getUri() + "&amp;png\"/><br/>"
+          + "<small>(" + result.nplotted + " points plotted in "
+          + query.processingTimeMillis() + "ms)</small>"));
+      } else {
+        query.sendReply(HttpQuery.makePage("TSDB Query", "No results found",
+          "<blockquote><h1>No results</h1>Your query didn't return"
+          + " anything.  Try changing some parameters.</blockquote>"));
+      }
+    } catch (IOException e) {
+      query.internalError(e);
     }
   }
 
@@ -270,82 +499,48 @@ final class GraphHandler implements HttpRpc {
     private final String basepath;
     private final HashSet<String>[] aggregated_tags;
     private final int npoints;
+    private final Flight flight;
 
     public RunGnuplot(final HttpQuery query,
                       final int max_age,
                       final Plot plot,
                       final String basepath,
                       final HashSet<String>[] aggregated_tags,
-                      final int npoints) {
+                      final int npoints,
+                      final Flight flight) {
       this.query = query;
       this.max_age = max_age;
       this.plot = plot;
       this.basepath = basepath;
       this.aggregated_tags = aggregated_tags;
       this.npoints = npoints;
+      this.flight = flight;
     }
 
     public void run() {
+      Result result;
       try {
-        execute();
-      } catch (BadRequestException e) {
-        query.badRequest(e.getMessage());
-      } catch (GnuplotException e) {
-        query.badRequest("<pre>" + e.getMessage() + "</pre>");
+        result = new Result(runGnuplot(query, basepath, plot), npoints,
+                            aggregated_tags);
       } catch (RuntimeException e) {
-        query.internalError(e);
+        result = new Result(e);
       } catch (IOException e) {
-        query.internalError(e);
+        result = new Result(e);
       }
-    }
-
-    private void execute() throws IOException {
-      final int nplotted = runGnuplot(query, basepath, plot);
-      if (query.hasQueryStringParam("json")) {
-        final StringBuilder buf = new StringBuilder(64);
-        buf.append("{\"plotted\":").append(nplotted)
-          .append(",\"points\":").append(npoints)
-          .append(",\"etags\":[");
-        for (final HashSet<String> tags : aggregated_tags) {
-          if (tags == null || tags.isEmpty()) {
-            buf.append("[]");
-          } else {
-            HttpQuery.toJsonArray(tags, buf);
-          }
-          buf.append(',');
-        }
-        buf.setCharAt(buf.length() - 1, ']');
-        // The "timing" field must remain last, loadCachedJson relies this.
-        buf.append(",\"timing\":").append(query.processingTimeMillis())
-          .append('}');
-        query.sendReply(buf);
-        writeFile(query, basepath + ".json", buf.toString().getBytes());
-      } else {
-          if (query.hasQueryStringParam("png")) {
-            query.sendFile(basepath + ".png", max_age);
-          } else {
-            if (nplotted > 0) {
-              query.sendReply(HttpQuery.makePage("TSDB Query", "Your graph is ready",
-                "<img src=\"" + query.request().getUri() + "&amp;png\"/><br/>"
-                + "<small>(" + nplotted + " points plotted in "
-                + query.processingTimeMillis() + "ms)</small>"));
-            } else {
-              query.sendReply(HttpQuery.makePage("TSDB Query", "No results found",
-                "<blockquote><h1>No results</h1>Your query didn't return"
-                + " anything.  Try changing some parameters.</blockquote>"));
-            }
-          }
+      respond(query, max_age, basepath, result);
+      if (result.error == null) {
+        // TODO(tsuna): Expire old files from the on-disk cache.
+        graphlatency.add(query.processingTimeMillis());
+        graphs_generated.incrementAndGet();
       }
-
-      // TODO(tsuna): Expire old files from the on-disk cache.
-      graphlatency.add(query.processingTimeMillis());
-      graphs_generated.incrementAndGet();
+      flight.complete(result);
     }
 
   }
 
-  /** Shuts down the thread pool used to run Gnuplot.  */
+  /** Shuts down the thread pools used to run queries and Gnuplot.  */
   public void shutdown() {
+    executor.shutdown();
     gnuplot.shutdown();
   }
 
@@ -358,6 +553,20 @@ final class GraphHandler implements HttpRpc {
     collector.record("http.latency", gnuplotlatency, "type=gnuplot");
     collector.record("http.graph.requests", graphs_diskcache_hit, "cache=disk");
     collector.record("http.graph.requests", graphs_generated, "cache=miss");
+    collector.record("http.graph.requests", graphs_coalesced, "cache=inflight");
+    executor.collectStats(collector);
+  }
+
+  /**
+   * Returns who a request is from, for the per user limits of the
+   * {@link QueryExecutor}: the address of the client.
+   */
+  private static String getUser(final HttpQuery query) {
+    final SocketAddress address = query.channel().getRemoteAddress();
+    if (address instanceof InetSocketAddress) {
+      return ((InetSocketAddress) address).getAddress().getHostAddress();
+    }
+    return String.valueOf(address);
   }
 
   /** Returns the base path to use for the Gnuplot files. */
@@ -783,28 +992,20 @@ final class GraphHandler implements HttpRpc {
   }
 
   /**
-   * Respond to a query that wants the output in ASCII.
+   * Writes the data points of a query that wants the output in ASCII.
    * <p>
    * When a query specifies the "ascii" query string parameter, we send the
    * data points back to the client in plain text instead of sending a PNG.
    * @param query The query we're currently serving.
-   * @param max_age The maximum time (in seconds) we wanna allow clients to
-   * cache the result in case of a cache hit.
    * @param basepath The base path used for the Gnuplot files.
    * @param plot The plot object to generate Gnuplot's input files.
+   * @throws IOException if the file can't be created.
    */
-  private static void respondAsciiQuery(final HttpQuery query,
-                                        final int max_age,
-                                        final String basepath,
-                                        final Plot plot) {
+  private static void writeAsciiFile(final HttpQuery query,
+                                     final String basepath,
+                                     final Plot plot) throws IOException {
     final String path = basepath + ".txt";
-    PrintWriter asciifile;
-    try {
-      asciifile = new PrintWriter(path);
-    } catch (IOException e) {
-      query.internalError(e);
-      return;
-    }
+    final PrintWriter asciifile = new PrintWriter(path);
     try {
       final StringBuilder tagbuf = new StringBuilder();
       for (final DataPoints dp : plot.getDataPoints()) {
@@ -846,11 +1047,6 @@ final class GraphHandler implements HttpRpc {
     } finally {
       asciifile.close();
     }
-    try {
-      query.sendFile(path, max_age);
-    } catch (IOException e) {
-      query.internalError(e);
-    }
   }
 
   /**
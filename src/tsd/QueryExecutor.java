@@ -0,0 +1,342 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.core.QueryContext;
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Runs the queries of graph requests on a pool of threads.
+ * <p>
+ * Requests are admitted as long as fewer than {@code tsd.query.queue_size}
+ * queries (default 1024) are waiting, and rejected otherwise.  Each user
+ * (client address) has at most {@code tsd.query.max_per_user} queries
+ * running (default 32), each request {@code tsd.query.max_per_request}
+ * (default 8), and users with queries waiting are served in turn, so that
+ * a user sending many requests doesn't hold the others back.
+ * <p>
+ * A request gives up after {@code tsd.query.timeout} ms (default 120000,
+ * 0 for none), or as soon as one of its queries fails: its queries still
+ * waiting are dropped, and the running ones cancelled through their
+ * {@link QueryContext}.
+ */
+final class QueryExecutor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(QueryExecutor.class);
+
+  private final int max_queued;
+  private final int max_per_user;
+  private final int max_per_request;
+  private final long timeout;
+
+  /** Users with queries ready to run, in turn.  Guarded by {@code this}. */
+  private final ArrayDeque<User> ready = new ArrayDeque<User>();
+
+  /** Users with queries waiting or running.  Guarded by {@code this}. */
+  private final HashMap<String, User> users = new HashMap<String, User>();
+
+  /** Number of queries admitted but not started.  Guarded by {@code this}. */
+  private int queued;
+
+  /** Number of queries running.  Guarded by {@code this}. */
+  private int running;
+
+  private boolean shutdown;
+
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+
+  /** Time in ms queries wait before running. */
+  private final Histogram wait_latency = new Histogram(16000, (short) 2, 100);
+
+  QueryExecutor() {
+    final int threads = Math.max(1, Integer.getInteger("tsd.query.threads", 128));
+    max_queued = Math.max(1, Integer.getInteger("tsd.query.queue_size", 1024));
+    max_per_user = Math.max(1, Integer.getInteger("tsd.query.max_per_user", 32));
+    max_per_request = Math.max(1, Integer.getInteger("tsd.query.max_per_request", 8));
+    timeout = Math.max(0, Long.getLong("tsd.query.timeout", 120000L));
+    for (int i = 1; i <= threads; i++) {
+      final Thread worker = new Worker(i);
+      worker.setDaemon(true);
+      worker.start();
+    }
+    LOG.info("Initialized query executor, threads: " + threads
+             + ", queue: " + max_queued + ", per user: " + max_per_user
+             + ", per request: " + max_per_request + ", timeout: " + timeout);
+  }
+
+  /**
+   * Runs the queries of a request and waits for them.
+   * @param user Who the request is from.
+   * @param tasks The queries.
+   * @return The results of the queries, in the same order.
+   * @throws RejectedExecutionException if too many queries are waiting.
+   * @throws ExecutionException if a query failed, its message is the
+   * {@code toString()} of the query and its cause the exception thrown.
+   * @throws TimeoutException if the queries took too long.
+   */
+  <T> List<T> invokeAll(final String user, final List<Callable<T>> tasks)
+    throws ExecutionException, TimeoutException {
+    final Request<T> request = new Request<T>(user, tasks, timeout == 0
+      ? 0 : System.currentTimeMillis() + timeout);
+    synchronized (this) {
+      if (shutdown || queued + tasks.size() > max_queued) {
+        rejected.incrementAndGet();
+        throw new RejectedExecutionException("Too many queries pending,"
+                                             + " please try again later");
+      }
+      submitted.addAndGet(tasks.size());
+      queued += tasks.size();
+      while (request.next < Math.min(tasks.size(), max_per_request)) {
+        enqueue(request, request.next++);
+      }
+    }
+    try {
+      return request.await();
+    } catch (TimeoutException e) {
+      timeouts.incrementAndGet();
+      throw e;
+    } finally {
+      request.context.cancel();
+      synchronized (this) {
+        drop(request);
+      }
+    }
+  }
+
+  /** Stops the threads once the queries running are done. */
+  synchronized void shutdown() {
+    shutdown = true;
+    notifyAll();
+  }
+
+  void collectStats(final StatsCollector collector) {
+    synchronized (this) {
+      collector.record("query.executor.queue", queued);
+      collector.record("query.executor.running", running);
+    }
+    collector.record("query.executor.tasks", submitted);
+    collector.record("query.executor.tasks", rejected, "type=rejected");
+    collector.record("query.executor.tasks", timeouts, "type=timeouts");
+    collector.record("query.executor.wait", wait_latency, null);
+  }
+
+  /** Queues a query of a request.  Must hold the lock. */
+  private void enqueue(final Request<?> request, final int index) {
+    User user = users.get(request.user);
+    if (user == null) {
+      user = new User();
+      users.put(request.user, user);
+    }
+    user.tasks.add(new Task(request, index));
+    schedule(user);
+  }
+
+  /** Makes a user ready if it can run more queries.  Must hold the lock. */
+  private void schedule(final User user) {
+    if (!user.ready && !user.tasks.isEmpty() && user.running < max_per_user) {
+      user.ready = true;
+      ready.add(user);
+      notify();
+    }
+  }
+
+  /**
+   * Forgets the queries of a request not queued yet.  Those queued are
+   * skipped once dequeued.  Must hold the lock.
+   */
+  private void drop(final Request<?> request) {
+    queued -= request.tasks.size() - request.next;
+    request.next = request.tasks.size();
+  }
+
+  /** Waits for the next query to run, {@code null} on shutdown. */
+  private synchronized Task take() throws InterruptedException {
+    while (ready.isEmpty()) {
+      if (shutdown) {
+        return null;
+      }
+      wait();
+    }
+    final User user = ready.poll();
+    user.ready = false;
+    final Task task = user.tasks.poll();
+    task.user = user;
+    user.running++;
+    running++;
+    queued--;
+    // back at the end of the line
+    schedule(user);
+    return task;
+  }
+
+  /** Accounts for a query done and queues the next one of its request. */
+  private synchronized void done(final Task task) {
+    final User user = task.user;
+    user.running--;
+    running--;
+    final Request<?> request = task.request;
+    if (request.next < request.tasks.size()) {
+      enqueue(request, request.next++);
+    }
+    schedule(user);
+    if (user.running == 0 && user.tasks.isEmpty()) {
+      users.remove(request.user);
+    }
+  }
+
+  /** The queries of a user waiting or running. */
+  private static final class User {
+    final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+    int running;
+    /** Whether in {@link #ready}. */
+    boolean ready;
+  }
+
+  /** A query of a request. */
+  private static final class Task {
+    final Request<?> request;
+    final int index;
+    final long enqueued = System.nanoTime();
+    User user;
+
+    Task(final Request<?> request, final int index) {
+      this.request = request;
+      this.index = index;
+    }
+  }
+
+  /** The queries of a request and their results. */
+  private static final class Request<T> {
+    final String user;
+    final List<Callable<T>> tasks;
+    final QueryContext context;
+    final Object[] results;
+
+    /** Index of the next query to queue, guarded by the executor. */
+    int next;
+
+    /** Number of queries done and first failure, guarded by {@code this}. */
+    private int ndone;
+    private ExecutionException failure;
+
+    Request(final String user, final List<Callable<T>> tasks,
+            final long deadline) {
+      this.user = user;
+      this.tasks = tasks;
+      context = new QueryContext(deadline);
+      results = new Object[tasks.size()];
+    }
+
+    /** Runs a query, unless the request gave up already. */
+    void run(final int index) {
+      if (context.isCancelled()) {
+        complete(index, null, null);
+        return;
+      }
+      final Callable<T> task = tasks.get(index);
+      QueryContext.setCurrent(context);
+      try {
+        complete(index, task.call(), null);
+      } catch (Throwable e) {
+        // Errors too: the request would otherwise wait for the deadline.
+        complete(index, null, new ExecutionException(task.toString(), e));
+      } finally {
+        QueryContext.setCurrent(null);
+      }
+    }
+
+    private synchronized void complete(final int index, final Object result,
+                                       final ExecutionException error) {
+      results[index] = result;
+      if (error != null && failure == null) {
+        failure = error;
+      }
+      ndone++;
+      notifyAll();
+    }
+
+    /** Waits for all the queries, or the first failure. */
+    @SuppressWarnings("unchecked")
+    synchronized List<T> await() throws ExecutionException, TimeoutException {
+      boolean interrupted = false;
+      try {
+        while (ndone < results.length && failure == null) {
+          final long remaining = context.remainingMillis();
+          if (remaining == 0) {
+            throw new TimeoutException((results.length - ndone) + " of "
+              + results.length + " queries not done before the deadline");
+          }
+          try {
+            wait(remaining == Long.MAX_VALUE ? 0 : remaining);
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return (List<T>) Arrays.asList(results);
+    }
+  }
+
+  /** Runs the queries of all the requests. */
+  private final class Worker extends Thread {
+    Worker(final int id) {
+      super("Query #" + id);
+    }
+
+    public void run() {
+      while (true) {
+        final Task task;
+        try {
+          task = take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (task == null) {
+          return;
+        }
+        wait_latency.add((int) ((System.nanoTime() - task.enqueued) / 1000000));
+        try {
+          task.request.run(task.index);
+        } catch (Throwable e) {
+          LOG.error("Unexpected exception running " + task.request.tasks.get(task.index), e);
+        } finally {
+          done(task);
+        }
+      }
+    }
+  }
+
+}
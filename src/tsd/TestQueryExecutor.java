@@ -0,0 +1,159 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2011-2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.opentsdb.core.QueryContext;
+
+public final class TestQueryExecutor {
+
+  @After
+  public void clearProperties() {
+    System.clearProperty("tsd.query.threads");
+    System.clearProperty("tsd.query.timeout");
+    System.clearProperty("tsd.query.max_per_request");
+  }
+
+  private static Callable<Integer> constant(final int value) {
+    return new Callable<Integer>() {
+      public Integer call() {
+        return value;
+      }
+    };
+  }
+
+  @Test
+  public void returnsResultsInOrder() throws Exception {
+    final QueryExecutor executor = new QueryExecutor();
+    final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    for (int i = 0; i < 50; i++) {
+      tasks.add(constant(i));
+    }
+    final List<Integer> results = executor.invokeAll("foo", tasks);
+    for (int i = 0; i < 50; i++) {
+      assertEquals(i, (int) results.get(i));
+    }
+    executor.shutdown();
+  }
+
+  @Test
+  public void failsWithTheFirstFailure() throws Exception {
+    final QueryExecutor executor = new QueryExecutor();
+    final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    tasks.add(constant(1));
+    tasks.add(new Callable<Integer>() {
+      public Integer call() {
+        throw new IllegalStateException("boom");
+      }
+      public String toString() {
+        return "broken query";
+      }
+    });
+    try {
+      executor.invokeAll("foo", tasks);
+      fail("should have thrown");
+    } catch (ExecutionException e) {
+      assertEquals("broken query", e.getMessage());
+      assertEquals("boom", e.getCause().getMessage());
+    }
+    executor.shutdown();
+  }
+
+  @Test
+  public void failsWhenAQueryThrowsAnError() throws Exception {
+    final QueryExecutor executor = new QueryExecutor();
+    final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    tasks.add(new Callable<Integer>() {
+      public Integer call() {
+        throw new StackOverflowError("deep");
+      }
+    });
+    try {
+      executor.invokeAll("foo", tasks);
+      fail("should have thrown");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof StackOverflowError);
+    }
+    // the worker survived
+    tasks.set(0, constant(1));
+    assertEquals(1, (int) executor.invokeAll("foo", tasks).get(0));
+    executor.shutdown();
+  }
+
+  @Test
+  public void cancelsQueriesPastTheDeadline() throws Exception {
+    System.setProperty("tsd.query.timeout", "100");
+    final QueryExecutor executor = new QueryExecutor();
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    tasks.add(new Callable<Integer>() {
+      public Integer call() throws InterruptedException {
+        // Stands for a statement waiting on the sql db.
+        QueryContext.current().register(new QueryContext.Cancellable() {
+          public void cancel() {
+            cancelled.countDown();
+          }
+        });
+        cancelled.await();
+        return 1;
+      }
+    });
+    try {
+      executor.invokeAll("foo", tasks);
+      fail("should have thrown");
+    } catch (TimeoutException e) {
+      // expected
+    }
+    assertEquals(0, cancelled.getCount());
+    executor.shutdown();
+  }
+
+  @Test
+  public void limitsQueriesRunningPerRequest() throws Exception {
+    System.setProperty("tsd.query.max_per_request", "2");
+    final QueryExecutor executor = new QueryExecutor();
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger max_running = new AtomicInteger();
+    final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    for (int i = 0; i < 10; i++) {
+      tasks.add(new Callable<Integer>() {
+        public Integer call() throws InterruptedException {
+          final int now = running.incrementAndGet();
+          synchronized (max_running) {
+            max_running.set(Math.max(max_running.get(), now));
+          }
+          Thread.sleep(10);
+          running.decrementAndGet();
+          return now;
+        }
+      });
+    }
+    executor.invokeAll("foo", tasks);
+    assertTrue("ran " + max_running.get() + " at once", max_running.get() <= 2);
+    executor.shutdown();
+  }
+
+}
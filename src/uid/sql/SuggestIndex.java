@@ -0,0 +1,44 @@
+package net.opentsdb.uid.sql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sorted index of the names of a UID table, answering the prefix searches
+ * of the autocompletion without querying the sql db.
+ * <p>
+ * Names are only added, ids are never reassigned.  The index holds all the
+ * names seen, unlike the caches it isn't bounded: it only keeps the
+ * strings, which the caches share.
+ */
+final class SuggestIndex {
+
+    private final ConcurrentSkipListSet<String> names =
+        new ConcurrentSkipListSet<String>();
+
+    void add(final String name) {
+        names.add(name);
+    }
+
+    /**
+     * Returns the first names starting with a prefix, in order.
+     * @param prefix The prefix, possibly empty.
+     * @param max The maximum number of names returned.
+     */
+    List<String> suggest(final String prefix, final int max) {
+        final ArrayList<String> suggestions = new ArrayList<String>(Math.min(max, 32));
+        for (final String name : names.tailSet(prefix)) {
+            if (suggestions.size() >= max || !name.startsWith(prefix)) {
+                break;
+            }
+            suggestions.add(name);
+        }
+        return suggestions;
+    }
+
+    int size() {
+        return names.size();
+    }
+
+}
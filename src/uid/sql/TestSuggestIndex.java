@@ -0,0 +1,35 @@
+package net.opentsdb.uid.sql;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public final class TestSuggestIndex {
+
+    @Test
+    public void suggestsByPrefixInOrder() {
+        final SuggestIndex index = new SuggestIndex();
+        for (String name : new String[] {"sys.mem", "sys.cpu.user", "proc.net",
+                                         "sys.cpu.idle", "sys.cpu.idle"}) {
+            index.add(name);
+        }
+        assertEquals(4, index.size());
+        assertEquals(Arrays.asList("sys.cpu.idle", "sys.cpu.user"),
+                     index.suggest("sys.cpu", 25));
+        assertEquals(Collections.<String>emptyList(), index.suggest("sys.disk", 25));
+        assertEquals(Collections.<String>emptyList(), index.suggest("zzz", 25));
+    }
+
+    @Test
+    public void limitsSuggestions() {
+        final SuggestIndex index = new SuggestIndex();
+        for (int i = 0; i < 100; i++) {
+            index.add("web" + (100 + i));
+        }
+        assertEquals(Arrays.asList("web100", "web101", "web102"), index.suggest("", 3));
+        assertEquals(Arrays.asList("web150", "web151"), index.suggest("web15", 2));
+    }
+
+}
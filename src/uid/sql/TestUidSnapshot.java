@@ -0,0 +1,88 @@
+package net.opentsdb.uid.sql;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public final class TestUidSnapshot {
+
+    private File file;
+
+    @Before
+    public void before() throws Exception {
+        file = File.createTempFile("tagv", ".uids");
+        file.delete();
+    }
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    @Test
+    public void missingFile() {
+        assertEquals(0, new UidSnapshot(file).load(new UniqueIdSql(null, "tagv")));
+    }
+
+    @Test
+    public void appendAndLoad() {
+        final UidSnapshot snapshot = new UidSnapshot(file);
+        snapshot.append(Arrays.asList(1L, 2L), Arrays.asList("web01", "web02"));
+        snapshot.append(Arrays.asList(7L), Arrays.asList("caf\u00e9"));
+        // the caches are filled, lookups never reach the (missing) db
+        final UniqueIdSql uids = new UniqueIdSql(null, "tagv");
+        assertEquals(7, new UidSnapshot(file).load(uids));
+        assertEquals("web02", uids.getName(id(2)));
+        assertEquals("caf\u00e9", uids.getName(id(7)));
+        assertArrayEquals(id(1), uids.getId("web01"));
+        assertEquals(3, uids.cacheHits());
+    }
+
+    @Test
+    public void smallestIdWins() {
+        new UidSnapshot(file).append(Arrays.asList(3L, 5L), Arrays.asList("foo", "foo"));
+        final UniqueIdSql uids = new UniqueIdSql(null, "tagv");
+        new UidSnapshot(file).load(uids);
+        assertArrayEquals(id(3), uids.getId("foo"));
+        assertEquals("foo", uids.getName(id(5)));
+    }
+
+    @Test
+    public void truncatesPartialRecord() throws Exception {
+        final UidSnapshot snapshot = new UidSnapshot(file);
+        snapshot.append(Arrays.asList(1L, 2L), Arrays.asList("web01", "web02"));
+        final long length = file.length();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length - 3);
+        raf.close();
+        assertEquals(1, snapshot.load(new UniqueIdSql(null, "tagv")));
+        // the next mappings are appended after the last complete one
+        snapshot.append(Arrays.asList(2L), Arrays.asList("web02"));
+        assertEquals(length, file.length());
+        assertEquals(2, snapshot.load(new UniqueIdSql(null, "tagv")));
+    }
+
+    @Test
+    public void ignoresUnknownFormat() throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeLong(42);
+        raf.close();
+        assertEquals(0, new UidSnapshot(file).load(new UniqueIdSql(null, "tagv")));
+        assertEquals(0, file.length());
+    }
+
+    private static byte[] id(final long id) {
+        final byte[] bytes = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (id >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
+
+}
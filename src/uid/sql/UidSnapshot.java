@@ -0,0 +1,160 @@
+package net.opentsdb.uid.sql;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local copy of the mappings of a UID table, so that a TSD fills its
+ * caches from disk when it starts rather than from the sql db.
+ * <p>
+ * Ids are never reassigned, so the file is only appended to: mappings are
+ * written by increasing id, and those assigned since are read from the db
+ * with {@code id > } the last one of the file, see
+ * {@link UniqueIdSql#preload}.  The file starts with {@code MAGIC}, then
+ * each record is laid out as follows:
+ * <pre>
+ *   int   length of the payload
+ *   int   CRC32 of the payload
+ *   long  id
+ *   byte[] name, in UTF-8
+ * </pre>
+ * The file is read memory-mapped.  A record cut short or corrupt, after a
+ * crash while appending, ends the file, which is truncated there.
+ */
+final class UidSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UidSnapshot.class);
+
+    /** "UID1", the format of the file. */
+    private static final int MAGIC = 0x55494431;
+
+    /** Size of the header of a record: length and CRC. */
+    private static final int HEADER_SIZE = 8;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final File file;
+
+    UidSnapshot(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the mappings of the file into the caches of a table.
+     * @return The last id of the file, 0 if it's empty or unreadable.
+     */
+    long load(final UniqueIdSql uids) {
+        if (!file.exists()) {
+            return 0;
+        }
+        RandomAccessFile raf = null;
+        long last_id = 0;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            final long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("too large: " + length + " bytes");
+            }
+            final MappedByteBuffer buf =
+                raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (length < 4 || buf.getInt(0) != MAGIC) {
+                LOG.warn("Ignoring UID snapshot " + file + " of unknown format");
+                raf.setLength(0);
+                return 0;
+            }
+            final CRC32 crc = new CRC32();
+            byte[] payload = new byte[256];
+            int offset = 4;
+            while (offset + HEADER_SIZE + 8 <= length) {
+                final int size = buf.getInt(offset);
+                if (size < 8 || offset + HEADER_SIZE + size > length) {
+                    break;
+                }
+                if (payload.length < size) {
+                    payload = new byte[size];
+                }
+                buf.position(offset + HEADER_SIZE);
+                buf.get(payload, 0, size);
+                crc.reset();
+                crc.update(payload, 0, size);
+                if ((int) crc.getValue() != buf.getInt(offset + 4)) {
+                    break;
+                }
+                final long id = buf.getLong(offset + HEADER_SIZE);
+                uids.cacheMapping(id, new String(payload, 8, size - 8, CHARSET));
+                last_id = id;
+                offset += HEADER_SIZE + size;
+            }
+            if (offset < length) {
+                LOG.warn("Truncating UID snapshot " + file + " at " + offset
+                         + " of " + length + " bytes");
+                raf.setLength(offset);
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to read UID snapshot " + file + ": " + e.getMessage());
+        } finally {
+            close(raf);
+        }
+        return last_id;
+    }
+
+    /** Appends mappings to the file, by increasing id. */
+    void append(final List<Long> ids, final List<String> names) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            final boolean empty = !file.exists() || file.length() == 0;
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, true)));
+            if (empty) {
+                out.writeInt(MAGIC);
+            }
+            final CRC32 crc = new CRC32();
+            for (int i = 0; i < ids.size(); i++) {
+                final byte[] name = names.get(i).getBytes(CHARSET);
+                final byte[] payload = new byte[8 + name.length];
+                final long id = ids.get(i);
+                for (int j = 0; j < 8; j++) {
+                    payload[j] = (byte) (id >>> (56 - 8 * j));
+                }
+                System.arraycopy(name, 0, payload, 8, name.length);
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                out.writeInt(payload.length);
+                out.writeInt((int) crc.getValue());
+                out.write(payload);
+            }
+            out.flush();
+        } catch (IOException e) {
+            LOG.error("Unable to write UID snapshot " + file + ": " + e.getMessage());
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close UID snapshot: " + e.getMessage());
+            }
+        }
+    }
+
+}
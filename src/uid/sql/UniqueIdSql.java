@@ -1,13 +1,15 @@
 package net.opentsdb.uid.sql;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
 
-import java.nio.charset.Charset;
+import java.io.File;
 import java.nio.ByteBuffer;
 
 import java.sql.Connection;
-import java.sql.Statement;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -17,43 +19,100 @@ import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.UniqueIdInterface;
 import net.opentsdb.core.sql.DataSourceUtil;
+import net.opentsdb.core.sql.LongLruCache;
+import net.opentsdb.core.sql.LruCache;
 
-
+/**
+ * Maps names to ids stored in a sql table, with an auto increment id.
+ * <p>
+ * New names are assigned ids by group commit: the thread inserting names
+ * takes all the names pending, up to {@code tsd.sql.uid_batch_size} at a
+ * time (default 256), and inserts them with one statement while the
+ * threads with new names wait for it.  Lookups of names missing from the
+ * cache are serialized per name by lock striping only, so that a burst of
+ * new hosts or tag values doesn't queue every thread behind one insert.
+ * Should another TSD insert the same name, the smallest id wins.
+ * <p>
+ * Each cache holds at most {@code tsd.sql.uid_cache_size} mappings
+ * (default 1000000), the ones not used recently being evicted first.
+ * <p>
+ * Names found missing are remembered for {@code tsd.sql.uid_negative_ttl}
+ * seconds (default 60, 0 to disable), so that queries naming an unknown
+ * metric or host don't look it up every time.  Creating a name forgets it
+ * right away, names created by other TSDs are seen once it expires.
+ * <p>
+ * All the names seen are also kept in a {@link SuggestIndex}, which
+ * answers {@link #suggest} from memory.
+ */
 public final class UniqueIdSql implements UniqueIdInterface {
     
     private static final Logger LOG = LoggerFactory.getLogger(UniqueIdSql.class);
     
-    /** Charset used to convert Strings to byte arrays and back. */
-    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+    /** Default maximum number of mappings of each cache. */
+    private static final int DEFAULT_CACHE_SIZE = 1000000;
+    
+    /** Maximum number of results of {@link #suggest}. */
+    private static final int MAX_SUGGESTIONS = 25;
+    
+    /** Maximum number of missing names remembered. */
+    private static final int NEGATIVE_CACHE_SIZE = 100000;
+    
+    /** Time in ms missing names are remembered. */
+    private static final long NEGATIVE_TTL =
+        Math.max(0, Long.getLong("tsd.sql.uid_negative_ttl", 60L)) * 1000;
+    
+    /** Number of locks names are looked up and created under. */
+    private static final int LOCK_STRIPES = 64;
+    
+    /** Maximum number of names inserted by one statement. */
+    private static final int BATCH_SIZE =
+        Math.max(1, Integer.getInteger("tsd.sql.uid_batch_size", 256));
     
     private final String select_id_query;
     private final String select_name_query;
     private final String insert_id_query;
     
+    /** Locks of the names, by hash. */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    
+    /** Names waiting for an id, guarded by {@link #pending}. */
+    private final LinkedHashSet<String> pending = new LinkedHashSet<String>();
+    
+    /** Whether names are being inserted, guarded by {@link #pending}. */
+    private boolean inserting;
+    
     private DataSource ds;
     private String table;
     
+    /** Cache for forward mappings (name to ID). */
+    private final LruCache<String, byte[]> nameCache;
+    
+    /** Cache for backward mappings (ID to name), keyed by the ID as a long. */
+    private final LongLruCache<String> idCache;
+    
     /**
-     * Cache for forward mappings (name to ID).
+     * Names missing from the table, mapped to the time in ms until which
+     * they're considered missing.
      */
-    private final ConcurrentHashMap<String, byte[]> nameCache =
-        new ConcurrentHashMap<String, byte[]>();
-    /** 
-     * Cache for backward mappings (ID to name).
-     * The ID in the key is a byte[] converted to a String to be Comparable.
-     */
-    private final ConcurrentHashMap<String, String> idCache =
-        new ConcurrentHashMap<String, String>();
+    private final LruCache<String, Long> unknownNames =
+        new LruCache<String, Long>(NEGATIVE_CACHE_SIZE);
+    
+    /** All the names seen, for {@link #suggest}. */
+    private final SuggestIndex suggestions = new SuggestIndex();
+    
+    /** Number of lookups of missing names answered by the negative cache. */
+    private final AtomicLong negativeHits = new AtomicLong();
     
-    /** Number of times we avoided reading from HBase thanks to the cache. */
-    private volatile int cacheHits;
+    /** Number of times we avoided reading from the db thanks to the cache. */
+    private final AtomicLong cacheHits = new AtomicLong();
     
-    /** Number of times we had to read from HBase and populate the cache. */
-    private volatile int cacheMisses;
+    /** Number of times we had to read from the db and populate the cache. */
+    private final AtomicLong cacheMisses = new AtomicLong();
     
     private final short idWidth;
     
@@ -61,14 +120,155 @@ public final class UniqueIdSql implements UniqueIdInterface {
         this.ds = ds;
         this.table = table;
         idWidth = 8;
-        select_id_query = "SELECT id FROM " + table + " WHERE name=?";
+        select_id_query = "SELECT MIN(id) FROM " + table + " WHERE name=?";
         select_name_query = "SELECT name FROM " + table + " WHERE id=?";
-        insert_id_query = "INSERT INTO " + table + " (name) VALUES(?)";
+        insert_id_query = "INSERT INTO " + table + " (name) VALUES";
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        final int cache_size = Math.max(1,
+            Integer.getInteger("tsd.sql.uid_cache_size", DEFAULT_CACHE_SIZE));
+        nameCache = new LruCache<String, byte[]>(cache_size);
+        idCache = new LongLruCache<String>(cache_size);
     }
     
     public String kind() {
         return table;
     }
+    
+    /** The number of times we avoided reading from the db thanks to the cache. */
+    public long cacheHits() {
+        return cacheHits.get();
+    }
+    
+    /** The number of times we had to read from the db and populate the cache. */
+    public long cacheMisses() {
+        return cacheMisses.get();
+    }
+    
+    /** Returns the number of mappings in the caches. */
+    public int cacheSize() {
+        return nameCache.size() + idCache.size();
+    }
+    
+    /**
+     * Fills the caches with the mappings of the table, read with a single
+     * scan, so that the first queries after a restart don't each look up
+     * their names one at a time.
+     * @param snapshot A file the mappings are kept in, see
+     * {@link UidSnapshot}, or {@code null} to read them all from the db.
+     * Mappings assigned since it was last written are read from the db and
+     * added to it.
+     */
+    public void preload(final File snapshot) {
+        final long start = System.currentTimeMillis();
+        final UidSnapshot file = snapshot != null ? new UidSnapshot(snapshot) : null;
+        final long last_id = file != null ? file.load(this) : 0;
+        final int from_file = idCache.size();
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        final ArrayList<String> names = new ArrayList<String>();
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = ds.getConnection();
+            st = conn.prepareStatement("SELECT id,name FROM " + table
+                + " WHERE id>? ORDER BY id", ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+            // streamed rather than buffered by the driver
+            st.setFetchSize(Integer.MIN_VALUE);
+            st.setLong(1, last_id);
+            rs = st.executeQuery();
+            while (rs.next()) {
+                final long id = rs.getLong(1);
+                final String name = rs.getString(2);
+                cacheMapping(id, name);
+                if (file != null) {
+                    ids.add(id);
+                    names.add(name);
+                }
+            }
+        } catch (SQLException e) {
+            LOG.error("Unable to preload " + table + ": " + e.getMessage());
+        } finally {
+            DataSourceUtil.close(rs, st, conn);
+        }
+        if (file != null) {
+            file.append(ids, names);
+        }
+        LOG.info("Preloaded " + idCache.size() + " ids of " + table + " ("
+                 + from_file + " from snapshot) in "
+                 + (System.currentTimeMillis() - start) + "ms");
+    }
+    
+    /**
+     * Reads all the names of the table into the index of {@link #suggest},
+     * with a single scan.  Not needed after {@link #preload}, which indexes
+     * the names it reads.
+     */
+    public void loadSuggestions() {
+        final long start = System.currentTimeMillis();
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = ds.getConnection();
+            st = conn.prepareStatement("SELECT name FROM " + table,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // streamed rather than buffered by the driver
+            st.setFetchSize(Integer.MIN_VALUE);
+            rs = st.executeQuery();
+            while (rs.next()) {
+                suggestions.add(rs.getString(1));
+            }
+        } catch (SQLException e) {
+            LOG.error("Unable to load the names of " + table + ": " + e.getMessage());
+        } finally {
+            DataSourceUtil.close(rs, st, conn);
+        }
+        LOG.info("Indexed " + suggestions.size() + " names of " + table + " in "
+                 + (System.currentTimeMillis() - start) + "ms");
+    }
+    
+    /**
+     * Attempts to find suggestions of names given a search term.
+     * @param search The search term (possibly empty).
+     * @return Up to 25 known names starting with the search term, in
+     * order.  Names created by other TSDs show up once looked up here.
+     */
+    public List<String> suggest(final String search) {
+        return suggestions.suggest(search, MAX_SUGGESTIONS);
+    }
+    
+    /**
+     * Caches a mapping read in bulk.  Unlike lookups, a name already
+     * mapped to another id keeps it: mappings come by increasing id, and
+     * the smallest id of a name is the one used.
+     */
+    void cacheMapping(final long id, final String name) {
+        unknownNames.remove(name);
+        suggestions.add(name);
+        nameCache.putIfAbsent(name, ByteBuffer.allocate(8).putLong(id).array());
+        idCache.putIfAbsent(id, name);
+    }
+    
+    /**
+     * Records the statistics of the caches, with the same names as
+     * {@link net.opentsdb.uid.UniqueId}'s.
+     */
+    public void collectStats(final StatsCollector collector) {
+        final String kind = "kind=" + kind();
+        collector.record("uid.cache-hit", cacheHits, kind);
+        collector.record("uid.cache-miss", cacheMisses, kind);
+        collector.record("uid.cache-size", cacheSize(), kind);
+        collector.record("uid.cache-negative-hit", negativeHits, kind);
+        collector.record("uid.cache-negative-size", unknownNames.size(), kind);
+        collector.record("uid.suggest-size", suggestions.size(), kind);
+        collector.record("uid.cache-evictions", nameCache.evictions(),
+                         kind + " cache=names");
+        collector.record("uid.cache-evictions", idCache.evictions(),
+                         kind + " cache=ids");
+    }
 
     public short width() {
         return idWidth;
@@ -82,9 +282,9 @@ public final class UniqueIdSql implements UniqueIdInterface {
         }
         String name = getNameFromCache(id);
         if (name != null) {
-            cacheHits++;
+            cacheHits.incrementAndGet();
         } else {
-            cacheMisses++;
+            cacheMisses.incrementAndGet();
             name = getNameFromDb(id);
             if (name == null) {
                 throw new NoSuchUniqueId(kind(), id);
@@ -96,13 +296,32 @@ public final class UniqueIdSql implements UniqueIdInterface {
     }
 
     public byte[] getId(String name) throws NoSuchUniqueName {
+        return getId(name, true);
+    }
+    
+    /**
+     * Looks up the id of a name.
+     * @param negative Whether names recently found missing are trusted to
+     * still be, rather than looked up again.
+     */
+    private byte[] getId(String name, boolean negative) throws NoSuchUniqueName {
         byte[] id = getIdFromCache(name);
         if (id != null) {
-            cacheHits++;
+            cacheHits.incrementAndGet();
         } else {
-            cacheMisses++;
+            if (negative && NEGATIVE_TTL > 0) {
+                final Long until = unknownNames.get(name);
+                if (until != null && until > System.currentTimeMillis()) {
+                    negativeHits.incrementAndGet();
+                    throw new NoSuchUniqueName(kind(), name);
+                }
+            }
+            cacheMisses.incrementAndGet();
             id = getIdFromDb(name);
             if (id == null) {
+                if (NEGATIVE_TTL > 0) {
+                    unknownNames.put(name, System.currentTimeMillis() + NEGATIVE_TTL);
+                }
                 throw new NoSuchUniqueName(kind(), name);
             }
             if (id.length != idWidth) {
@@ -117,45 +336,110 @@ public final class UniqueIdSql implements UniqueIdInterface {
     }
 
     public byte[] getOrCreateId(String name) {
-        byte[] id = null;
+        byte[] id = getIdFromCache(name);
+        if (id != null) {
+            cacheHits.incrementAndGet();
+            return id;
+        }
+        synchronized (locks[(name.hashCode() & 0x7FFFFFFF) % LOCK_STRIPES]) {
+            try {
+                // another TSD may have created it since it was found missing
+                return getId(name, false);
+            } catch (NoSuchUniqueName e) {
+                // skip
+            }
+            return assignId(name);
+        }
+    }
+    
+    /**
+     * Assigns an id to a new name, inserting it with the other names
+     * pending.
+     * @return The id, or {@code null} if it couldn't be inserted.
+     */
+    private byte[] assignId(String name) {
+        final List<String> batch = new ArrayList<String>();
+        boolean interrupted = false;
         try {
-            id = getId(name);
-        } catch (NoSuchUniqueName e) {
-            // skip
-        }
-        if (id == null) {
-            synchronized(this) {
-                // TODO lock on db to allow multiple instances of tsdb to be run
-                try {
-                    id = getId(name);
-                } catch (NoSuchUniqueName e) {
-                    // skip
+            synchronized (pending) {
+                pending.add(name);
+                while (inserting) {
+                    try {
+                        pending.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                    byte[] id = getIdFromCache(name);
+                    if (id != null)
+                        return id;
                 }
-                if (id != null)
-                    return id;
-                Connection conn = null;
-                PreparedStatement st = null;
-                ResultSet rs = null;
-                try {
-                    conn = ds.getConnection();
-                    st = conn.prepareStatement(insert_id_query, Statement.RETURN_GENERATED_KEYS);
-                    st.setString(1, name);
-                    st.executeUpdate();
-                    
-                    rs = st.getGeneratedKeys();
-                    rs.next();
-                    id = ByteBuffer.allocate(8).putLong(rs.getLong(1)).array();
-                    
-                    addIdToCache(name, id);
-                    addNameToCache(id, name);                
-                } catch (SQLException e) {
-                    LOG.error("Unable to insert name: " + e.getMessage());
-                } finally {
-                    DataSourceUtil.close(rs, st, conn); 
+                // it's our turn, with the names of the threads waiting
+                pending.add(name);
+                for (String new_name : pending) {
+                    if (getIdFromCache(new_name) == null)
+                        batch.add(new_name);
                 }
+                pending.clear();
+                inserting = true;
             }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        try {
+            for (int i = 0; i < batch.size(); i += BATCH_SIZE) {
+                insertNames(batch.subList(i, Math.min(batch.size(), i + BATCH_SIZE)));
+            }
+        } finally {
+            synchronized (pending) {
+                inserting = false;
+                pending.notifyAll();
+            }
+        }
+        return getIdFromCache(name);
+    }
+    
+    /** Inserts names and caches their ids, logs an error if it failed. */
+    private void insertNames(final List<String> names) {
+        final StringBuilder query = new StringBuilder(insert_id_query);
+        final StringBuilder select = new StringBuilder("SELECT name,MIN(id) FROM ");
+        select.append(table).append(" WHERE name IN (");
+        for (int i = 0; i < names.size(); i++) {
+            query.append(i == 0 ? "(?)" : ",(?)");
+            select.append(i == 0 ? "?" : ",?");
+        }
+        select.append(") GROUP BY name");
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = ds.getConnection();
+            st = conn.prepareStatement(query.toString());
+            for (int i = 0; i < names.size(); i++) {
+                st.setString(i + 1, names.get(i));
+            }
+            st.executeUpdate();
+            st.close();
+            // read back rather than taken from the generated keys, another
+            // TSD may have inserted some of the names first
+            st = conn.prepareStatement(select.toString());
+            for (int i = 0; i < names.size(); i++) {
+                st.setString(i + 1, names.get(i));
+            }
+            rs = st.executeQuery();
+            while (rs.next()) {
+                final byte[] id = ByteBuffer.allocate(8).putLong(rs.getLong(2)).array();
+                addIdToCache(rs.getString(1), id);
+                addNameToCache(id, rs.getString(1));
+            }
+            if (names.size() > 1) {
+                LOG.info("Assigned ids to " + names.size() + " new names of " + table);
+            }
+        } catch (SQLException e) {
+            LOG.error("Unable to insert names: " + e.getMessage());
+        } finally {
+            DataSourceUtil.close(rs, st, conn);
         }
-        return id;
     }
     
     private byte[] getIdFromCache(final String name) {
@@ -163,18 +447,17 @@ public final class UniqueIdSql implements UniqueIdInterface {
     }
     
     private String getNameFromCache(final byte[] id) {
-        return idCache.get(fromBytes(id));
+        return idCache.get(ByteBuffer.wrap(id).getLong());
     }
     
     private void addIdToCache(final String name, final byte[] id) {
-        byte[] found = nameCache.get(name);
-        if (found == null) {
-            found = nameCache.putIfAbsent(name,
-                                        // Must make a defensive copy to be immune
-                                        // to any changes the caller may do on the
-                                        // array later on.
-                                        Arrays.copyOf(id, id.length));
-        }
+        unknownNames.remove(name);
+        suggestions.add(name);
+        final byte[] found = nameCache.putIfAbsent(name,
+                                                   // Must make a defensive copy to be immune
+                                                   // to any changes the caller may do on the
+                                                   // array later on.
+                                                   Arrays.copyOf(id, id.length));
         if (found != null && !Arrays.equals(found, id)) {
             throw new IllegalStateException("name=" + name + " => id="
                 + Arrays.toString(id) + ", already mapped to "
@@ -183,11 +466,7 @@ public final class UniqueIdSql implements UniqueIdInterface {
     }
 
     private void addNameToCache(final byte[] id, final String name) {
-        final String key = fromBytes(id);
-        String found = idCache.get(key);
-        if (found == null) {
-            found = idCache.putIfAbsent(key, name);
-        }
+        final String found = idCache.putIfAbsent(ByteBuffer.wrap(id).getLong(), name);
         if (found != null && !found.equals(name)) {
             throw new IllegalStateException("id=" + Arrays.toString(id) + " => name="
                 + name + ", already mapped to " + found);
@@ -226,6 +505,8 @@ public final class UniqueIdSql implements UniqueIdInterface {
             rs = st.executeQuery();
             if (rs.next()) {
                 long id = rs.getLong(1);
+                if (rs.wasNull())
+                    return null;
                 return ByteBuffer.allocate(8).putLong(id).array();
             }
         } catch (SQLException e) {
@@ -236,12 +517,4 @@ public final class UniqueIdSql implements UniqueIdInterface {
         return null;
     }
     
-    private static byte[] toBytes(final String s) {
-        return s.getBytes(CHARSET);
-    }
-
-    private static String fromBytes(final byte[] b) {
-        return new String(b, CHARSET);
-    }
-    
 }